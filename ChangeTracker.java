@@ -0,0 +1,172 @@
+import java.util.Random;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.*;
+
+// Tracks whether the text still matches what was last saved or loaded. Every edit bumps the
+// revision, which other code compares to notice that the text changed under it. A revision
+// whose text has the saved length and content hash counts as clean again, so undoing or
+// retyping back to the saved text clears the modified mark. The hash of the edited text is
+// not taken again here: DocumentStats keeps one per chunk and folds them together
+final class ChangeTracker {
+    static final long MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    private long revision;
+    private long cleanRevision;
+    private long checkedRevision;
+    private int savedLength;
+    private long savedHash = hash("");
+
+    long revision() {
+        return revision;
+    }
+
+    boolean isModified() {
+        return revision != cleanRevision;
+    }
+
+    void edited() {
+        revision++;
+    }
+
+    // A new text was loaded; it is the saved one
+    void reset(int length, long hash) {
+        revision++;
+        cleanRevision = checkedRevision = revision;
+        savedLength = length;
+        savedHash = hash;
+    }
+
+    // The text is what the file holds, as far as anyone can tell without hashing it again;
+    // with no saved hash, later edits cannot count as clean until the next save
+    void followed() {
+        cleanRevision = checkedRevision = revision;
+        savedLength = -1;
+    }
+
+    // The text as it was at atRevision was saved
+    void saved(long atRevision, int length, long hash) {
+        savedLength = length;
+        savedHash = hash;
+        checkedRevision = atRevision;
+        if (atRevision == revision) {
+            cleanRevision = revision;
+        }
+    }
+
+    // Whether the current text could be the saved one and has not been hashed yet
+    boolean needsCheck(int length) {
+        return isModified() && checkedRevision != revision && length == savedLength;
+    }
+
+    void checked(long atRevision, long hash) {
+        if (atRevision != revision) return;
+
+        checkedRevision = atRevision;
+        if (hash == savedHash) {
+            cleanRevision = revision;
+        }
+    }
+
+    // Polynomial hash of the whole text, read in chunks. It starts from the length and takes in
+    // each char c as hash = (hash + c) * MULTIPLIER, so a text split into parts can be hashed
+    // part by part: hash = hash * MULTIPLIER^length + the part hashed from zero
+    static long hash(CharSequence text) {
+        long hash = text.length();
+        char[] chunk = new char[8192];
+        for (int pos = 0; pos < text.length(); pos += chunk.length) {
+            int end = Math.min(text.length(), pos + chunk.length);
+            TextFiles.getChars(text, pos, end, chunk);
+            for (int i = 0; i < end - pos; i++) {
+                hash = (hash + chunk[i]) * MULTIPLIER;
+            }
+        }
+        return finish(hash);
+    }
+
+    static long finish(long hash) {
+        return hash ^ (hash >>> 29);
+    }
+
+    // Test method: random edits through an EditHistory are undone back to the loaded text,
+    // which must count as clean again from the chunk hashes alone, and redone to modified
+    static void test() {
+        Random random = new Random(37);
+        StringBuilder initial = new StringBuilder();
+        while (initial.length() < DocumentStats.CHUNK * 5) {
+            initial.append("line ").append(random.nextInt(1000)).append('\n');
+        }
+        PieceTableDocument document = new PieceTableDocument();
+        ChangeTracker tracker = new ChangeTracker();
+        DocumentStats stats = new DocumentStats(Runnable::run, Runnable::run, () -> {});
+        EditHistory history = new EditHistory(Long.MAX_VALUE);
+        int rounds = 0;
+        try {
+            document.insertString(0, initial.toString(), null);
+            tracker.reset(document.getLength(), hash(initial));
+            stats.reset(document);
+            document.addDocumentListener(new DocumentListener() {
+                public void insertUpdate(DocumentEvent e) {
+                    tracker.edited();
+                    stats.inserted(e.getOffset(), e.getLength());
+                }
+                public void removeUpdate(DocumentEvent e) {
+                    tracker.edited();
+                    stats.removed(e.getOffset(), e.getLength());
+                }
+                public void changedUpdate(DocumentEvent e) { }
+            });
+            document.setDocumentFilter(history);
+            for (; rounds < 20; rounds++) {
+                int steps = 1 + random.nextInt(40);
+                for (int step = 0; step < steps; step++) {
+                    history.breakStep();
+                    int length = document.getLength();
+                    int offset = random.nextInt(length + 1);
+                    if (random.nextBoolean() || length == offset) {
+                        int count = random.nextInt(30) == 0 ? DocumentStats.CHUNK * 3 : 1 + random.nextInt(5);
+                        document.insertString(offset, "x".repeat(count), null);
+                    } else {
+                        document.remove(offset, Math.min(length - offset, 1 + random.nextInt(
+                                random.nextInt(30) == 0 ? DocumentStats.CHUNK * 3 : 5)));
+                    }
+                    check(tracker, stats, document);
+                    if (!document.snapshot().toString().equals(initial.toString()) != tracker.isModified()) {
+                        throw new IllegalStateException("ChangeTracker says modified is " + tracker.isModified()
+                                + " after an edit in round " + rounds);
+                    }
+                }
+                while (history.canUndo()) {
+                    history.undo(document);
+                }
+                check(tracker, stats, document);
+                if (tracker.isModified()) {
+                    throw new IllegalStateException("ChangeTracker still modified after undoing to the saved text in round "
+                            + rounds);
+                }
+                history.redo(document);
+                check(tracker, stats, document);
+                if (!tracker.isModified()) {
+                    throw new IllegalStateException("ChangeTracker clean after redoing an edit in round " + rounds);
+                }
+                history.undo(document);
+                check(tracker, stats, document);
+            }
+        } catch (BadLocationException ex) {
+            throw new IllegalStateException(ex);
+        }
+        System.out.println("ChangeTracker: " + rounds + " rounds of edits undone back to clean passed");
+    }
+
+    // What Notepad.refreshStatus does once the edited chunks are counted again
+    private static void check(ChangeTracker tracker, DocumentStats stats, PieceTableDocument document) {
+        stats.recount();
+        long full = hash(document.snapshot());
+        if (stats.hash() != full) {
+            throw new IllegalStateException("DocumentStats folded a hash of " + stats.hash() + ", not " + full);
+        }
+        if (tracker.needsCheck(document.getLength())) {
+            tracker.checked(tracker.revision(), stats.hash());
+        }
+    }
+}
@@ -0,0 +1,364 @@
+import java.util.Random;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.*;
+
+// Word count of a document kept up to date as it is edited. The text is split into chunks of
+// about CHUNK chars, each with a word count of its own. An edit only resizes the chunk it falls
+// in and marks it dirty, in O(log n) through a Fenwick tree of chunk lengths, and recount()
+// counts the dirty chunks again from a snapshot on the worker executor. Words are runs of
+// non-whitespace, so each chunk also notes whether it starts and ends inside one, and a word
+// cut by a chunk boundary is counted once. The count also hashes each chunk, so the
+// ChangeTracker hash of the whole text is a fold over the chunks rather than a read of it all.
+// Everything but the counting runs on one thread
+final class DocumentStats {
+    static final int CHUNK = 16 * 1024;
+
+    private static final class Chunk {
+        int index;
+        int length;
+        int words;
+        boolean startsInWord;
+        boolean endsInWord;
+        // The chunk hashed from zero, and MULTIPLIER to the power of its length
+        long hash;
+        long power = 1;
+        boolean dirty = true;
+        // Bumped on every change, so a count made before it is thrown away
+        long version;
+        // What this chunk adds to the total: its words, less one shared with the previous chunk
+        long counted;
+
+        Chunk(int length) {
+            this.length = length;
+        }
+    }
+
+    private final java.util.concurrent.Executor worker;
+    private final java.util.concurrent.Executor owner;
+    private final Runnable onCounted;
+    private final java.util.ArrayList<Chunk> chunks = new java.util.ArrayList<>();
+    private int[] tree = new int[1];
+    private Document document;
+    private long generation;
+    private int dirty;
+    private long words;
+    private boolean counting;
+
+    // Counting runs on worker; its results, and onCounted, are handed back through owner
+    DocumentStats(java.util.concurrent.Executor worker, java.util.concurrent.Executor owner, Runnable onCounted) {
+        this.worker = worker;
+        this.owner = owner;
+        this.onCounted = onCounted;
+    }
+
+    // Starts over on another document, with every chunk to be counted
+    void reset(Document document) {
+        this.document = document;
+        generation++;
+        chunks.clear();
+        for (int pos = 0, length = document.getLength(); pos < length; pos += CHUNK) {
+            chunks.add(new Chunk(Math.min(CHUNK, length - pos)));
+        }
+        dirty = chunks.size();
+        restructured();
+    }
+
+    // The exact word count, or -1 while some chunks are still to be counted
+    long words() {
+        return dirty == 0 ? words : -1;
+    }
+
+    void inserted(int offset, int length) {
+        if (chunks.isEmpty()) {
+            chunks.add(new Chunk(length));
+            dirty++;
+            restructured();
+            return;
+        }
+        // At a boundary the text joins the chunk before it, so typing at the end grows the last chunk
+        int i = chunkAt(offset);
+        if (i > 0 && startOf(i) == offset) {
+            i--;
+        }
+        Chunk chunk = chunks.get(i);
+        chunk.length += length;
+        add(i, length);
+        changed(chunk);
+        if (chunk.length > 2 * CHUNK) {
+            split(i);
+        }
+    }
+
+    void removed(int offset, int length) {
+        int first = chunkAt(offset);
+        int last = chunkAt(offset + length - 1);
+        if (first == last) {
+            Chunk chunk = chunks.get(first);
+            chunk.length -= length;
+            add(first, -length);
+            changed(chunk);
+            if (chunk.length < CHUNK / 4) {
+                merge(first);
+            }
+            return;
+        }
+        Chunk head = chunks.get(first);
+        Chunk tail = chunks.get(last);
+        int end = offset + length;
+        tail.length = startOf(last) + tail.length - end;
+        head.length = offset - startOf(first);
+        changed(head);
+        changed(tail);
+        java.util.List<Chunk> between = chunks.subList(first + 1, last);
+        for (Chunk chunk : between) {
+            drop(chunk);
+        }
+        between.clear();
+        restructured();
+        merge(first);
+    }
+
+    // Counts the dirty chunks in the background, unless that is already under way
+    void recount() {
+        if (counting || dirty == 0) return;
+
+        counting = true;
+        long counted = generation;
+        CharSequence text = Notepad.snapshot(document);
+        java.util.List<Chunk> targets = new java.util.ArrayList<>();
+        java.util.List<long[]> jobs = new java.util.ArrayList<>();
+        for (Chunk chunk : chunks) {
+            if (chunk.dirty) {
+                targets.add(chunk);
+                jobs.add(new long[]{chunk.version, startOf(chunk.index), chunk.length});
+            }
+        }
+        worker.execute(() -> {
+            char[] buffer = new char[CHUNK];
+            long[][] results = new long[jobs.size()][];
+            for (int k = 0; k < results.length; k++) {
+                long[] job = jobs.get(k);
+                results[k] = count(text, (int) job[1], (int) job[2], buffer);
+            }
+            owner.execute(() -> counted(counted, targets, jobs, results));
+        });
+    }
+
+    private void counted(long counted, java.util.List<Chunk> targets, java.util.List<long[]> jobs, long[][] results) {
+        counting = false;
+        if (counted == generation) {
+            for (int k = 0; k < results.length; k++) {
+                Chunk chunk = targets.get(k);
+                if (chunk.version != jobs.get(k)[0]) continue; // Edited or dropped meanwhile
+
+                chunk.words = (int) results[k][0];
+                chunk.startsInWord = results[k][1] != 0;
+                chunk.endsInWord = results[k][2] != 0;
+                chunk.hash = results[k][3];
+                chunk.power = results[k][4];
+                chunk.dirty = false;
+                dirty--;
+                recalculate(chunk.index);
+                recalculate(chunk.index + 1);
+            }
+        }
+        if (dirty > 0) {
+            recount();
+        } else {
+            onCounted.run();
+        }
+    }
+
+    // ChangeTracker.hash of the text, folded from the chunk hashes; only meaningful while
+    // words() is known, as every chunk has been counted since it last changed
+    long hash() {
+        long hash = startOf(chunks.size());
+        for (Chunk chunk : chunks) {
+            hash = hash * chunk.power + chunk.hash;
+        }
+        return ChangeTracker.finish(hash);
+    }
+
+    // {words, starts in a word, ends in a word, hash, power} for text[start, start + length)
+    private static long[] count(CharSequence text, int start, int length, char[] buffer) {
+        long hash = 0;
+        long power = 1;
+        long words = 0;
+        boolean inWord = false;
+        boolean startsInWord = false;
+        for (int pos = start, end = start + length; pos < end; ) {
+            int n = Math.min(buffer.length, end - pos);
+            TextFiles.getChars(text, pos, pos + n, buffer);
+            if (pos == start) {
+                startsInWord = !Character.isWhitespace(buffer[0]);
+            }
+            for (int i = 0; i < n; i++) {
+                hash = (hash + buffer[i]) * ChangeTracker.MULTIPLIER;
+                power *= ChangeTracker.MULTIPLIER;
+                boolean word = !Character.isWhitespace(buffer[i]);
+                if (word && !inWord) {
+                    words++;
+                }
+                inWord = word;
+            }
+            pos += n;
+        }
+        return new long[]{words, startsInWord ? 1 : 0, inWord ? 1 : 0, hash, power};
+    }
+
+    private void changed(Chunk chunk) {
+        if (!chunk.dirty) {
+            chunk.dirty = true;
+            dirty++;
+        }
+        chunk.version++;
+        recalculate(chunk.index);
+        recalculate(chunk.index + 1);
+    }
+
+    private void drop(Chunk chunk) {
+        if (chunk.dirty) {
+            dirty--;
+        }
+        chunk.version++;
+    }
+
+    // A chunk grown past twice CHUNK is cut into CHUNK-sized ones
+    private void split(int i) {
+        Chunk chunk = chunks.get(i);
+        java.util.List<Chunk> pieces = new java.util.ArrayList<>();
+        int rest = chunk.length;
+        chunk.length = CHUNK;
+        for (rest -= CHUNK; rest > 0; rest -= CHUNK) {
+            pieces.add(new Chunk(Math.min(CHUNK, rest)));
+        }
+        dirty += pieces.size();
+        chunks.addAll(i + 1, pieces);
+        restructured();
+    }
+
+    // A chunk shrunk below a quarter of CHUNK joins a neighbour, and an empty one goes
+    private void merge(int i) {
+        Chunk chunk = chunks.get(i);
+        int other = i + 1 < chunks.size() ? i + 1 : i - 1;
+        if (chunk.length > 0 && (other < 0 || chunk.length + chunks.get(other).length > 2 * CHUNK)) return;
+
+        if (other >= 0 && chunk.length > 0) {
+            Chunk kept = chunks.get(other);
+            kept.length += chunk.length;
+            changed(kept);
+        }
+        drop(chunk);
+        chunks.remove(i);
+        restructured();
+    }
+
+    // Chunks were added or removed: renumber them, rebuild the tree and total the words again
+    private void restructured() {
+        int n = chunks.size();
+        tree = new int[n + 1];
+        words = 0;
+        for (int i = 0; i < n; i++) {
+            Chunk chunk = chunks.get(i);
+            chunk.index = i;
+            tree[i + 1] += chunk.length;
+            int parent = (i + 1) + ((i + 1) & -(i + 1));
+            if (parent <= n) {
+                tree[parent] += tree[i + 1];
+            }
+            chunk.counted = 0;
+            recalculate(i);
+        }
+    }
+
+    private void recalculate(int i) {
+        if (i >= chunks.size()) return;
+
+        Chunk chunk = chunks.get(i);
+        words -= chunk.counted;
+        chunk.counted = 0;
+        if (!chunk.dirty) {
+            Chunk previous = i > 0 ? chunks.get(i - 1) : null;
+            boolean shared = previous != null && !previous.dirty && previous.endsInWord && chunk.startsInWord;
+            chunk.counted = chunk.words - (shared ? 1 : 0);
+        }
+        words += chunk.counted;
+    }
+
+    private void add(int i, int delta) {
+        for (int j = i + 1; j < tree.length; j += j & -j) {
+            tree[j] += delta;
+        }
+    }
+
+    private int startOf(int i) {
+        int sum = 0;
+        for (int j = i; j > 0; j -= j & -j) {
+            sum += tree[j];
+        }
+        return sum;
+    }
+
+    // The chunk holding offset; an offset at the very end belongs to the last chunk
+    private int chunkAt(int offset) {
+        int i = 0;
+        for (int step = Integer.highestOneBit(Math.max(1, tree.length - 1)); step > 0; step >>= 1) {
+            if (i + step < tree.length && tree[i + step] <= offset) {
+                i += step;
+                offset -= tree[i];
+            }
+        }
+        return Math.min(i, chunks.size() - 1);
+    }
+
+    static void test() {
+        Random random = new Random(31);
+        PieceTableDocument document = new PieceTableDocument();
+        DocumentStats stats = new DocumentStats(Runnable::run, Runnable::run, () -> {});
+        stats.reset(document);
+        document.addDocumentListener(new DocumentListener() {
+            public void insertUpdate(DocumentEvent e) {
+                stats.inserted(e.getOffset(), e.getLength());
+            }
+            public void removeUpdate(DocumentEvent e) {
+                stats.removed(e.getOffset(), e.getLength());
+            }
+            public void changedUpdate(DocumentEvent e) { }
+        });
+        String[] pieces = {"a", "bc", " ", "\n", "\t", "word ", " two words ", "x\ny"};
+        int checks = 0;
+        try {
+            for (int step = 0; step < 20000; step++) {
+                int length = document.getLength();
+                int choice = random.nextInt(10);
+                if (choice < 6 || length == 0) {
+                    StringBuilder text = new StringBuilder();
+                    int count = random.nextInt(50) == 0 ? 2000 + random.nextInt(CHUNK) : 1 + random.nextInt(4);
+                    while (text.length() < count) {
+                        text.append(pieces[random.nextInt(pieces.length)]);
+                    }
+                    document.insertString(random.nextInt(length + 1), text.toString(), null);
+                } else {
+                    int offset = random.nextInt(length);
+                    int span = random.nextInt(400) == 0 ? random.nextInt(Math.min(length - offset, CHUNK * 4)) + 1
+                            : Math.min(length - offset, 1 + random.nextInt(5));
+                    document.remove(offset, span);
+                }
+                if (step % 97 == 0 || step == 19999) {
+                    stats.recount();
+                    long expected = count(document.snapshot(), 0, document.getLength(), new char[CHUNK])[0];
+                    if (stats.words() != expected) {
+                        throw new IllegalStateException("DocumentStats counted " + stats.words()
+                                + " words instead of " + expected + " at step " + step);
+                    }
+                    checks++;
+                }
+            }
+        } catch (BadLocationException ex) {
+            throw new IllegalStateException(ex);
+        }
+        System.out.println("DocumentStats: 20000 edits, " + checks + " recounts matched (" + stats.chunks.size()
+                + " chunks, " + document.getLength() + " chars)");
+    }
+}
@@ -0,0 +1,180 @@
+import java.awt.*;
+import java.io.*;
+import java.nio.CharBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.swing.text.*;
+
+// A document in a tab other than the selected one; the selected tab's document lives in
+// Notepad's own fields and only comes back here when another tab is shown. An inactive
+// tab's text may be spilled to a SpillFile, leaving just its history and change tracker
+final class DocumentTab {
+    // Document properties a spilled document gets back when it is read in again
+    private static final Object[] KEPT_PROPERTIES = {
+            DefaultEditorKit.EndOfLineStringProperty, TextEncoding.PROPERTY, PieceTableDocument.LOADED_SIZE_PROPERTY};
+
+    File file;
+    String title = "Notepad - Untitled";
+    boolean modified;
+    Document document;
+    LineIndex lines;
+    EditHistory history;
+    ChangeTracker tracker;
+    EditJournal journal;
+    boolean fullSavePending;
+    MappedTextFile largeFile;
+    LargeFileView largeFileView;
+    int dot;
+    int mark;
+    Point viewPosition = new Point();
+    long lastUsed;
+    // Being written to the spill file; the text stays until that is done
+    boolean spilling;
+    SpillFile.Extent spilled;
+    private final java.util.Map<Object, Object> properties = new java.util.HashMap<>();
+
+    static DocumentTab untitled(long undoBudget) {
+        DocumentTab tab = new DocumentTab();
+        PieceTableDocument document = new PieceTableDocument();
+        tab.history = new EditHistory(undoBudget);
+        document.setDocumentFilter(tab.history);
+        tab.document = document;
+        tab.lines = LineIndex.of("");
+        tab.tracker = new ChangeTracker();
+        return tab;
+    }
+
+    boolean isResident() {
+        return document != null;
+    }
+
+    // Goes through tabs from the given index, and for each one unsaved when it is reached has
+    // show make it the active one and then has confirm deal with it. Each step calls the Runnable
+    // it is handed to go on, possibly later; a step that does not call it stops the walk, and
+    // done runs after the last tab
+    static void confirmEach(java.util.List<DocumentTab> tabs, int from, java.util.function.Predicate<DocumentTab> unsaved,
+            java.util.function.BiConsumer<DocumentTab, Runnable> show,
+            java.util.function.BiConsumer<DocumentTab, Runnable> confirm, Runnable done) {
+        for (int i = from; i < tabs.size(); i++) {
+            DocumentTab tab = tabs.get(i);
+            if (unsaved.test(tab)) {
+                int next = i + 1;
+                show.accept(tab, () -> confirm.accept(tab, () -> confirmEach(tabs, next, unsaved, show, confirm, done)));
+                return;
+            }
+        }
+        done.run();
+    }
+
+    // About what the text and its line index take on the heap; a large file is mapped, not held
+    long memoryUsed() {
+        if (document == null || largeFile != null) return 0;
+        return 2L * document.getLength() + 16L * lines.lineCount();
+    }
+
+    // The text is in the spill file now, so the document can go
+    void spill(SpillFile.Extent extent) {
+        properties.clear();
+        for (Object key : KEPT_PROPERTIES) {
+            Object value = document.getProperty(key);
+            if (value != null) {
+                properties.put(key, value);
+            }
+        }
+        spilled = extent;
+        document = null;
+        lines = null;
+    }
+
+    // Takes back the document built from its spilled text, with the history it had before
+    void restore(PieceTableDocument restored, LineIndex restoredLines) {
+        properties.forEach(restored::putProperty);
+        restored.setDocumentFilter(history);
+        lines = restoredLines;
+        document = restored;
+        spilled = null;
+    }
+
+    // Exit with a modified tab spilled behind a clean active one: it is asked about only once it
+    // has been read back, and nothing after it runs until then
+    static void test() {
+        java.util.List<String> events = new java.util.ArrayList<>();
+        java.util.concurrent.BlockingQueue<Runnable> eventQueue = new java.util.concurrent.LinkedBlockingQueue<>();
+        ExecutorService io = Executors.newSingleThreadExecutor();
+        try (SpillFile spill = SpillFile.create()) {
+            java.util.List<DocumentTab> tabs = new java.util.ArrayList<>();
+            String[] texts = {"clean and active", "edited, then spilled", "clean"};
+            for (String text : texts) {
+                DocumentTab tab = untitled(1 << 20);
+                tab.document.insertString(0, text, null);
+                tab.lines = LineIndex.of(text);
+                tab.tracker.reset(text.length(), ChangeTracker.hash(text));
+                tab.title = text;
+                tabs.add(tab);
+            }
+            DocumentTab spilled = tabs.get(1);
+            spilled.tracker.edited();
+            spilled.spill(spill.write(texts[1]));
+
+            // As Notepad does: a spilled tab is read back on the I/O thread and shown on the event thread
+            java.util.function.BiConsumer<DocumentTab, Runnable> show = (tab, shown) -> {
+                events.add("show " + tab.title);
+                if (tab.spilled == null) {
+                    shown.run();
+                    return;
+                }
+                SpillFile.Extent extent = tab.spilled;
+                io.execute(() -> {
+                    try {
+                        CharBuffer text = spill.read(extent);
+                        LineIndex lines = LineIndex.of(text);
+                        PieceTableDocument document = new PieceTableDocument(text);
+                        eventQueue.add(() -> {
+                            spill.free(extent);
+                            tab.restore(document, lines);
+                            shown.run();
+                        });
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                });
+            };
+            java.util.function.BiConsumer<DocumentTab, Runnable> confirm = (tab, confirmed) -> {
+                events.add("confirm " + tab.title + (tab.isResident() ? " holding " + Notepad.snapshot(tab.document) : " spilled"));
+                confirmed.run();
+            };
+            boolean[] exited = new boolean[1];
+            confirmEach(tabs, 0, tab -> tab.tracker.isModified(), show, confirm, () -> {
+                events.add("exit");
+                exited[0] = true;
+            });
+            while (!exited[0]) {
+                Runnable event = eventQueue.poll(10, java.util.concurrent.TimeUnit.SECONDS);
+                if (event == null) {
+                    throw new IllegalStateException("DocumentTab exit never went on after " + events);
+                }
+                event.run();
+            }
+            java.util.List<String> expected = java.util.List.of("show " + texts[1],
+                    "confirm " + texts[1] + " holding " + texts[1], "exit");
+            if (!events.equals(expected)) {
+                throw new IllegalStateException("DocumentTab exit went " + events + ", not " + expected);
+            }
+
+            // A tab that cannot be shown stops the walk rather than being skipped
+            events.clear();
+            confirmEach(tabs, 0, tab -> tab == spilled, (tab, shown) -> events.add("refused"), confirm,
+                    () -> events.add("exit"));
+            if (!events.equals(java.util.List.of("refused"))) {
+                throw new IllegalStateException("DocumentTab exit went on past a tab it could not show: " + events);
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        } catch (BadLocationException | InterruptedException ex) {
+            throw new IllegalStateException(ex);
+        } finally {
+            io.shutdownNow();
+        }
+        System.out.println("DocumentTab: exit read back a spilled modified tab before asking about it");
+    }
+}
@@ -0,0 +1,361 @@
+import java.util.Arrays;
+import java.util.Random;
+import javax.swing.text.*;
+
+// Undo history stored as parallel primitive arrays plus one char buffer for the inserted and
+// removed text, instead of an UndoableEdit object per keystroke. Edits are captured by the
+// document filter before they happen, so removed text is still there to be kept and the
+// history is up to date by the time document listeners hear of the edit. Typing and
+// deleting in one place are merged into one undo step, and the oldest steps are dropped
+// once the history would take more than its memory budget. The newest step is always kept,
+// even alone over the budget, so a Replace All over a big document can still be undone; it
+// goes as soon as the next step needs the room
+final class EditHistory extends DocumentFilter {
+    private static final byte INSERT = 1, REMOVE = 2, STEP_START = 4;
+    private static final int RECORD_BYTES = 13;
+    private static final long COALESCE_MILLIS = 1000;
+
+    private final long budget;
+    // One record per edit; STEP_START marks the first record of each undo step
+    private byte[] kinds = new byte[64];
+    private int[] offsets = new int[64];
+    private int[] starts = new int[64];
+    private int[] lengths = new int[64];
+    private int records;
+    private int applied;
+    private char[] chars = new char[1024];
+    private int charCount;
+    private boolean replaying;
+    private boolean recording = true;
+    private boolean joinStep;
+    private boolean breakStep = true;
+    private long lastEditTime;
+
+    EditHistory(long budget) {
+        this.budget = budget;
+    }
+
+    boolean canUndo() {
+        return applied > 0;
+    }
+
+    boolean canRedo() {
+        return applied < records;
+    }
+
+    long memoryUsed() {
+        return charCount * 2L + (long) records * RECORD_BYTES;
+    }
+
+    // The next edit starts a new undo step
+    void breakStep() {
+        breakStep = true;
+    }
+
+    // While not recording, edits pass straight through and the history is dropped
+    void setRecording(boolean recording) {
+        this.recording = recording;
+        records = applied = charCount = 0;
+        breakStep = true;
+    }
+
+    @Override
+    public void insertString(FilterBypass fb, int offset, String text, AttributeSet attrs) throws BadLocationException {
+        if (!replaying && recording && !text.isEmpty()) {
+            if (offset < 0 || offset > fb.getDocument().getLength()) {
+                throw new BadLocationException("Invalid insert", offset);
+            }
+            recordInsert(offset, text);
+        }
+        fb.insertString(offset, text, attrs);
+    }
+
+    @Override
+    public void remove(FilterBypass fb, int offset, int length) throws BadLocationException {
+        if (!replaying && recording && length > 0) {
+            recordRemove(offset, fb.getDocument().getText(offset, length));
+        }
+        fb.remove(offset, length);
+    }
+
+    @Override
+    public void replace(FilterBypass fb, int offset, int length, String text, AttributeSet attrs) throws BadLocationException {
+        if (replaying || !recording) {
+            fb.replace(offset, length, text, attrs);
+            return;
+        }
+        // Typing over a selection is one step of its own, which later typing then extends
+        if (length > 0) {
+            breakStep = true;
+            remove(fb, offset, length);
+        }
+        if (text != null && !text.isEmpty()) {
+            joinStep = length > 0;
+            try {
+                insertString(fb, offset, text, attrs);
+            } finally {
+                joinStep = false;
+            }
+        }
+    }
+
+    private void recordInsert(int offset, String text) {
+        int last = records - 1;
+        long now = System.currentTimeMillis();
+        if (canExtend(INSERT, now) && text.length() == 1 && text.charAt(0) != '\n'
+                && offset == offsets[last] + lengths[last]) {
+            appendText(text);
+            lengths[last]++;
+        } else {
+            addRecord(INSERT, offset, text, !canExtend(INSERT, now) || text.length() > 1 || text.charAt(0) == '\n'
+                    || offset != offsets[last] + lengths[last]);
+        }
+        lastEditTime = now;
+        trim();
+    }
+
+    private void recordRemove(int offset, String text) {
+        int last = records - 1;
+        long now = System.currentTimeMillis();
+        boolean single = text.length() == 1 && text.charAt(0) != '\n';
+        if (canExtend(REMOVE, now) && single && offset == offsets[last]) {
+            // Delete key: the removed text carries on after the last record's
+            appendText(text);
+            lengths[last]++;
+        } else {
+            // Backspace adds a record for the char before, still in the same step
+            boolean backspace = canExtend(REMOVE, now) && single && offset + 1 == offsets[last];
+            addRecord(REMOVE, offset, text, !backspace);
+        }
+        lastEditTime = now;
+        trim();
+    }
+
+    private boolean canExtend(byte kind, long now) {
+        return !breakStep && records > 0 && applied == records
+                && (kinds[records - 1] & kind) != 0 && now - lastEditTime < COALESCE_MILLIS;
+    }
+
+    private void addRecord(byte kind, int offset, String text, boolean newStep) {
+        // A new edit after undoing drops everything that could have been redone
+        records = applied;
+        charCount = records == 0 ? 0 : starts[records - 1] + lengths[records - 1];
+        if (records == kinds.length) {
+            int capacity = records * 2;
+            kinds = Arrays.copyOf(kinds, capacity);
+            offsets = Arrays.copyOf(offsets, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+        }
+        kinds[records] = (byte) ((newStep && !joinStep) || records == 0 ? kind | STEP_START : kind);
+        offsets[records] = offset;
+        starts[records] = charCount;
+        lengths[records] = text.length();
+        appendText(text);
+        applied = ++records;
+        breakStep = false;
+    }
+
+    private void appendText(String text) {
+        if (charCount + text.length() > chars.length) {
+            chars = Arrays.copyOf(chars, (int) Math.min(Integer.MAX_VALUE - 8,
+                    Math.max((long) chars.length * 2, (long) charCount + text.length())));
+        }
+        text.getChars(0, text.length(), chars, charCount);
+        charCount += text.length();
+    }
+
+    // Drops whole steps from the oldest end, down to three quarters of the budget so the
+    // arrays are not shifted again on the very next keystroke, but never the step just made
+    private void trim() {
+        if (memoryUsed() <= budget) return;
+
+        int newest = applied - 1;
+        while ((kinds[newest] & STEP_START) == 0) {
+            newest--;
+        }
+        int drop = 0;
+        while (drop < newest && memoryUsed(drop) > budget * 3 / 4) {
+            drop = nextStep(drop);
+        }
+        if (drop > 0) {
+            int charShift = starts[drop];
+            records -= drop;
+            applied -= drop;
+            System.arraycopy(kinds, drop, kinds, 0, records);
+            System.arraycopy(offsets, drop, offsets, 0, records);
+            System.arraycopy(lengths, drop, lengths, 0, records);
+            for (int i = 0; i < records; i++) {
+                starts[i] = starts[i + drop] - charShift;
+            }
+            charCount -= charShift;
+            System.arraycopy(chars, charShift, chars, 0, charCount);
+        }
+        if (chars.length > 1024 && charCount < chars.length / 4) {
+            chars = Arrays.copyOf(chars, Math.max(1024, charCount * 2));
+        }
+    }
+
+    private long memoryUsed(int dropped) {
+        return (charCount - (long) starts[dropped]) * 2 + (long) (records - dropped) * RECORD_BYTES;
+    }
+
+    private int nextStep(int record) {
+        do {
+            record++;
+        } while (record < records && (kinds[record] & STEP_START) == 0);
+        return record;
+    }
+
+    // Reverts the last step and returns where the caret should go, or -1 if there was nothing to undo
+    int undo(Document document) throws BadLocationException {
+        if (applied == 0) return -1;
+
+        int first = applied - 1;
+        while ((kinds[first] & STEP_START) == 0) {
+            first--;
+        }
+        replaying = true;
+        try {
+            for (int i = applied - 1; i >= first; i--) {
+                if ((kinds[i] & INSERT) != 0) {
+                    document.remove(offsets[i], lengths[i]);
+                } else {
+                    document.insertString(offsets[i], new String(chars, starts[i], lengths[i]), null);
+                }
+            }
+        } finally {
+            replaying = false;
+        }
+        applied = first;
+        breakStep = true;
+        return (kinds[first] & INSERT) != 0 ? offsets[first] : offsets[first] + lengths[first];
+    }
+
+    // Applies the next undone step again and returns where the caret should go, or -1
+    int redo(Document document) throws BadLocationException {
+        if (applied == records) return -1;
+
+        int end = nextStep(applied);
+        replaying = true;
+        try {
+            for (int i = applied; i < end; i++) {
+                if ((kinds[i] & INSERT) != 0) {
+                    document.insertString(offsets[i], new String(chars, starts[i], lengths[i]), null);
+                } else {
+                    document.remove(offsets[i], lengths[i]);
+                }
+            }
+        } finally {
+            replaying = false;
+        }
+        applied = end;
+        breakStep = true;
+        int last = end - 1;
+        return (kinds[last] & INSERT) != 0 ? offsets[last] + lengths[last] : offsets[last];
+    }
+
+    // Test method: random single-step edits are undone and redone one step at a time, then
+    // typing is checked to coalesce and a small budget to hold
+    static void test() {
+        Random random = new Random(1549);
+        PieceTableDocument document = new PieceTableDocument("The quick brown fox\njumps over the lazy dog");
+        EditHistory history = new EditHistory(Long.MAX_VALUE);
+        document.setDocumentFilter(history);
+        java.util.List<String> states = new java.util.ArrayList<>();
+        int edits = 5000;
+
+        try {
+            for (int i = 0; i < edits; i++) {
+                states.add(document.getText(0, document.getLength()));
+                history.breakStep();
+                int length = document.getLength();
+                int where = random.nextInt(length + 1);
+                int count = Math.min(length - where, random.nextInt(20));
+                String text = random.nextInt(4) == 0 ? "" : "xy\n".substring(random.nextInt(3));
+                if (random.nextBoolean() && count > 0) {
+                    document.remove(where, count);
+                } else if (text.isEmpty()) {
+                    document.insertString(where, "z", null);
+                } else {
+                    document.replace(where, count, text, null);
+                }
+            }
+            String last = document.getText(0, document.getLength());
+            for (int i = edits - 1; i >= 0; i--) {
+                history.undo(document);
+                if (!document.getText(0, document.getLength()).equals(states.get(i))) {
+                    throw new IllegalStateException("Undo " + (edits - i) + " did not restore the text");
+                }
+            }
+            while (history.canRedo()) {
+                history.redo(document);
+            }
+            if (!document.getText(0, document.getLength()).equals(last)) {
+                throw new IllegalStateException("Redo did not restore the text");
+            }
+
+            // Typing, deleting and backspacing in one place are single steps
+            PieceTableDocument typed = new PieceTableDocument();
+            EditHistory typing = new EditHistory(Long.MAX_VALUE);
+            typed.setDocumentFilter(typing);
+            for (char c : "hello world".toCharArray()) {
+                typed.insertString(typed.getLength(), String.valueOf(c), null);
+            }
+            typing.breakStep();
+            for (int i = 0; i < 5; i++) {
+                typed.remove(typed.getLength() - 1, 1);
+            }
+            typing.undo(typed);
+            if (!typed.getText(0, typed.getLength()).equals("hello world")) {
+                throw new IllegalStateException("Backspacing was not one step");
+            }
+            typing.undo(typed);
+            if (typed.getLength() != 0 || typing.canUndo()) {
+                throw new IllegalStateException("Typing was not one step");
+            }
+
+            // The budget keeps the newest steps
+            PieceTableDocument bounded = new PieceTableDocument();
+            EditHistory small = new EditHistory(4096);
+            bounded.setDocumentFilter(small);
+            for (int i = 0; i < 1000; i++) {
+                small.breakStep();
+                bounded.insertString(0, "0123456789", null);
+                if (small.memoryUsed() > 4096) {
+                    throw new IllegalStateException("History over budget: " + small.memoryUsed());
+                }
+            }
+            int steps = 0;
+            while (small.undo(bounded) >= 0) {
+                steps++;
+            }
+            if (steps == 0 || bounded.getLength() != (1000 - steps) * 10) {
+                throw new IllegalStateException("Bounded history undid " + steps + " steps wrongly");
+            }
+
+            // A replacement over the whole budget on its own is still one step that undoes,
+            // until the next step takes its place
+            String before = bounded.getText(0, bounded.getLength()) + "x".repeat(3000);
+            bounded.insertString(bounded.getLength(), "x".repeat(3000), null);
+            small.breakStep();
+            bounded.replace(0, bounded.getLength(), "y".repeat(before.length()), null);
+            small.breakStep();
+            if (small.memoryUsed() <= 4096 || small.undo(bounded) < 0
+                    || !bounded.getText(0, bounded.getLength()).equals(before)) {
+                throw new IllegalStateException("An edit over the budget could not be undone");
+            }
+            small.redo(bounded);
+            small.breakStep();
+            bounded.insertString(0, "z", null);
+            if (small.memoryUsed() > 4096 || small.undo(bounded) < 0 || small.canUndo()
+                    || !bounded.getText(0, bounded.getLength()).equals("y".repeat(before.length()))) {
+                throw new IllegalStateException("An edit over the budget was kept after the next one");
+            }
+        } catch (BadLocationException e) {
+            throw new IllegalStateException("EditHistory test failed: " + e.getMessage(), e);
+        }
+
+        System.out.println("EditHistory: " + edits + " edits undone and redone, typing coalesced, budget held");
+    }
+}
@@ -0,0 +1,302 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.Random;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.*;
+
+// Append-only log of the edits made since the last full save, kept in memory and appended
+// to a journal file under ~/.notepad/journal. After a crash the edits are replayed on top
+// of the file, provided it still has the size and timestamp recorded in the header. The
+// journal holds the document's text, so only its owner may read the directory and files.
+// Inserted text is stored as UTF-16 chars, which holds any String, a lone surrogate included
+class EditJournal {
+    private static final int MAGIC = 0x4E504A32;
+    private static final byte INSERT = 'I', REMOVE = 'R';
+
+    private Path target;
+    private Path path;
+    private long baseSize, baseModified;
+    private byte[] log = new byte[4096];
+    private int size, synced;
+
+    EditJournal(Path target, BasicFileAttributes base) {
+        setTarget(target, base);
+    }
+
+    private void setTarget(Path target, BasicFileAttributes base) {
+        this.target = target.toAbsolutePath();
+        this.path = pathFor(this.target);
+        this.baseSize = base.size();
+        this.baseModified = base.lastModifiedTime().toMillis();
+    }
+
+    static Path pathFor(Path target) {
+        Path absolute = target.toAbsolutePath();
+        return Paths.get(System.getProperty("user.home"), ".notepad", "journal",
+                absolute.getFileName() + "-" + Integer.toHexString(absolute.toString().hashCode()) + ".journal");
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean hasUnsynced() {
+        return synced < size;
+    }
+
+    // Called on the EDT from the document listener
+
+    void recordInsert(int offset, String text) {
+        ensureCapacity(9 + 2 * text.length());
+        log[size++] = INSERT;
+        putInt(offset);
+        putInt(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            log[size++] = (byte) (c >>> 8);
+            log[size++] = (byte) c;
+        }
+    }
+
+    void recordRemove(int offset, int length) {
+        ensureCapacity(9);
+        log[size++] = REMOVE;
+        putInt(offset);
+        putInt(length);
+    }
+
+    private void putInt(int v) {
+        log[size++] = (byte) (v >>> 24);
+        log[size++] = (byte) (v >>> 16);
+        log[size++] = (byte) (v >>> 8);
+        log[size++] = (byte) v;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (size + extra > log.length) {
+            log = Arrays.copyOf(log, Math.max(log.length * 2, size + extra));
+        }
+    }
+
+    byte[] takeUnsynced() {
+        byte[] records = Arrays.copyOfRange(log, synced, size);
+        synced = size;
+        return records;
+    }
+
+    // Drops the records before mark, now contained in the saved file, and returns the old journal path
+    Path rebase(int mark, Path newTarget, BasicFileAttributes base) {
+        Path previous = path;
+        System.arraycopy(log, mark, log, 0, size - mark);
+        size -= mark;
+        synced = size;
+        setTarget(newTarget, base);
+        return previous;
+    }
+
+    // Header plus every record still in memory, for rewriting the journal file from scratch
+    byte[] image() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + size);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeUTF(target.toString());
+            out.writeLong(baseSize);
+            out.writeLong(baseModified);
+            out.write(log, 0, size);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    // Called on the I/O thread
+
+    void append(byte[] records) throws IOException {
+        if (records.length == 0) return;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ByteBuffer buffer = ByteBuffer.wrap(records);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+    }
+
+    void write(byte[] image) throws IOException {
+        Path directory = path.getParent();
+        Files.createDirectories(directory, ownerOnly(directory, "rwx------"));
+        restrict(directory);
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        // A leftover temporary file would keep whatever permissions it was created with
+        Files.deleteIfExists(temp);
+        try (FileChannel channel = FileChannel.open(temp, java.util.EnumSet.of(StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE), ownerOnly(temp, "rw-------"))) {
+            ByteBuffer buffer = ByteBuffer.wrap(image);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static FileAttribute<?>[] ownerOnly(Path path, String permissions) {
+        if (!path.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            return new FileAttribute<?>[0];
+        }
+        return new FileAttribute<?>[] {PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString(permissions))};
+    }
+
+    // The directory may have been made by an earlier version, with the default permissions
+    private static void restrict(Path directory) {
+        try {
+            Files.setPosixFilePermissions(directory, PosixFilePermissions.fromString("rwx------"));
+        } catch (IOException | UnsupportedOperationException ex) {
+            // Not a POSIX file system, or not ours to change
+        }
+    }
+
+    void delete() {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException ex) {
+            // A stale journal is ignored on the next open because its base no longer matches
+        }
+    }
+
+    // Recovery
+
+    // Records left behind for target, or null if there are none or the file has changed since
+    static byte[] readRecoverable(Path target, BasicFileAttributes current) throws IOException {
+        Path path = pathFor(target);
+        if (!Files.exists(path)) return null;
+
+        byte[] journal = Files.readAllBytes(path);
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(journal))) {
+            if (in.readInt() != MAGIC
+                    || !in.readUTF().equals(target.toAbsolutePath().toString())
+                    || in.readLong() != current.size()
+                    || in.readLong() != current.lastModifiedTime().toMillis()) {
+                return null;
+            }
+            byte[] records = in.readAllBytes();
+            return records.length > 0 ? records : null;
+        } catch (EOFException ex) {
+            return null;
+        }
+    }
+
+    // Applies records in order; a record torn by a crash mid-append ends the replay
+    static void replay(byte[] records, Document document) throws IOException, BadLocationException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(records));
+        try {
+            while (in.available() > 0) {
+                byte type = in.readByte();
+                int offset = in.readInt();
+                int length = in.readInt();
+                if (type == INSERT) {
+                    if (length < 0 || in.available() < 2L * length) return; // Torn final record
+                    char[] text = new char[length];
+                    for (int i = 0; i < length; i++) {
+                        text[i] = in.readChar();
+                    }
+                    document.insertString(offset, new String(text), null);
+                } else if (type == REMOVE) {
+                    document.remove(offset, length);
+                } else {
+                    throw new IOException("Corrupt journal record");
+                }
+            }
+        } catch (EOFException ex) {
+            // Torn final record
+        }
+    }
+
+    // Test method: random edits, with lone surrogates and pairs split between inserts, are
+    // replayed onto the original text, whole and cut off part way through each record
+    static void test() {
+        Random random = new Random(41);
+        String[] pieces = {"a", "word ", "\n", "\u00e9", "\u6f22\u5b57", "\uD83D\uDE00", "\uD83D", "\uDE00", "\uDBFF"};
+        String initial = "first line\nsecond line\n";
+        java.util.List<String> states = new java.util.ArrayList<>();
+        java.util.List<Integer> ends = new java.util.ArrayList<>();
+        try {
+            Path target = Files.createTempFile("notepad-journal", ".txt");
+            try {
+                Files.writeString(target, initial);
+                EditJournal journal = new EditJournal(target, Files.readAttributes(target, BasicFileAttributes.class));
+                PieceTableDocument document = new PieceTableDocument();
+                document.insertString(0, initial, null);
+                document.addDocumentListener(new DocumentListener() {
+                    public void insertUpdate(DocumentEvent e) {
+                        try {
+                            journal.recordInsert(e.getOffset(), e.getDocument().getText(e.getOffset(), e.getLength()));
+                        } catch (BadLocationException ex) {
+                            throw new IllegalStateException(ex);
+                        }
+                    }
+                    public void removeUpdate(DocumentEvent e) {
+                        journal.recordRemove(e.getOffset(), e.getLength());
+                    }
+                    public void changedUpdate(DocumentEvent e) { }
+                });
+                states.add(initial);
+                ends.add(0);
+                for (int step = 0; step < 2000; step++) {
+                    int length = document.getLength();
+                    if (random.nextInt(3) > 0 || length == 0) {
+                        StringBuilder text = new StringBuilder();
+                        for (int n = 1 + random.nextInt(4); n > 0; n--) {
+                            text.append(pieces[random.nextInt(pieces.length)]);
+                        }
+                        document.insertString(random.nextInt(length + 1), text.toString(), null);
+                    } else {
+                        int offset = random.nextInt(length);
+                        document.remove(offset, Math.min(length - offset, 1 + random.nextInt(6)));
+                    }
+                    states.add(document.getText(0, document.getLength()));
+                    ends.add(journal.size());
+                }
+
+                byte[] records = journal.takeUnsynced();
+                for (int round = 0; round < 200; round++) {
+                    int cut = round == 0 ? records.length : random.nextInt(records.length);
+                    PieceTableDocument replayed = new PieceTableDocument();
+                    replayed.insertString(0, initial, null);
+                    replay(Arrays.copyOf(records, cut), replayed);
+                    // Every whole record before the cut is applied, and the torn one is not
+                    int applied = 0;
+                    while (applied + 1 < ends.size() && ends.get(applied + 1) <= cut) {
+                        applied++;
+                    }
+                    if (!replayed.getText(0, replayed.getLength()).equals(states.get(applied))) {
+                        throw new IllegalStateException("EditJournal replayed " + cut + " of " + records.length
+                                + " bytes to different text than after edit " + applied);
+                    }
+                }
+            } finally {
+                Files.delete(target);
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        } catch (BadLocationException ex) {
+            throw new IllegalStateException(ex);
+        }
+        System.out.println("EditJournal: 2000 edits with lone surrogates replayed, whole and torn, passed");
+    }
+}
@@ -0,0 +1,310 @@
+import javax.swing.*;
+import java.awt.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+
+// Benchmarks of the editing engine, run without the GUI:
+//   java -Xmx6g Notepad --bench [--sizes 1k,1m,64m,1g] [--only edit,find.literal,...]
+//       [--warmup 3] [--iterations 5] [--time 1000] [--save FILE] [--baseline FILE]
+// Generated corpora are written to a temporary directory, one file of lines and one single
+// line per size. Every benchmark sets up its own document, runs warmup iterations and then
+// measured ones of about --time ms each, the way JMH does, and reports throughput with its
+// spread across iterations, percentiles of the time each operation took, and what JMH's
+// -prof gc would: bytes allocated per operation, the allocation rate and the collections run.
+// --save records the scores in a properties file and --baseline compares against one
+final class EditorBenchmark {
+    private static final String[] SIZES = {"1k", "1m", "64m"};
+    private static final String[] WORDS = {"the", "of", "and", "editor", "document", "piece", "table",
+            "search", "layout", "wrap", "line", "buffer", "undo", "caret", "font", "paint", "a", "to",
+            "Notepad", "Swing", "benchmark", "\tindent", "x", "quickly", "characters"};
+    // Never in a corpus, so every search reads the whole text
+    private static final String NEEDLE = "zebrafish";
+
+    private interface Operation {
+        void run() throws Exception;
+    }
+
+    private interface Fixture {
+        Operation setUp(Path lines, Path line) throws Exception;
+    }
+
+    private final java.util.Map<String, Fixture> benchmarks = new java.util.LinkedHashMap<>();
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+    private Path directory;
+    private int warmup = 3;
+    private int iterations = 5;
+    private long time = 1000;
+
+    private EditorBenchmark() {
+        Random random = new Random(7);
+        // Typing and deleting at random places, the size staying about the same
+        benchmarks.put("edit", (lines, line) -> {
+            PieceTableDocument document = PieceTableDocument.read(lines, bytes -> { });
+            boolean[] insert = {true};
+            return () -> {
+                int length = document.getLength();
+                if (insert[0] || length < 8) {
+                    document.insertString(random.nextInt(length + 1), "words ", null);
+                } else {
+                    document.remove(random.nextInt(length - 6), 6);
+                }
+                insert[0] = !insert[0];
+            };
+        });
+        // What Find does: a search through a snapshot of the text
+        benchmarks.put("find.literal", (lines, line) -> find(lines, new TextSearch(NEEDLE, false, false)));
+        benchmarks.put("find.regex", (lines, line) -> find(lines, new TextSearch(NEEDLE + "\\d+", true, true)));
+        // What Open and Save do on the I/O thread
+        benchmarks.put("open", (lines, line) -> () -> PieceTableDocument.read(lines, bytes -> { }));
+        benchmarks.put("save", (lines, line) -> {
+            PieceTableDocument document = PieceTableDocument.read(lines, bytes -> { });
+            Path target = directory.resolve("saved.txt");
+            return () -> TextFiles.writeAtomically(target, document.snapshot(), TextEncoding.of(document), "\n",
+                    written -> { });
+        });
+        // Wrapping one long line afresh at a new width and finding a place in it, as a resize would
+        benchmarks.put("wrap", (lines, line) -> {
+            JTextArea area = new JTextArea(PieceTableDocument.read(line, bytes -> { }));
+            area.setUI(new WrapView.TextAreaUI());
+            area.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+            area.setLineWrap(true);
+            area.setWrapStyleWord(true);
+            int[] width = {600};
+            return () -> {
+                width[0] = width[0] == 600 ? 601 : 600;
+                area.setSize(width[0], 1 << 20);
+                area.modelToView2D(random.nextInt(area.getDocument().getLength() + 1));
+            };
+        });
+    }
+
+    private static Operation find(Path lines, TextSearch search) throws IOException {
+        CharSequence text = PieceTableDocument.read(lines, bytes -> { }).snapshot();
+        return () -> {
+            if (search.find(text, 0, true, done -> { }) != null) {
+                throw new IllegalStateException("Found " + NEEDLE + " in a corpus");
+            }
+        };
+    }
+
+    // Returns the process exit status: 0 once every benchmark has run, 2 for bad arguments or files
+    static int main(String[] args) {
+        String[] sizes = SIZES;
+        java.util.Set<String> only = null;
+        String save = null, baseline = null;
+        EditorBenchmark bench = new EditorBenchmark();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (i + 1 == args.length) {
+                    return usage("Missing a value for " + args[i]);
+                }
+                String value = args[++i];
+                switch (args[i - 1]) {
+                    case "--sizes":
+                        sizes = value.split(",");
+                        for (String size : sizes) {
+                            bytes(size);
+                        }
+                        break;
+                    case "--only":
+                        only = new java.util.HashSet<>(Arrays.asList(value.split(",")));
+                        if (!bench.benchmarks.keySet().containsAll(only)) {
+                            return usage("Benchmarks are " + String.join(", ", bench.benchmarks.keySet()));
+                        }
+                        break;
+                    case "--warmup":
+                        bench.warmup = Integer.parseInt(value);
+                        break;
+                    case "--iterations":
+                        bench.iterations = Math.max(1, Integer.parseInt(value));
+                        break;
+                    case "--time":
+                        bench.time = Long.parseLong(value);
+                        break;
+                    case "--save":
+                        save = value;
+                        break;
+                    case "--baseline":
+                        baseline = value;
+                        break;
+                    default:
+                        return usage("Unknown option " + args[i - 1]);
+                }
+            }
+        } catch (NumberFormatException ex) {
+            return usage("Not a number: " + ex.getMessage());
+        }
+
+        java.util.Properties recorded = new java.util.Properties();
+        if (baseline != null) {
+            try (Reader in = Files.newBufferedReader(Paths.get(baseline))) {
+                recorded.load(in);
+            } catch (IOException ex) {
+                return usage("Cannot read the baseline: " + ex.getMessage());
+            }
+        }
+        try {
+            bench.directory = Files.createTempDirectory("notepad-bench");
+        } catch (IOException ex) {
+            return usage("Cannot create a directory for the corpora: " + ex.getMessage());
+        }
+        java.util.Properties scores = new java.util.Properties();
+        System.out.printf("%-13s %5s %15s %8s %10s %10s %10s %14s %11s %5s%s%n", "Benchmark", "Size", "ops/s",
+                "error", "p50", "p99", "max", "alloc/op", "alloc rate", "GCs", baseline != null ? "  vs baseline" : "");
+        try {
+            for (String size : sizes) {
+                Path lines = bench.directory.resolve("lines-" + size + ".txt");
+                Path line = bench.directory.resolve("line-" + size + ".txt");
+                generate(lines, bytes(size), "\n");
+                generate(line, bytes(size), " ");
+                for (java.util.Map.Entry<String, Fixture> benchmark : bench.benchmarks.entrySet()) {
+                    if (only == null || only.contains(benchmark.getKey())) {
+                        bench.run(benchmark.getKey(), size, benchmark.getValue().setUp(lines, line), scores, recorded);
+                    }
+                }
+                Files.delete(lines);
+                Files.delete(line);
+            }
+            if (save != null) {
+                try (Writer out = Files.newBufferedWriter(Paths.get(save))) {
+                    scores.store(out, "java Notepad --bench " + String.join(" ", args));
+                }
+            }
+        } catch (Exception ex) {
+            throw new IllegalStateException("Benchmark failed: " + ex, ex);
+        } finally {
+            try {
+                Files.deleteIfExists(bench.directory.resolve("saved.txt"));
+                Files.deleteIfExists(bench.directory);
+            } catch (IOException ex) {
+                // Left in the temporary directory
+            }
+        }
+        return 0;
+    }
+
+    private static int usage(String problem) {
+        if (problem != null) {
+            System.err.println(problem);
+        }
+        System.err.println("Usage: java Notepad --bench [--sizes 1k,1m,64m,1g] [--only edit,find.literal,...]"
+                + " [--warmup N] [--iterations N] [--time MS] [--save FILE] [--baseline FILE]");
+        return 2;
+    }
+
+    private void run(String name, String size, Operation operation, java.util.Properties scores,
+                     java.util.Properties baseline) throws Exception {
+        for (int i = 0; i < warmup; i++) {
+            iteration(operation, new LatencyHistogram());
+        }
+        // Latencies in nanoseconds here
+        LatencyHistogram latencies = new LatencyHistogram();
+        double[] throughput = new double[iterations];
+        long ops = 0, elapsed = 0, allocated = 0, collections = gcCount();
+        for (int i = 0; i < iterations; i++) {
+            long bytesBefore = threads.getCurrentThreadAllocatedBytes();
+            long start = System.nanoTime();
+            long count = iteration(operation, latencies);
+            long took = System.nanoTime() - start;
+            allocated += threads.getCurrentThreadAllocatedBytes() - bytesBefore;
+            throughput[i] = count * 1e9 / took;
+            ops += count;
+            elapsed += took;
+        }
+        collections = gcCount() - collections;
+
+        double mean = Arrays.stream(throughput).average().orElse(0);
+        double spread = Math.sqrt(Arrays.stream(throughput).map(t -> (t - mean) * (t - mean)).sum() / iterations);
+        long perOp = allocated / Math.max(1, ops);
+        String key = name + "@" + size;
+        String comparison = "";
+        if (baseline.containsKey(key + ".ops")) {
+            double before = Double.parseDouble(baseline.getProperty(key + ".ops"));
+            comparison = String.format("  %+.1f%% ops/s", (mean / before - 1) * 100);
+            if (baseline.containsKey(key + ".alloc")) {
+                comparison += String.format(", %+,d B/op", perOp - Long.parseLong(baseline.getProperty(key + ".alloc")));
+            }
+        }
+        System.out.printf("%-13s %5s %,15.1f %7.1f%% %10s %10s %10s %,12d B %7.1f MB/s %5d%s%n", name, size, mean,
+                mean > 0 ? spread * 100 / mean : 0, duration(latencies.percentile(0.5)),
+                duration(latencies.percentile(0.99)), duration(latencies.max()), perOp,
+                allocated * 1e3 / elapsed, collections, comparison);
+        scores.setProperty(key + ".ops", Double.toString(mean));
+        scores.setProperty(key + ".alloc", Long.toString(perOp));
+        scores.setProperty(key + ".p99", Long.toString(latencies.percentile(0.99)));
+    }
+
+    // Runs the operation for about time ms, however long it takes, at least once
+    private long iteration(Operation operation, LatencyHistogram latencies) throws Exception {
+        long end = System.nanoTime() + time * 1_000_000;
+        long count = 0;
+        for (long now = System.nanoTime(); count == 0 || now < end; count++) {
+            operation.run();
+            long then = now;
+            now = System.nanoTime();
+            latencies.record(now - then);
+        }
+        return count;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (java.lang.management.GarbageCollectorMXBean gc : java.lang.management.ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    // Words from WORDS at random, in lines of 4 to 20 words joined by separator
+    private static void generate(Path file, long size, String separator) throws IOException {
+        Random random = new Random(size);
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file), StandardCharsets.US_ASCII),
+                1 << 16)) {
+            long written = 0;
+            while (written < size) {
+                int words = 4 + random.nextInt(17);
+                for (int i = 0; i < words && written < size; i++) {
+                    String word = WORDS[random.nextInt(WORDS.length)];
+                    String piece = i + 1 < words ? word + " " : word + separator;
+                    int n = (int) Math.min(piece.length(), size - written);
+                    out.write(piece, 0, n);
+                    written += n;
+                }
+            }
+        }
+    }
+
+    // 1k, 64m, 1g or a plain number of bytes
+    private static long bytes(String size) {
+        String digits = size.toLowerCase();
+        int shift = 0;
+        switch (digits.isEmpty() ? ' ' : digits.charAt(digits.length() - 1)) {
+            case 'k':
+                shift = 10;
+                break;
+            case 'm':
+                shift = 20;
+                break;
+            case 'g':
+                shift = 30;
+                break;
+        }
+        if (shift > 0) {
+            digits = digits.substring(0, digits.length() - 1);
+        }
+        return Long.parseLong(digits) << shift;
+    }
+
+    private static String duration(long nanos) {
+        if (nanos < 1_000) return nanos + " ns";
+        if (nanos < 1_000_000) return String.format("%.1f us", nanos / 1e3);
+        if (nanos < 1_000_000_000) return String.format("%.1f ms", nanos / 1e6);
+        return String.format("%.2f s", nanos / 1e9);
+    }
+}
@@ -0,0 +1,12 @@
+@jdk.jfr.Name("notepad.EdtStall")
+@jdk.jfr.Label("EDT Stall")
+@jdk.jfr.Category("Notepad")
+@jdk.jfr.Description("The event dispatch thread did not answer a probe within the stall threshold")
+final class EdtStallEvent extends jdk.jfr.Event {
+    @jdk.jfr.Label("Stall")
+    @jdk.jfr.Timespan(jdk.jfr.Timespan.MILLISECONDS)
+    long stallMillis;
+
+    @jdk.jfr.Label("EDT Stack Trace")
+    String edtStack;
+}
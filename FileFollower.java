@@ -0,0 +1,245 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+
+// Reads whatever has been appended to a file since the last call, decoding across read
+// boundaries, so a growing log can be followed without reading it again. A file that got
+// shorter, or whose bytes just before the read position are not the ones last read there, was
+// truncated, and one with a new identity was rotated; either way reading starts again from the
+// beginning of the file now at the path
+final class FileFollower {
+    private static final int CHUNK = 64 * 1024;
+    // Caps one call, so a burst of output reaches the document in pieces
+    private static final int MAX_READ = 4 * 1024 * 1024;
+    // How many of the last bytes read are kept to tell a truncated and regrown file from one
+    // that was only appended to
+    private static final int TAIL = 64;
+
+    private final Path path;
+    private final TextEncoding encoding;
+    private final CharsetDecoder decoder;
+    private final ByteBuffer bytes = ByteBuffer.allocateDirect(CHUNK);
+    private final CharBuffer chars = CharBuffer.allocate(CHUNK);
+    private Object identity;
+    private java.nio.file.attribute.FileTime modified;
+    private long position;
+    // The bytes just before position as they were when last read
+    private ByteBuffer tail = ByteBuffer.allocate(0);
+    private boolean lastWasCR;
+    private String notice;
+
+    FileFollower(Path path, TextEncoding encoding, long position) throws IOException {
+        this.path = path;
+        this.encoding = encoding;
+        this.position = position;
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        this.identity = identity(attributes);
+        this.modified = attributes.lastModifiedTime();
+        this.decoder = encoding.charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        bytes.flip();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            tail = readTail(channel);
+        }
+    }
+
+    long position() {
+        return position;
+    }
+
+    // Why reading last started over, once; null if it did not
+    String takeNotice() {
+        String taken = notice;
+        notice = null;
+        return taken;
+    }
+
+    // Text appended since the last call with line ends turned into \n, or "" if there is none yet
+    String readAppended() throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException ex) {
+            return ""; // Rotated away, and the new file is not there yet
+        }
+        Object current = identity(attributes);
+        if (!current.equals(identity)) {
+            restart(current, "was replaced");
+        } else if (attributes.size() < position) {
+            restart(current, "was truncated");
+        }
+        // Same size and not written since: nothing new. Written since, the tail is checked even
+        // when the size has not changed, since it may have been truncated and regrown to it
+        if (attributes.size() == position && attributes.lastModifiedTime().equals(modified)) return "";
+        modified = attributes.lastModifiedTime();
+
+        StringBuilder text = new StringBuilder();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (!readTail(channel).equals(tail)) {
+                restart(current, "was truncated");
+            }
+            if (position == 0 && encoding.bom) {
+                skipBom(channel);
+            }
+            channel.position(position);
+            long limit = position + MAX_READ;
+            while (channel.position() < limit) {
+                bytes.compact();
+                int n = channel.read(bytes);
+                bytes.flip();
+                if (n <= 0) break;
+                decoder.decode(bytes, chars, false);
+                append(text);
+                // Bytes of an incomplete char stay in the buffer for the next read
+            }
+            position = channel.position();
+            tail = readTail(channel);
+        }
+        return text.toString();
+    }
+
+    // Up to TAIL bytes ending at position, as the file has them now
+    private ByteBuffer readTail(FileChannel channel) throws IOException {
+        ByteBuffer read = ByteBuffer.allocate((int) Math.min(TAIL, position));
+        while (read.hasRemaining()) {
+            if (channel.read(read, position - read.capacity() + read.position()) <= 0) break;
+        }
+        return read.flip();
+    }
+
+    private void skipBom(FileChannel channel) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(encoding.bomLength());
+        channel.read(head, 0);
+        head.flip();
+        TextEncoding found = TextEncoding.detect(head, encoding.charset);
+        if (found.bom && found.charset.equals(encoding.charset)) {
+            position = head.limit();
+        }
+    }
+
+    private void restart(Object identity, String why) {
+        this.identity = identity;
+        position = 0;
+        tail = ByteBuffer.allocate(0);
+        lastWasCR = false;
+        bytes.clear().flip();
+        decoder.reset();
+        notice = path.getFileName() + " " + why + ", following it from the start";
+    }
+
+    private void append(StringBuilder text) {
+        chars.flip();
+        while (chars.hasRemaining()) {
+            char c = chars.get();
+            if (lastWasCR && c == '\n') {
+                lastWasCR = false;
+                continue;
+            }
+            lastWasCR = c == '\r';
+            text.append(lastWasCR ? '\n' : c);
+        }
+        chars.clear();
+    }
+
+    // The inode where there is one, which a rotated file does not share with the old one
+    private static Object identity(BasicFileAttributes attributes) {
+        Object key = attributes.fileKey();
+        return key != null ? key : attributes.creationTime();
+    }
+
+    // Test method: line ends and chars split across reads, then truncation to less than was read,
+    // truncation and regrowth past it, a rewrite to the same size, and rotation
+    static void test() {
+        Path directory = null;
+        try {
+            directory = Files.createTempDirectory("follow");
+            Path log = directory.resolve("app.log");
+            Files.write(log, "first\r".getBytes(StandardCharsets.UTF_8));
+            FileFollower follower = new FileFollower(log, new TextEncoding(StandardCharsets.UTF_8, false), 0);
+            expect(follower, "first\n", null);
+            append(log, "\nsecond\r\n".getBytes(StandardCharsets.UTF_8));
+            expect(follower, "second\n", null);
+            expect(follower, "", null);
+
+            // \u00e9 is two bytes and the emoji four; each arrives a byte or two at a time
+            byte[] split = "\u00e9\uD83D\uDE00.".getBytes(StandardCharsets.UTF_8);
+            append(log, Arrays.copyOfRange(split, 0, 1));
+            expect(follower, "", null);
+            append(log, Arrays.copyOfRange(split, 1, 3));
+            expect(follower, "\u00e9", null);
+            append(log, Arrays.copyOfRange(split, 3, 5));
+            expect(follower, "", null);
+            append(log, Arrays.copyOfRange(split, 5, split.length));
+            expect(follower, "\uD83D\uDE00.", null);
+
+            Files.write(log, "new\n".getBytes(StandardCharsets.UTF_8));
+            expect(follower, "new\n", "was truncated");
+            append(log, "more\n".getBytes(StandardCharsets.UTF_8));
+            expect(follower, "more\n", null);
+
+            // Truncated and written past where reading had got to before the next poll
+            String regrown = "regrown past the old end\n";
+            Files.write(log, regrown.getBytes(StandardCharsets.UTF_8));
+            expect(follower, regrown, "was truncated");
+
+            // Rewritten to the very same size; only the time and the bytes give it away
+            String same = "REGROWN PAST THE OLD END\n";
+            java.nio.file.attribute.FileTime before = Files.getLastModifiedTime(log);
+            Files.write(log, same.getBytes(StandardCharsets.UTF_8));
+            Files.setLastModifiedTime(log, java.nio.file.attribute.FileTime.fromMillis(before.toMillis() + 10_000));
+            expect(follower, same, "was truncated");
+            // Touched without being changed
+            Files.setLastModifiedTime(log, java.nio.file.attribute.FileTime.fromMillis(before.toMillis() + 20_000));
+            expect(follower, "", null);
+
+            // A follower that starts where loading the file ended knows the bytes it starts after
+            FileFollower loaded = new FileFollower(log, new TextEncoding(StandardCharsets.UTF_8, false), Files.size(log));
+            Files.write(log, "written over the loaded text\n".getBytes(StandardCharsets.UTF_8));
+            expect(loaded, "written over the loaded text\n", "was truncated");
+
+            Files.move(log, directory.resolve("app.log.1"));
+            expect(follower, "", null);
+            Files.write(log, "rotated\n".getBytes(StandardCharsets.UTF_8));
+            expect(follower, "rotated\n", "was replaced");
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        } finally {
+            if (directory != null) {
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+                    for (Path file : files) {
+                        Files.delete(file);
+                    }
+                    Files.delete(directory);
+                } catch (IOException ex) {
+                    System.err.println("FileFollower: could not delete " + directory + ": " + ex.getMessage());
+                }
+            }
+        }
+        System.out.println("FileFollower: split line ends and chars, truncation, regrowth, rewrite and rotation passed");
+    }
+
+    private static void append(Path file, byte[] bytes) throws IOException {
+        Files.write(file, bytes, StandardOpenOption.APPEND);
+    }
+
+    private static void expect(FileFollower follower, String text, String why) throws IOException {
+        String read = follower.readAppended();
+        String notice = follower.takeNotice();
+        if (!read.equals(text) || (why == null ? notice != null : notice == null || !notice.endsWith(why + ", following it from the start"))) {
+            throw new IllegalStateException("FileFollower read \"" + read + "\" with notice " + notice
+                    + ", not \"" + text + "\"" + (why == null ? "" : " after it " + why));
+        }
+    }
+}
@@ -0,0 +1,253 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+
+// Replace All over files from the command line, without starting the GUI:
+//   java Notepad --replace [--regex] [--ignore-case] [--dry-run] FIND REPLACEMENT PATH...
+// A path may be a file, a directory searched recursively, or a glob such as src/**/*.java.
+// Files are replaced in parallel, each read and decoded whole with its detected encoding and,
+// if anything matched, written to a temporary file renamed over the original. Line endings are
+// left as they are, and binary files or ones that do not decode cleanly are skipped
+final class FileReplace {
+    private final TextSearch search;
+    private final String replacement;
+    private final boolean dryRun;
+    private final Charset fallback = Charset.defaultCharset();
+    private final java.util.concurrent.atomic.AtomicInteger filesChanged = new java.util.concurrent.atomic.AtomicInteger();
+    private final java.util.concurrent.atomic.AtomicLong replaced = new java.util.concurrent.atomic.AtomicLong();
+    private final java.util.concurrent.atomic.AtomicInteger failures = new java.util.concurrent.atomic.AtomicInteger();
+
+    FileReplace(TextSearch search, String replacement, boolean dryRun) {
+        this.search = search;
+        this.replacement = replacement;
+        this.dryRun = dryRun;
+    }
+
+    // Returns the process exit status: 0 if every file was handled, 1 if some failed, 2 for bad arguments
+    static int main(String[] args) {
+        boolean regex = false, ignoreCase = false, dryRun = false;
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("--"); i++) {
+            switch (args[i]) {
+                case "--regex":
+                    regex = true;
+                    break;
+                case "--ignore-case":
+                    ignoreCase = true;
+                    break;
+                case "--dry-run":
+                    dryRun = true;
+                    break;
+                default:
+                    return usage("Unknown option " + args[i]);
+            }
+        }
+        if (args.length - i < 3) {
+            return usage(null);
+        }
+        TextSearch search;
+        try {
+            search = new TextSearch(args[i], !ignoreCase, regex);
+        } catch (IllegalArgumentException ex) {
+            return usage("Invalid search: " + ex.getMessage());
+        }
+        FileReplace replace = new FileReplace(search, args[i + 1], dryRun);
+        java.util.List<Path> files;
+        try {
+            files = files(Arrays.asList(args).subList(i + 2, args.length));
+        } catch (IOException | UncheckedIOException ex) {
+            return usage("Cannot list files: " + ex.getMessage());
+        }
+        files.parallelStream().forEach(replace::replaceIn);
+
+        System.out.println((dryRun ? "Would replace " : "Replaced ") + replace.replaced + " matches in "
+                + replace.filesChanged + " of " + files.size() + " files");
+        return replace.failures.get() > 0 ? 1 : 0;
+    }
+
+    private static int usage(String problem) {
+        if (problem != null) {
+            System.err.println(problem);
+        }
+        System.err.println("Usage: java Notepad --replace [--regex] [--ignore-case] [--dry-run] FIND REPLACEMENT PATH...");
+        return 2;
+    }
+
+    // Expands the paths into regular files, keeping the order they were given in
+    static java.util.List<Path> files(java.util.List<String> paths) throws IOException {
+        java.util.Set<Path> files = new java.util.LinkedHashSet<>();
+        for (String path : paths) {
+            int glob = indexOfGlob(path);
+            if (glob < 0) {
+                Path file = Paths.get(path);
+                if (Files.isDirectory(file)) {
+                    walk(file, candidate -> true, files);
+                } else if (Files.isRegularFile(file)) {
+                    files.add(file);
+                } else {
+                    throw new NoSuchFileException(path);
+                }
+                continue;
+            }
+            // The directories before the first wildcard are where the walk starts
+            int cut = Math.max(path.lastIndexOf('/', glob), path.lastIndexOf(File.separatorChar, glob));
+            Path base = Paths.get(cut < 0 ? "." : cut == 0 ? path.substring(0, 1) : path.substring(0, cut));
+            PathMatcher matcher = base.getFileSystem().getPathMatcher("glob:" + path.substring(cut + 1));
+            if (Files.isDirectory(base)) {
+                walk(base, candidate -> matcher.matches(base.relativize(candidate)), files);
+            }
+        }
+        return new java.util.ArrayList<>(files);
+    }
+
+    private static int indexOfGlob(String path) {
+        for (int i = 0; i < path.length(); i++) {
+            if ("*?[{".indexOf(path.charAt(i)) >= 0) return i;
+        }
+        return -1;
+    }
+
+    private static void walk(Path root, java.util.function.Predicate<Path> filter, java.util.Set<Path> files)
+            throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) {
+                return FileSearch.SKIPPED_DIRECTORIES.contains(String.valueOf(directory.getFileName()))
+                        && !directory.equals(root) ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                if (attributes.isRegularFile() && filter.test(file)) {
+                    files.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException ex) {
+                System.err.println(file + ": " + ex.getMessage());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void replaceIn(Path file) {
+        try {
+            ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(file));
+            TextEncoding encoding = TextEncoding.detect(bytes, fallback);
+            if (encoding.isBinary(bytes)) return;
+
+            bytes.position(Math.min(encoding.bomLength(), bytes.limit()));
+            CharBuffer text;
+            try {
+                text = TextFiles.decoder(encoding.charset, CodingErrorAction.REPORT).decode(bytes);
+            } catch (CharacterCodingException ex) {
+                System.err.println(file + ": skipped, not valid " + encoding.charset.name());
+                return;
+            }
+            TextSearch.Replacement result = search.replaceAll(text, replacement, scanned -> {});
+            if (result == null) return;
+
+            if (!dryRun) {
+                TextFiles.writeAtomically(file, result.applyTo(text), encoding, "\n", written -> {});
+            }
+            filesChanged.incrementAndGet();
+            replaced.addAndGet(result.count);
+            System.out.println(file + ": " + result.count + (result.count == 1 ? " match" : " matches"));
+        } catch (IOException | RuntimeException ex) {
+            failures.incrementAndGet();
+            System.err.println(file + ": " + (ex.getMessage() != null ? ex.getMessage() : ex.toString()));
+        }
+    }
+
+    // Test method: runs the command line over a temporary tree, with its output captured,
+    // and checks what each kind of file holds afterwards
+    static void test() {
+        java.io.PrintStream out = System.out, err = System.err;
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        try {
+            Path root = Files.createTempDirectory("notepad-replace");
+            try {
+                byte[] utf16 = "\uFEFFfoo and Foo\n".getBytes(StandardCharsets.UTF_16LE);
+                byte[] binary = {'f', 'o', 'o', 0, 1, 2};
+                Files.createDirectories(root.resolve("sub"));
+                Files.createDirectories(root.resolve(".git"));
+                Files.writeString(root.resolve("crlf.txt"), "foo bar\r\nfooo\r\n");
+                Files.write(root.resolve("sub").resolve("wide.txt"), utf16);
+                Files.write(root.resolve("binary.dat"), binary);
+                Files.writeString(root.resolve(".git").resolve("config"), "foo");
+                Files.writeString(root.resolve("other.md"), "foo");
+                String tree = root.toString();
+
+                System.setOut(new java.io.PrintStream(printed, true));
+                System.setErr(new java.io.PrintStream(printed, true));
+                int bad = main(new String[] {"--bogus", "foo", "bar", tree});
+                int dry = main(new String[] {"--dry-run", "foo", "bar", tree});
+                String dryRun = Files.readString(root.resolve("crlf.txt"));
+                int literal = main(new String[] {"foo", "bar", tree});
+                int regex = main(new String[] {"--regex", "--ignore-case", "b(a)r", "<$1>", tree + "/*.txt"});
+                System.setOut(out);
+                System.setErr(err);
+
+                if (bad != 2 || dry != 0 || literal != 0 || regex != 0) {
+                    throw new IllegalStateException("FileReplace exited with " + bad + ", " + dry + ", " + literal
+                            + " and " + regex + ":\n" + printed);
+                }
+                if (!dryRun.equals("foo bar\r\nfooo\r\n")) {
+                    throw new IllegalStateException("FileReplace changed a file on a dry run");
+                }
+                // The glob only takes .txt files directly in the tree, so wide.txt keeps "bar"
+                String[][] expected = {
+                        {"crlf.txt", "<a> <a>\r\n<a>o\r\n"},
+                        {"sub/wide.txt", "bar and Foo\n"},
+                        {".git/config", "foo"},
+                        {"other.md", "bar"},
+                };
+                for (String[] file : expected) {
+                    byte[] bytes = Files.readAllBytes(root.resolve(file[0]));
+                    String text = file[0].startsWith("sub/") ? new String(bytes, StandardCharsets.UTF_16LE)
+                            : new String(bytes, StandardCharsets.UTF_8);
+                    if (!text.equals(file[0].startsWith("sub/") ? "\uFEFF" + file[1] : file[1])) {
+                        throw new IllegalStateException("FileReplace left " + file[0] + " as " + text);
+                    }
+                }
+                if (!Arrays.equals(Files.readAllBytes(root.resolve("binary.dat")), binary)) {
+                    throw new IllegalStateException("FileReplace changed a binary file");
+                }
+            } finally {
+                System.setOut(out);
+                System.setErr(err);
+                Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                        Files.delete(file);
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult postVisitDirectory(Path directory, IOException ex) throws IOException {
+                        Files.delete(directory);
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        System.out.println("FileReplace: options, dry run, literal and regex runs, encodings and skipped files passed");
+    }
+}
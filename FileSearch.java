@@ -0,0 +1,351 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CancellationException;
+
+// Searches every text file under a directory for a TextSearch on a fork-join pool. Small
+// files are read into a per-thread direct buffer and big ones are mapped; each file's
+// encoding is detected, and files with a NUL byte near the start count as binary and are skipped. Hits go to the consumer as they are
+// found, from whichever pool thread found them
+final class FileSearch {
+    // Directories that hold version control data rather than sources
+    static final java.util.Set<String> SKIPPED_DIRECTORIES = java.util.Set.of(".git", ".hg", ".svn");
+    private static final int DIRECT_READ_LIMIT = 1024 * 1024;
+    private static final int FILES_PER_TASK = 8;
+    private static final int MAX_LINE_TEXT = 200;
+
+    // A match, with its one-based line and the match columns within that line
+    static final class Hit {
+        final Path file;
+        final int line;
+        final int start, end;
+        final String lineText;
+        private final Path root;
+
+        Hit(Path root, Path file, int line, int start, int end, String lineText) {
+            this.root = root;
+            this.file = file;
+            this.line = line;
+            this.start = start;
+            this.end = end;
+            this.lineText = lineText;
+        }
+
+        @Override
+        public String toString() {
+            return root.relativize(file) + ":" + line + ": " + lineText;
+        }
+    }
+
+    interface HitConsumer {
+        void hit(Hit hit);
+    }
+
+    // Buffers reused by each pool thread from file to file
+    private static final class Buffers {
+        final ByteBuffer direct = ByteBuffer.allocateDirect(DIRECT_READ_LIMIT);
+        CharBuffer chars = CharBuffer.allocate(0);
+    }
+
+    private final Path root;
+    private final TextSearch search;
+    private final PathMatcher fileFilter;
+    private final long maxFileSize;
+    private HitConsumer hits;
+    private final Charset fallback;
+    private final ThreadLocal<Buffers> buffers = ThreadLocal.withInitial(Buffers::new);
+    private final java.util.concurrent.atomic.AtomicInteger filesSearched = new java.util.concurrent.atomic.AtomicInteger();
+    private final java.util.concurrent.atomic.AtomicInteger hitCount = new java.util.concurrent.atomic.AtomicInteger();
+    private final int maxHits;
+    private volatile boolean stopped;
+
+    FileSearch(Path root, TextSearch search, String fileGlob, long maxFileSize, int maxHits, Charset charset) {
+        this.root = root;
+        this.search = search;
+        this.fileFilter = fileGlob.isEmpty() || fileGlob.equals("*")
+                ? path -> true : root.getFileSystem().getPathMatcher("glob:" + fileGlob);
+        this.maxFileSize = maxFileSize;
+        this.maxHits = maxHits;
+        this.fallback = charset;
+    }
+
+    int filesSearched() {
+        return filesSearched.get();
+    }
+
+    int hitCount() {
+        return hitCount.get();
+    }
+
+    // Lets the pool threads finish the file they are on and then drop the rest
+    void stop() {
+        stopped = true;
+    }
+
+    boolean isStopped() {
+        return stopped;
+    }
+
+    void run(java.util.concurrent.ForkJoinPool pool, HitConsumer hits) {
+        this.hits = hits;
+        pool.invoke(new DirectoryTask(root));
+    }
+
+    private final class DirectoryTask extends java.util.concurrent.RecursiveAction {
+        private final Path directory;
+
+        DirectoryTask(Path directory) {
+            this.directory = directory;
+        }
+
+        @Override
+        protected void compute() {
+            if (stopped) return;
+
+            java.util.List<java.util.concurrent.RecursiveAction> tasks = new java.util.ArrayList<>();
+            java.util.List<Path> files = new java.util.ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                for (Path entry : entries) {
+                    // Symbolic links are not followed, so a link cycle cannot trap the walk
+                    if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                        if (!SKIPPED_DIRECTORIES.contains(entry.getFileName().toString())) {
+                            tasks.add(new DirectoryTask(entry));
+                        }
+                    } else if (Files.isRegularFile(entry, LinkOption.NOFOLLOW_LINKS)
+                            && fileFilter.matches(entry.getFileName())) {
+                        files.add(entry);
+                    }
+                }
+            } catch (IOException | DirectoryIteratorException ex) {
+                // Unreadable directories are skipped like binary files
+            }
+            if (!files.isEmpty()) {
+                tasks.add(new FilesTask(files, 0, files.size()));
+            }
+            invokeAll(tasks);
+        }
+    }
+
+    private final class FilesTask extends java.util.concurrent.RecursiveAction {
+        private final java.util.List<Path> files;
+        private final int from, to;
+
+        FilesTask(java.util.List<Path> files, int from, int to) {
+            this.files = files;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > FILES_PER_TASK) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new FilesTask(files, from, mid), new FilesTask(files, mid, to));
+                return;
+            }
+            for (int i = from; i < to && !stopped; i++) {
+                try {
+                    searchFile(files.get(i));
+                } catch (IOException ex) {
+                    // Files that vanish or cannot be read are skipped
+                }
+            }
+        }
+    }
+
+    private void searchFile(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size == 0 || size > maxFileSize) return;
+
+            Buffers buffers = this.buffers.get();
+            ByteBuffer bytes;
+            if (size <= DIRECT_READ_LIMIT) {
+                bytes = buffers.direct;
+                bytes.clear();
+                while (bytes.position() < size && channel.read(bytes) > 0) {
+                    // Keep reading until the whole file is in the buffer
+                }
+                bytes.flip();
+            } else {
+                bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            TextEncoding encoding = TextEncoding.detect(bytes, fallback);
+            if (encoding.isBinary(bytes)) return;
+
+            bytes.position(Math.min(encoding.bomLength(), bytes.limit()));
+            CharBuffer text = decode(bytes, encoding.charset, buffers);
+            filesSearched.incrementAndGet();
+            // The line number, the offset where it starts, and how far line breaks have been
+            // counted, so many hits on one long line do not each rescan it from its start
+            int[] line = {1, 0, 0};
+            search.findAll(text, (start, end) -> {
+                if (stopped) {
+                    throw new CancellationException();
+                }
+                for (int i = line[2]; i < start; i++) {
+                    if (isLineBreak(text, i)) {
+                        line[0]++;
+                        line[1] = i + 1;
+                    }
+                }
+                line[2] = Math.max(line[2], start);
+                hit(file, text, line[0], line[1], start, end);
+            }, scanned -> {});
+        } catch (CancellationException ex) {
+            // Stopped part way through the file
+        }
+    }
+
+    // A line ends at LF, CRLF or a lone CR, as the editor splits lines when it loads the file
+    private static boolean isLineBreak(CharBuffer text, int i) {
+        char c = text.get(i);
+        return c == '\n' || c == '\r' && (i + 1 == text.limit() || text.get(i + 1) != '\n');
+    }
+
+    private void hit(Path file, CharBuffer text, int line, int lineStart, int start, int end) {
+        // Show at most MAX_LINE_TEXT chars of a long line, around the match
+        int from = Math.max(lineStart, start - MAX_LINE_TEXT / 2);
+        int lineEnd = start;
+        while (lineEnd < text.limit() && lineEnd - from < MAX_LINE_TEXT && text.get(lineEnd) != '\n') {
+            lineEnd++;
+        }
+        String lineText = text.subSequence(from, lineEnd).toString().replace('\r', ' ').replace('\t', ' ').trim();
+        int n = hitCount.incrementAndGet();
+        if (n > maxHits) {
+            stopped = true;
+            throw new CancellationException();
+        }
+        hits.hit(new Hit(root, file, line, start - lineStart, end - lineStart, lineText));
+    }
+
+    private CharBuffer decode(ByteBuffer bytes, Charset charset, Buffers buffers) throws CharacterCodingException {
+        CharsetDecoder decoder = TextFiles.decoder(charset, CodingErrorAction.REPLACE);
+        int capacity = (int) Math.min(Integer.MAX_VALUE - 8, (long) (bytes.remaining() * (double) decoder.maxCharsPerByte()) + 1);
+        if (buffers.chars.capacity() < capacity) {
+            buffers.chars = CharBuffer.allocate(capacity);
+        }
+        CharBuffer chars = buffers.chars;
+        chars.clear();
+        CoderResult result = decoder.decode(bytes, chars, true);
+        if (result.isError()) {
+            result.throwException();
+        }
+        decoder.flush(chars);
+        chars.flip();
+        // Only the mapped buffers of big files hold on to a large CharBuffer; drop those after use
+        if (capacity > DIRECT_READ_LIMIT * 4) {
+            buffers.chars = CharBuffer.allocate(0);
+        }
+        return chars;
+    }
+
+    static void test() {
+        try {
+            Path root = Files.createTempDirectory("notepad-search");
+            try {
+                // More files than one task takes, so the list is split between tasks
+                int files = FILES_PER_TASK * 5 + 3;
+                for (int i = 0; i < files; i++) {
+                    Files.writeString(root.resolve("file" + i + ".txt"), "line one\nthe needle " + i + "\n");
+                }
+                Files.write(root.resolve("binary.dat"), new byte[] {'n', 'e', 'e', 'd', 'l', 'e', 0, 1, 2});
+                Files.writeString(root.resolve("crlf.txt"), "first\r\nsecond needle\r\n\r\nneedle\rafter needle");
+                // One long line full of hits, which used to rescan the line from its start for each
+                StringBuilder longLine = new StringBuilder("start\n");
+                for (int i = 0; i < 200_000; i++) {
+                    longLine.append("needle ");
+                }
+                Files.writeString(root.resolve("long.txt"), longLine);
+
+                java.util.concurrent.ForkJoinPool pool = new java.util.concurrent.ForkJoinPool(1);
+                try {
+                    java.util.Map<String, java.util.List<Hit>> byFile = new java.util.concurrent.ConcurrentHashMap<>();
+                    FileSearch search = new FileSearch(root, new TextSearch("needle", true, false), "*", 1 << 24,
+                            Integer.MAX_VALUE, StandardCharsets.UTF_8);
+                    long started = System.nanoTime();
+                    search.run(pool, hit -> byFile.computeIfAbsent(hit.file.getFileName().toString(),
+                            name -> java.util.Collections.synchronizedList(new java.util.ArrayList<>())).add(hit));
+                    long millis = (System.nanoTime() - started) / 1_000_000;
+                    if (byFile.containsKey("binary.dat")) {
+                        throw new IllegalStateException("FileSearch searched a binary file");
+                    }
+                    for (int i = 0; i < files; i++) {
+                        java.util.List<Hit> hits = byFile.get("file" + i + ".txt");
+                        if (hits == null || hits.size() != 1 || hits.get(0).line != 2 || hits.get(0).start != 4) {
+                            throw new IllegalStateException("FileSearch found " + hits + " in file" + i + ".txt");
+                        }
+                    }
+                    java.util.List<Hit> crlf = byFile.get("crlf.txt");
+                    int[][] expected = {{2, 7}, {4, 0}, {5, 6}};
+                    for (int i = 0; i < expected.length; i++) {
+                        if (crlf == null || crlf.size() != expected.length || crlf.get(i).line != expected[i][0]
+                                || crlf.get(i).start != expected[i][1] || crlf.get(i).end != expected[i][1] + 6) {
+                            throw new IllegalStateException("FileSearch found " + crlf + " in a CRLF file");
+                        }
+                    }
+                    java.util.List<Hit> longHits = byFile.get("long.txt");
+                    Hit last = longHits.get(longHits.size() - 1);
+                    if (longHits.size() != 200_000 || last.line != 2 || last.start != 199_999 * 7
+                            || last.lineText.length() > MAX_LINE_TEXT) {
+                        throw new IllegalStateException("FileSearch found " + longHits.size() + " hits on a long line, the last "
+                                + last.line + ":" + last.start);
+                    }
+                    if (search.filesSearched() != files + 2 || search.hitCount() != files + 3 + 200_000) {
+                        throw new IllegalStateException("FileSearch searched " + search.filesSearched() + " files and counted "
+                                + search.hitCount() + " hits");
+                    }
+
+                    // Stopping from the first hit drops the rest of that file and every file after it
+                    java.util.List<Hit> stoppedHits = java.util.Collections.synchronizedList(new java.util.ArrayList<>());
+                    FileSearch stopping = new FileSearch(root, new TextSearch("needle", true, false), "*", 1 << 24,
+                            Integer.MAX_VALUE, StandardCharsets.UTF_8);
+                    stopping.run(pool, hit -> {
+                        stoppedHits.add(hit);
+                        stopping.stop();
+                    });
+                    if (stoppedHits.size() != 1 || stopping.filesSearched() != 1) {
+                        throw new IllegalStateException("FileSearch went on to " + stoppedHits.size() + " hits in "
+                                + stopping.filesSearched() + " files after being stopped");
+                    }
+
+                    // The hit limit stops the search the same way
+                    java.util.List<Hit> limitedHits = java.util.Collections.synchronizedList(new java.util.ArrayList<>());
+                    FileSearch limited = new FileSearch(root, new TextSearch("needle", true, false), "*.txt", 1 << 24,
+                            5, StandardCharsets.UTF_8);
+                    limited.run(pool, limitedHits::add);
+                    if (limitedHits.size() != 5 || !limited.isStopped()) {
+                        throw new IllegalStateException("FileSearch passed " + limitedHits.size() + " hits with a limit of 5");
+                    }
+                    System.out.println("FileSearch: " + search.filesSearched() + " files and " + search.hitCount()
+                            + " hits in " + millis + " ms, binary skip, CRLF lines and stopping passed");
+                } finally {
+                    pool.shutdown();
+                }
+            } finally {
+                try (java.util.stream.Stream<Path> paths = Files.list(root)) {
+                    for (Path path : (Iterable<Path>) paths::iterator) {
+                        Files.delete(path);
+                    }
+                }
+                Files.delete(root);
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+}
@@ -0,0 +1,17 @@
+@jdk.jfr.Name("notepad.Keystroke")
+@jdk.jfr.Label("Keystroke to Paint")
+@jdk.jfr.Category("Notepad")
+@jdk.jfr.Description("From a key event to the end of the paint that shows it")
+final class KeystrokeEvent extends jdk.jfr.Event {
+    @jdk.jfr.Label("Edit")
+    @jdk.jfr.Timespan(jdk.jfr.Timespan.MICROSECONDS)
+    long editMicros;
+
+    @jdk.jfr.Label("Wait and Layout")
+    @jdk.jfr.Timespan(jdk.jfr.Timespan.MICROSECONDS)
+    long layoutMicros;
+
+    @jdk.jfr.Label("Paint")
+    @jdk.jfr.Timespan(jdk.jfr.Timespan.MICROSECONDS)
+    long paintMicros;
+}
@@ -3,29 +3,6 @@ import java.util.regex.*;
 import java.io.*;
 import java.nio.file.*;
 
-// Token types for lexical analysis
-enum TokenType {
-    COMMAND, TEXT, LBRACE, RBRACE, LBRACKET, RBRACKET, NEWLINE, EOF, MATH_INLINE, MATH_DISPLAY
-}
-
-// Token class
-class Token {
-    TokenType type;
-    String value;
-    int position;
-    
-    Token(TokenType type, String value, int position) {
-        this.type = type;
-        this.value = value;
-        this.position = position;
-    }
-    
-    @Override
-    public String toString() {
-        return String.format("Token(%s, '%s', %d)", type, value, position);
-    }
-}
-
 // AST Node types
 abstract class ASTNode {
     abstract String toHTML();
@@ -213,123 +190,6 @@ class DocumentNode extends ASTNode {
     }
 }
 
-// Lexer class
-class LaTeXLexer {
-    private String input;
-    private int position;
-    private List<Token> tokens;
-    
-    LaTeXLexer(String input) {
-        this.input = input;
-        this.position = 0;
-        this.tokens = new ArrayList<>();
-    }
-    
-    List<Token> tokenize() {
-        while (position < input.length()) {
-            char ch = input.charAt(position);
-            
-            if (ch == '\\') {
-                readCommand();
-            } else if (ch == '{') {
-                tokens.add(new Token(TokenType.LBRACE, "{", position));
-                position++;
-            } else if (ch == '}') {
-                tokens.add(new Token(TokenType.RBRACE, "}", position));
-                position++;
-            } else if (ch == '[') {
-                tokens.add(new Token(TokenType.LBRACKET, "[", position));
-                position++;
-            } else if (ch == ']') {
-                tokens.add(new Token(TokenType.RBRACKET, "]", position));
-                position++;
-            } else if (ch == '$') {
-                readMath();
-            } else if (ch == '\n') {
-                tokens.add(new Token(TokenType.NEWLINE, "\n", position));
-                position++;
-            } else if (Character.isWhitespace(ch)) {
-                position++; // Skip whitespace except newlines
-            } else {
-                readText();
-            }
-        }
-        
-        tokens.add(new Token(TokenType.EOF, "", position));
-        return tokens;
-    }
-    
-    private void readCommand() {
-        int start = position;
-        position++; // Skip backslash
-        
-        if (position < input.length() && input.charAt(position) == '\\') {
-            // Double backslash
-            position++;
-            tokens.add(new Token(TokenType.COMMAND, "\\\\", start));
-            return;
-        }
-        
-        StringBuilder command = new StringBuilder();
-        while (position < input.length() && 
-               (Character.isLetter(input.charAt(position)) || 
-                (command.length() == 0 && !Character.isLetter(input.charAt(position))))) {
-            command.append(input.charAt(position));
-            position++;
-            if (!Character.isLetter(input.charAt(position - 1))) break;
-        }
-        
-        tokens.add(new Token(TokenType.COMMAND, command.toString(), start));
-    }
-    
-    private void readText() {
-        int start = position;
-        StringBuilder text = new StringBuilder();
-        
-        while (position < input.length()) {
-            char ch = input.charAt(position);
-            if (ch == '\\' || ch == '{' || ch == '}' || ch == '[' || ch == ']' || 
-                ch == '$' || ch == '\n') {
-                break;
-            }
-            text.append(ch);
-            position++;
-        }
-        
-        if (text.length() > 0) {
-            tokens.add(new Token(TokenType.TEXT, text.toString(), start));
-        }
-    }
-    
-    private void readMath() {
-        int start = position;
-        position++; // Skip first $
-        
-        boolean isDisplayMode = false;
-        if (position < input.length() && input.charAt(position) == '$') {
-            isDisplayMode = true;
-            position++; // Skip second $
-        }
-        
-        StringBuilder math = new StringBuilder();
-        while (position < input.length()) {
-            char ch = input.charAt(position);
-            if (ch == '$') {
-                position++;
-                if (isDisplayMode && position < input.length() && input.charAt(position) == '$') {
-                    position++; // Skip second $
-                }
-                break;
-            }
-            math.append(ch);
-            position++;
-        }
-        
-        TokenType type = isDisplayMode ? TokenType.MATH_DISPLAY : TokenType.MATH_INLINE;
-        tokens.add(new Token(type, math.toString(), start));
-    }
-}
-
 // Parser class
 class LaTeXParser {
     private List<Token> tokens;
@@ -432,7 +292,7 @@ class LaTeXParser {
     }
     
     private boolean isAtEnd() {
-        return position >= tokens.size() || getCurrentToken().type == TokenType.EOF;
+        return position >= tokens.size() || tokens.get(position).type == TokenType.EOF;
     }
     
     private boolean match(TokenType... types) {
@@ -487,13 +347,7 @@ public class LaTeXCompiler {
     
     public static String compile(String latexSource) {
         try {
-            // Lexical analysis
-            LaTeXLexer lexer = new LaTeXLexer(latexSource);
-            List<Token> tokens = lexer.tokenize();
-            
-            // Syntax analysis
-            LaTeXParser parser = new LaTeXParser(tokens);
-            DocumentNode ast = parser.parse();
+            DocumentNode ast = parse(latexSource);
             
             // Code generation
             String html = ast.toHTML();
@@ -524,6 +378,67 @@ public class LaTeXCompiler {
         }
     }
     
+    // Lexes and parses, giving up between the stages once the thread is interrupted
+    static DocumentNode parse(String latexSource) throws InterruptedException {
+        // Lexical analysis
+        LaTeXLexer lexer = new LaTeXLexer(latexSource);
+        List<Token> tokens = lexer.tokenize();
+        if (Thread.interrupted()) throw new InterruptedException();
+        
+        // Syntax analysis
+        LaTeXParser parser = new LaTeXParser(tokens);
+        DocumentNode ast = parser.parse();
+        if (Thread.interrupted()) throw new InterruptedException();
+        return ast;
+    }
+    
+    // Compiles to consecutive pieces of HTML of about partChars each, for a viewer that lays out
+    // one piece at a time. Outside environments, a piece ends before a heading, \par, display
+    // math or environment, or at a blank line. Text running on for twice that without one is
+    // also broken at a line end, where the viewer starts a new line. The MathJax script is left
+    // out, as it only matters to a browser. Gives up between pieces once the thread is interrupted
+    static List<String> compileParts(String latexSource, int partChars) throws InterruptedException {
+        DocumentNode ast = parse(latexSource);
+        List<String> parts = new ArrayList<>();
+        StringBuilder part = new StringBuilder();
+        int depth = 0;
+        int newlines = 0;
+        for (ASTNode node : ast.children) {
+            boolean block = isBlock(node) || newlines >= 2;
+            if (depth == 0 && (part.length() >= partChars && block || part.length() >= 2 * partChars && newlines > 0)) {
+                parts.add(part.toString());
+                part.setLength(0);
+                if (Thread.interrupted()) throw new InterruptedException();
+            }
+            part.append(node.toHTML());
+            if (node instanceof CommandNode && !((CommandNode) node).arguments.isEmpty()
+                    && !"document".equals(((CommandNode) node).arguments.get(0).toHTML())) {
+                String command = ((CommandNode) node).command;
+                if (command.equals("begin")) {
+                    depth++;
+                } else if (command.equals("end")) {
+                    depth = Math.max(0, depth - 1);
+                }
+            }
+            // A newline is parsed as a space; no other text is just that
+            newlines = node instanceof TextNode && ((TextNode) node).content.equals(" ") ? newlines + 1 : 0;
+        }
+        parts.add(part.toString());
+        return parts;
+    }
+    
+    private static boolean isBlock(ASTNode node) {
+        if (node instanceof MathNode) {
+            return ((MathNode) node).isDisplayMode;
+        }
+        if (node instanceof CommandNode) {
+            String command = ((CommandNode) node).command;
+            return command.equals("section") || command.equals("subsection") || command.equals("subsubsection")
+                    || command.equals("par") || command.equals("begin");
+        }
+        return false;
+    }
+    
     // Test method
     public static void test() {
         String sampleLatex = """
@@ -0,0 +1,252 @@
+import java.awt.*;
+import java.util.Arrays;
+import java.util.Random;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.*;
+
+// Colours LaTeX for the text area from LaTeXLexer tokens, a line at a time. The only lexer state
+// that carries across a line break is an unclosed $ or $$, so every line element is mapped to
+// the state it starts and ends in. Lines before validLines have states that are known to be
+// right. An edit lexes its own lines again, then carries on down until a line starts in the
+// state it had before, and other lines are lexed only once they are painted, so an edit costs
+// the lines it changes and a paint the lines on screen
+final class LaTeXHighlighter implements DocumentListener {
+    static final String PROPERTY = "LaTeXHighlighter";
+    // An edit that changes more lines than this, say by opening a $ near the top of a long
+    // file, leaves the rest to be lexed as it is painted
+    private static final int RELEX_BUDGET = 2000;
+    private static final TokenType[] STATES = {null, TokenType.MATH_INLINE, TokenType.MATH_DISPLAY};
+    private static final Color COMMAND = new Color(0, 0, 180);
+    private static final Color BRACE = new Color(140, 0, 140);
+    private static final Color MATH_INLINE = new Color(0, 120, 50);
+    private static final Color MATH_DISPLAY = new Color(0, 110, 120);
+
+    private final Document document;
+    private final Runnable onRestyled;
+    // Start state * 4 + end state, as indexes into STATES
+    private final java.util.Map<Element, Integer> states = new java.util.WeakHashMap<>();
+    private int validLines;
+    private int lineCount;
+    // Tokens of the line last asked about, as document offsets
+    private Element tokenLine;
+    private int[] tokenStarts = new int[0];
+    private Color[] tokenColors = new Color[0];
+    private int runEnd;
+
+    private LaTeXHighlighter(Document document, Runnable onRestyled) {
+        this.document = document;
+        this.onRestyled = onRestyled;
+        this.lineCount = document.getDefaultRootElement().getElementCount();
+    }
+
+    static LaTeXHighlighter of(Document document) {
+        Object highlighter = document.getProperty(PROPERTY);
+        return highlighter instanceof LaTeXHighlighter ? (LaTeXHighlighter) highlighter : null;
+    }
+
+    // Turns highlighting of document on or off; onRestyled is told when lines other than the
+    // edited ones change colour, so they can be repainted
+    static void attach(Document document, boolean on, Runnable onRestyled) {
+        LaTeXHighlighter current = of(document);
+        if (on && current == null) {
+            LaTeXHighlighter highlighter = new LaTeXHighlighter(document, onRestyled);
+            document.addDocumentListener(highlighter);
+            document.putProperty(PROPERTY, highlighter);
+        } else if (!on && current != null) {
+            document.removeDocumentListener(current);
+            document.putProperty(PROPERTY, null);
+        }
+    }
+
+    // The colour of the text at offset, or null for the plain text colour; it holds up to runEnd()
+    Color colorAt(int offset) {
+        Element root = document.getDefaultRootElement();
+        int index = root.getElementIndex(offset);
+        Element line = root.getElement(index);
+        if (line != tokenLine) {
+            lexTokens(index, line);
+        }
+        int i = Arrays.binarySearch(tokenStarts, offset);
+        if (i < 0) {
+            i = -i - 2;
+        }
+        if (i < 0) {
+            runEnd = tokenStarts.length > 0 ? tokenStarts[0] : line.getEndOffset();
+            return null;
+        }
+        runEnd = i + 1 < tokenStarts.length ? tokenStarts[i + 1] : line.getEndOffset();
+        return tokenColors[i];
+    }
+
+    int runEnd() {
+        return runEnd;
+    }
+
+    public void insertUpdate(DocumentEvent e) {
+        edited(e, e.getOffset() + e.getLength());
+    }
+
+    public void removeUpdate(DocumentEvent e) {
+        edited(e, e.getOffset());
+    }
+
+    public void changedUpdate(DocumentEvent e) { }
+
+    private void edited(DocumentEvent e, int editEnd) {
+        Element root = document.getDefaultRootElement();
+        int count = root.getElementCount();
+        int first = root.getElementIndex(e.getOffset());
+        int last = root.getElementIndex(editEnd);
+        // PlainDocument may also replace the line before the edit
+        DocumentEvent.ElementChange change = e.getChange(root);
+        if (change != null) {
+            first = Math.min(first, change.getIndex());
+        }
+        // Lines past the edit moved up or down with it
+        if (validLines > first) {
+            validLines = Math.max(first, validLines + count - lineCount);
+        }
+        lineCount = count;
+        tokenLine = null;
+        if (validLines < first) return; // Not lexed that far yet, painting will get to it
+
+        int state = first == 0 ? 0 : states.get(root.getElement(first - 1)) & 3;
+        for (int j = first; j < count; j++) {
+            Element line = root.getElement(j);
+            boolean trusted = j < validLines;
+            Integer before = states.get(line);
+            int end = lex(line, state, null);
+            int packed = state * 4 + end;
+            states.put(line, packed);
+            if (j > last && trusted && before != null && before == packed) {
+                if (j > last + 1) {
+                    onRestyled.run();
+                }
+                return;
+            }
+            if (!trusted) {
+                validLines = j + 1;
+            }
+            if (j > last && (!trusted || j - first >= RELEX_BUDGET)) {
+                validLines = Math.min(validLines, j + 1);
+                onRestyled.run();
+                return;
+            }
+            state = end;
+        }
+        validLines = count;
+        if (count - 1 > last) {
+            onRestyled.run();
+        }
+    }
+
+    // Lexes the lines up to and including index that have not been, or not since an edit
+    private void ensureValid(int index) {
+        Element root = document.getDefaultRootElement();
+        int state = validLines == 0 ? 0 : states.get(root.getElement(validLines - 1)) & 3;
+        for (; validLines <= index; validLines++) {
+            Element line = root.getElement(validLines);
+            int end = lex(line, state, null);
+            states.put(line, state * 4 + end);
+            state = end;
+        }
+    }
+
+    private void lexTokens(int index, Element line) {
+        ensureValid(index);
+        java.util.List<Token> tokens = new java.util.ArrayList<>();
+        lex(line, states.get(line) >> 2, tokens);
+        int start = line.getStartOffset();
+        int[] starts = new int[tokens.size()];
+        Color[] colors = new Color[tokens.size()];
+        int n = 0;
+        for (Token token : tokens) {
+            if (token.type == TokenType.EOF) continue;
+
+            starts[n] = start + token.position;
+            colors[n++] = color(token.type);
+        }
+        tokenStarts = Arrays.copyOf(starts, n);
+        tokenColors = Arrays.copyOf(colors, n);
+        tokenLine = line;
+    }
+
+    // The state a line ends in, given the state it starts in; its tokens go to tokens if asked
+    private int lex(Element line, int state, java.util.List<Token> tokens) {
+        String text;
+        try {
+            int start = line.getStartOffset();
+            int end = Math.min(line.getEndOffset(), document.getLength());
+            text = document.getText(start, end - start);
+        } catch (BadLocationException ex) {
+            throw new IllegalStateException(ex);
+        }
+        if (text.endsWith("\n")) {
+            text = text.substring(0, text.length() - 1);
+        }
+        LaTeXLexer lexer = new LaTeXLexer(text, STATES[state]);
+        java.util.List<Token> lexed = lexer.tokenize();
+        if (tokens != null) {
+            tokens.addAll(lexed);
+        }
+        TokenType open = lexer.openMath();
+        return open == null ? 0 : open == TokenType.MATH_INLINE ? 1 : 2;
+    }
+
+    private static Color color(TokenType type) {
+        switch (type) {
+            case COMMAND:
+                return COMMAND;
+            case LBRACE:
+            case RBRACE:
+            case LBRACKET:
+            case RBRACKET:
+                return BRACE;
+            case MATH_INLINE:
+                return MATH_INLINE;
+            case MATH_DISPLAY:
+                return MATH_DISPLAY;
+            default:
+                return null;
+        }
+    }
+
+    static void test() {
+        Random random = new Random(41);
+        String[] pieces = {"\\section", "{", "}", "[", "]", "$", "$$", "x^2", " ", "\n", "\n\n", "text", "\\\\"};
+        PieceTableDocument document = new PieceTableDocument();
+        int[] restyled = new int[1];
+        attach(document, true, () -> restyled[0]++);
+        LaTeXHighlighter highlighter = of(document);
+        try {
+            for (int step = 0; step < 5000; step++) {
+                int length = document.getLength();
+                if (length == 0 || random.nextInt(3) > 0) {
+                    document.insertString(random.nextInt(length + 1), pieces[random.nextInt(pieces.length)], null);
+                } else {
+                    int offset = random.nextInt(length);
+                    document.remove(offset, Math.min(length - offset, 1 + random.nextInt(4)));
+                }
+                if (step % 25 != 0 || document.getLength() == 0) continue;
+
+                // A highlighter that lexes everything afresh must colour every offset the same
+                PieceTableDocument fresh = new PieceTableDocument(document.getText(0, document.getLength()));
+                attach(fresh, true, () -> {});
+                LaTeXHighlighter expected = of(fresh);
+                for (int probe = 0; probe < 50; probe++) {
+                    int offset = random.nextInt(document.getLength());
+                    if (highlighter.colorAt(offset) != expected.colorAt(offset)
+                            || highlighter.runEnd() != expected.runEnd()) {
+                        throw new IllegalStateException("LaTeXHighlighter differs from a fresh lex at " + offset
+                                + " after step " + step);
+                    }
+                }
+            }
+        } catch (BadLocationException ex) {
+            throw new IllegalStateException(ex);
+        }
+        System.out.println("LaTeXHighlighter: 5000 edits matched fresh lexing (" + document.getDefaultRootElement()
+                .getElementCount() + " lines, restyled " + restyled[0] + " times)");
+    }
+}
@@ -0,0 +1,142 @@
+import java.util.*;
+
+// Lexer class
+class LaTeXLexer {
+    private String input;
+    private int position;
+    private List<Token> tokens;
+    private TokenType resumeMath;
+    private TokenType openMath;
+    
+    LaTeXLexer(String input) {
+        this.input = input;
+        this.position = 0;
+        this.tokens = new ArrayList<>();
+    }
+    
+    // Lexes input as the continuation of text that ended inside math of the given type
+    // (MATH_INLINE or MATH_DISPLAY), or outside of math if it is null
+    LaTeXLexer(String input, TokenType resumeMath) {
+        this(input);
+        this.resumeMath = resumeMath;
+    }
+    
+    // The type of a math span still open at the end of the input, or null if there is none
+    TokenType openMath() {
+        return openMath;
+    }
+    
+    List<Token> tokenize() {
+        if (resumeMath != null) {
+            readMathBody(position, resumeMath == TokenType.MATH_DISPLAY);
+        }
+        while (position < input.length()) {
+            char ch = input.charAt(position);
+            
+            if (ch == '\\') {
+                readCommand();
+            } else if (ch == '{') {
+                tokens.add(new Token(TokenType.LBRACE, "{", position));
+                position++;
+            } else if (ch == '}') {
+                tokens.add(new Token(TokenType.RBRACE, "}", position));
+                position++;
+            } else if (ch == '[') {
+                tokens.add(new Token(TokenType.LBRACKET, "[", position));
+                position++;
+            } else if (ch == ']') {
+                tokens.add(new Token(TokenType.RBRACKET, "]", position));
+                position++;
+            } else if (ch == '$') {
+                readMath();
+            } else if (ch == '\n') {
+                tokens.add(new Token(TokenType.NEWLINE, "\n", position));
+                position++;
+            } else if (Character.isWhitespace(ch)) {
+                position++; // Skip whitespace except newlines
+            } else {
+                readText();
+            }
+        }
+        
+        tokens.add(new Token(TokenType.EOF, "", position));
+        return tokens;
+    }
+    
+    private void readCommand() {
+        int start = position;
+        position++; // Skip backslash
+        
+        if (position < input.length() && input.charAt(position) == '\\') {
+            // Double backslash
+            position++;
+            tokens.add(new Token(TokenType.COMMAND, "\\\\", start));
+            return;
+        }
+        
+        StringBuilder command = new StringBuilder();
+        while (position < input.length() && 
+               (Character.isLetter(input.charAt(position)) || 
+                (command.length() == 0 && !Character.isLetter(input.charAt(position))))) {
+            command.append(input.charAt(position));
+            position++;
+            if (!Character.isLetter(input.charAt(position - 1))) break;
+        }
+        
+        tokens.add(new Token(TokenType.COMMAND, command.toString(), start));
+    }
+    
+    private void readText() {
+        int start = position;
+        StringBuilder text = new StringBuilder();
+        
+        while (position < input.length()) {
+            char ch = input.charAt(position);
+            if (ch == '\\' || ch == '{' || ch == '}' || ch == '[' || ch == ']' || 
+                ch == '$' || ch == '\n') {
+                break;
+            }
+            text.append(ch);
+            position++;
+        }
+        
+        if (text.length() > 0) {
+            tokens.add(new Token(TokenType.TEXT, text.toString(), start));
+        }
+    }
+    
+    private void readMath() {
+        int start = position;
+        position++; // Skip first $
+        
+        boolean isDisplayMode = false;
+        if (position < input.length() && input.charAt(position) == '$') {
+            isDisplayMode = true;
+            position++; // Skip second $
+        }
+        
+        readMathBody(start, isDisplayMode);
+    }
+    
+    private void readMathBody(int start, boolean isDisplayMode) {
+        StringBuilder math = new StringBuilder();
+        boolean closed = false;
+        while (position < input.length()) {
+            char ch = input.charAt(position);
+            if (ch == '$') {
+                position++;
+                if (isDisplayMode && position < input.length() && input.charAt(position) == '$') {
+                    position++; // Skip second $
+                }
+                closed = true;
+                break;
+            }
+            math.append(ch);
+            position++;
+        }
+        
+        TokenType type = isDisplayMode ? TokenType.MATH_DISPLAY : TokenType.MATH_INLINE;
+        tokens.add(new Token(type, math.toString(), start));
+        openMath = closed ? null : type;
+    }
+}
@@ -0,0 +1,455 @@
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.*;
+import java.io.*;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.*;
+import javax.swing.text.html.HTML;
+import javax.swing.text.html.HTMLDocument;
+import javax.swing.text.html.HTMLEditorKit;
+
+// Live HTML preview of a LaTeX document. A burst of edits is compiled once, DELAY after it
+// pauses, on the executor's thread, which checks between stages whether a newer compile has
+// cancelled it. Laying out the HTML takes far longer than compiling it, and Swing components
+// may only be touched on the EDT, so the worker compiles to PART_CHARS pieces and parses each
+// into a detached HTMLDocument. The EDT then lays them out in panes of their own, one piece per
+// event so keystrokes are handled in between, and swaps the stacked panes in once all are done.
+// The preview follows the caret by section: each compile finds where the sections start in the
+// text and where their headings start in the HTML, and the heading of the section holding the
+// caret is kept at the top of the preview
+final class LaTeXPreview {
+    static final int DELAY = 300;
+    // Around 10 ms of layout each in a 400 pixel wide pane
+    static final int PART_CHARS = 2048;
+    private static final java.util.Set<String> SECTIONS = java.util.Set.of("section", "subsection", "subsubsection");
+
+    private final JTextComponent editor;
+    private final ExecutorService executor;
+    private final JScrollPane scrollPane = new JScrollPane(new Panes(0));
+    private final JLabel errorLabel = new JLabel(" ");
+    private final JPanel component = new JPanel(new BorderLayout());
+    private final Timer timer;
+    private final DocumentListener listener = new DocumentListener() {
+        public void insertUpdate(DocumentEvent e) {
+            timer.restart();
+        }
+        public void removeUpdate(DocumentEvent e) {
+            timer.restart();
+        }
+        public void changedUpdate(DocumentEvent e) { }
+    };
+    private Document source;
+    private SwingWorker<Rendered, Void> compileTask;
+    private int compiles;
+    private int compiledWidth;
+    // Being laid out on the EDT, until it is shown or a newer compile replaces it
+    private Rendered building;
+    // Of the compile on show: where sections start in the text, and their headings in the preview
+    private int[] sections = new int[0];
+    private int[] headings = new int[0];
+    private int[] headingParts = new int[0];
+    private int shownSection = -1;
+
+    private static final class Rendered {
+        final HTMLDocument[] parts;
+        final int width;
+        final int[] sections;
+        // Heading i is at offset headings[i] in part headingParts[i]
+        final int[] headings;
+        final int[] headingParts;
+
+        Rendered(HTMLDocument[] parts, int width, int[] sections, int[] headings, int[] headingParts) {
+            this.parts = parts;
+            this.width = width;
+            this.sections = sections;
+            this.headings = headings;
+            this.headingParts = headingParts;
+        }
+    }
+
+    // The panes of one compile, stacked at the width they were laid out at
+    private static final class Panes extends JPanel implements Scrollable {
+        private final int width;
+        private int height;
+
+        Panes(int width) {
+            super(null);
+            this.width = width;
+            setBackground(UIManager.getColor("EditorPane.background"));
+        }
+
+        // Lays out a part under the ones before it
+        void append(HTMLDocument part) {
+            JEditorPane pane = newPane();
+            pane.setDocument(part);
+            pane.setSize(width, Short.MAX_VALUE);
+            int paneHeight = pane.getPreferredSize().height;
+            pane.setBounds(0, height, width, paneHeight);
+            height += paneHeight;
+            add(pane);
+        }
+
+        JEditorPane pane(int part) {
+            return (JEditorPane) getComponent(part);
+        }
+
+        @Override
+        public Dimension getPreferredSize() {
+            return new Dimension(width, height);
+        }
+
+        @Override
+        public Dimension getPreferredScrollableViewportSize() {
+            return getPreferredSize();
+        }
+
+        @Override
+        public int getScrollableUnitIncrement(Rectangle visible, int orientation, int direction) {
+            return orientation == SwingConstants.VERTICAL ? visible.height / 10 : visible.width / 10;
+        }
+
+        @Override
+        public int getScrollableBlockIncrement(Rectangle visible, int orientation, int direction) {
+            return orientation == SwingConstants.VERTICAL ? visible.height : visible.width;
+        }
+
+        @Override
+        public boolean getScrollableTracksViewportWidth() {
+            return false;
+        }
+
+        // Fills the viewport below a short preview
+        @Override
+        public boolean getScrollableTracksViewportHeight() {
+            return getParent() instanceof JViewport && getParent().getHeight() > height;
+        }
+    }
+
+    LaTeXPreview(JTextComponent editor, ExecutorService executor) {
+        this.editor = editor;
+        this.executor = executor;
+        // The width a pane is laid out at must not change when a scroll bar comes or goes
+        scrollPane.setHorizontalScrollBarPolicy(JScrollPane.HORIZONTAL_SCROLLBAR_NEVER);
+        scrollPane.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_ALWAYS);
+        errorLabel.setForeground(new Color(170, 0, 0));
+        errorLabel.setBorder(BorderFactory.createEmptyBorder(2, 6, 2, 6));
+        errorLabel.setVisible(false);
+        component.add(errorLabel, BorderLayout.NORTH);
+        component.add(scrollPane, BorderLayout.CENTER);
+        timer = new Timer(DELAY, e -> compile());
+        timer.setRepeats(false);
+        // The panes keep the width they were laid out at until a compile at the new one replaces them
+        scrollPane.getViewport().addComponentListener(new ComponentAdapter() {
+            @Override
+            public void componentResized(ComponentEvent e) {
+                if (source != null && scrollPane.getViewport().getWidth() != compiledWidth) {
+                    timer.restart();
+                }
+            }
+        });
+        editor.addCaretListener(e -> {
+            if (source != null) {
+                followCaret(false);
+            }
+        });
+    }
+
+    JComponent component() {
+        return component;
+    }
+
+    // Previews document from now on, or nothing if it is null
+    void setSource(Document document) {
+        if (document == source) return;
+
+        if (source != null) {
+            source.removeDocumentListener(listener);
+        }
+        source = document;
+        timer.stop();
+        if (document != null) {
+            document.addDocumentListener(listener);
+            // Not right away, so a preview that has just been shown has its width by then
+            timer.restart();
+        } else {
+            if (compileTask != null) {
+                compileTask.cancel(true);
+                compileTask = null;
+            }
+            building = null;
+        }
+    }
+
+    private void compile() {
+        int width = scrollPane.getViewport().getWidth();
+        // Without a width yet, the resize that gives it one compiles
+        if (source == null || width <= 0) return;
+
+        if (compileTask != null) {
+            compileTask.cancel(true);
+        }
+        compiles++;
+        compiledWidth = width;
+        CharSequence text = Notepad.snapshot(source);
+        SwingWorker<Rendered, Void> task = new SwingWorker<Rendered, Void>() {
+            @Override
+            protected Rendered doInBackground() throws IOException, BadLocationException, InterruptedException {
+                return render(text.toString(), width);
+            }
+
+            @Override
+            protected void done() {
+                if (compileTask != this || isCancelled()) return;
+
+                compileTask = null;
+                try {
+                    Rendered rendered = get();
+                    building = rendered;
+                    build(rendered, new Panes(rendered.width), 0);
+                    errorLabel.setVisible(false);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException ex) {
+                    // The last preview that compiled stays up under the error
+                    Throwable cause = ex.getCause();
+                    errorLabel.setText(cause.getMessage() != null ? cause.getMessage() : cause.toString());
+                    errorLabel.setVisible(true);
+                }
+            }
+        };
+        compileTask = task;
+        executor.execute(task);
+    }
+
+    private static JEditorPane newPane() {
+        JEditorPane pane = new JEditorPane();
+        pane.setEditable(false);
+        pane.setEditorKit(new HTMLEditorKit());
+        // Swapping panes must not scroll; followCaret does that
+        ((DefaultCaret) pane.getCaret()).setUpdatePolicy(DefaultCaret.NEVER_UPDATE);
+        return pane;
+    }
+
+    // Runs on the worker; the documents are not attached to any pane, so no Swing component is touched
+    private static Rendered render(String latex, int width)
+            throws IOException, BadLocationException, InterruptedException {
+        java.util.List<String> html = LaTeXCompiler.compileParts(latex, PART_CHARS);
+        HTMLEditorKit kit = new HTMLEditorKit();
+        HTMLDocument[] parts = new HTMLDocument[html.size()];
+        int[] headings = new int[0];
+        int[] headingParts = new int[0];
+        for (int i = 0; i < parts.length; i++) {
+            if (Thread.interrupted()) throw new InterruptedException();
+            parts[i] = (HTMLDocument) kit.createDefaultDocument();
+            parts[i].putProperty("IgnoreCharsetDirective", Boolean.TRUE);
+            // The parts are stacked, so only the first has space above and only the last below
+            if (i > 0) {
+                parts[i].getStyleSheet().addRule("body { margin-top: 0 }");
+            }
+            if (i < parts.length - 1) {
+                parts[i].getStyleSheet().addRule("body { margin-bottom: 0 }");
+            }
+            kit.read(new StringReader(html.get(i)), parts[i], 0);
+            int[] found = headingOffsets(parts[i]);
+            int n = headings.length;
+            headings = Arrays.copyOf(headings, n + found.length);
+            headingParts = Arrays.copyOf(headingParts, n + found.length);
+            System.arraycopy(found, 0, headings, n, found.length);
+            Arrays.fill(headingParts, n, n + found.length, i);
+        }
+        return new Rendered(parts, width, sectionOffsets(latex), headings, headingParts);
+    }
+
+    // Lays out one part per event, so keystrokes waiting behind it are handled in between
+    private void build(Rendered rendered, Panes panes, int part) {
+        if (building != rendered) return; // Replaced by a newer compile, or no longer previewed
+
+        if (part == rendered.parts.length) {
+            building = null;
+            show(rendered, panes);
+            return;
+        }
+        panes.append(rendered.parts[part]);
+        SwingUtilities.invokeLater(() -> build(rendered, panes, part + 1));
+    }
+
+    private void show(Rendered rendered, Panes panes) {
+        JViewport viewport = scrollPane.getViewport();
+        viewport.setView(panes);
+        sections = rendered.sections;
+        headings = rendered.headings;
+        headingParts = rendered.headingParts;
+        // Sized now rather than at the next validation, so the headings can be found
+        viewport.doLayout();
+        followCaret(true);
+    }
+
+    // Scrolls the heading of the caret's section to the top; before the first section, the top
+    private void followCaret(boolean always) {
+        int section = Arrays.binarySearch(sections, editor.getCaretPosition());
+        if (section < 0) {
+            section = -section - 2;
+        }
+        if (section == shownSection && !always) return;
+
+        shownSection = section;
+        if (section >= headings.length) return; // Not a heading the compiler made
+
+        JViewport viewport = scrollPane.getViewport();
+        int y = 0;
+        if (section >= 0) {
+            y = headingY(section);
+            if (y < 0) return;
+        }
+        y = Math.max(0, Math.min(y, viewport.getView().getHeight() - viewport.getHeight()));
+        viewport.setViewPosition(new Point(0, y));
+    }
+
+    // Where the heading of the section is in the panes on show, or -1 if it is not laid out
+    private int headingY(int section) {
+        JEditorPane pane = ((Panes) scrollPane.getViewport().getView()).pane(headingParts[section]);
+        try {
+            java.awt.geom.Rectangle2D heading = pane.modelToView2D(headings[section]);
+            return heading == null ? -1 : pane.getY() + (int) heading.getY();
+        } catch (BadLocationException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    // Where the sectioning commands the parser turns into headings start: those with an argument
+    static int[] sectionOffsets(String latex) {
+        java.util.List<Token> tokens = new LaTeXLexer(latex).tokenize();
+        int[] offsets = new int[tokens.size()];
+        int n = 0;
+        for (int i = 0; i + 1 < tokens.size(); i++) {
+            Token token = tokens.get(i);
+            if (token.type == TokenType.COMMAND && SECTIONS.contains(token.value)
+                    && tokens.get(i + 1).type == TokenType.LBRACE) {
+                offsets[n++] = token.position;
+            }
+        }
+        return Arrays.copyOf(offsets, n);
+    }
+
+    private static int[] headingOffsets(HTMLDocument document) {
+        int[] offsets = new int[16];
+        int n = 0;
+        ElementIterator elements = new ElementIterator(document);
+        for (Element element = elements.first(); element != null; element = elements.next()) {
+            Object tag = element.getAttributes().getAttribute(StyleConstants.NameAttribute);
+            if (tag == HTML.Tag.H1 || tag == HTML.Tag.H2 || tag == HTML.Tag.H3) {
+                if (n == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, n * 2);
+                }
+                offsets[n++] = element.getStartOffset();
+            }
+        }
+        return Arrays.copyOf(offsets, n);
+    }
+
+    static void test() {
+        StringBuilder latex = new StringBuilder("\\documentclass{article}\n\\begin{document}\n");
+        for (int line = 0; line < 5000; line++) {
+            latex.append(line % 100 == 0 ? "\\section{Part " + line / 100 + "}\n"
+                    : "Line " + line + " has $x_{" + line + "}$ and \\textbf{bold} words.\n");
+        }
+        latex.append("\\end{document}\n");
+        PieceTableDocument document = new PieceTableDocument(latex.toString());
+        ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "Preview test");
+            thread.setDaemon(true);
+            return thread;
+        });
+        LaTeXPreview[] preview = new LaTeXPreview[1];
+        long[] slowest = new long[1];
+        try {
+            SwingUtilities.invokeAndWait(() -> {
+                preview[0] = new LaTeXPreview(new JTextArea(document), executor);
+                preview[0].scrollPane.setSize(400, 600);
+                preview[0].scrollPane.doLayout();
+                preview[0].setSource(document);
+            });
+            LaTeXPreview p = preview[0];
+            await(p);
+            // Typing faster than DELAY compiles once, after the last keystroke. How long the
+            // keystrokes and laying out the result held up the EDT is reported against
+            // MAX_EDT_HOLD but not failed on, since a loaded machine stretches any timing
+            int before = p.compiles;
+            for (int i = 0; i < 100; i++) {
+                SwingUtilities.invokeAndWait(() -> {
+                    try {
+                        document.insertString(document.getLength() - 15, "More words. ", null);
+                    } catch (BadLocationException ex) {
+                        throw new IllegalStateException(ex);
+                    }
+                });
+                Thread.sleep(5);
+            }
+            java.util.concurrent.ScheduledExecutorService probe = Executors.newSingleThreadScheduledExecutor();
+            probe.scheduleAtFixedRate(() -> {
+                long start = System.nanoTime();
+                try {
+                    SwingUtilities.invokeAndWait(() -> { });
+                } catch (InterruptedException | java.lang.reflect.InvocationTargetException ex) {
+                    return;
+                }
+                long waited = System.nanoTime() - start;
+                synchronized (slowest) {
+                    slowest[0] = Math.max(slowest[0], waited);
+                }
+            }, 0, 2, java.util.concurrent.TimeUnit.MILLISECONDS);
+            await(p);
+            probe.shutdownNow();
+            if (p.compiles - before != 1) {
+                throw new IllegalStateException("LaTeXPreview compiled " + (p.compiles - before) + " times for one burst");
+            }
+            SwingUtilities.invokeAndWait(() -> {
+                if (p.sections.length != 50 || p.headings.length != 50) {
+                    throw new IllegalStateException("LaTeXPreview found " + p.sections.length + " sections and "
+                            + p.headings.length + " headings");
+                }
+                // The caret in section 30 puts its heading at the top
+                p.editor.setCaretPosition(p.sections[30] + 20);
+                JViewport viewport = p.scrollPane.getViewport();
+                int y = p.headingY(30);
+                if (y <= 0 || viewport.getViewPosition().y != y) {
+                    throw new IllegalStateException("LaTeXPreview is at " + viewport.getViewPosition().y
+                            + " rather than section 30 at " + y);
+                }
+            });
+        } catch (InterruptedException | java.lang.reflect.InvocationTargetException ex) {
+            throw new IllegalStateException(ex);
+        } finally {
+            executor.shutdownNow();
+        }
+        // A compile cancelled by a newer one stops at its next stage instead of running to the end
+        Thread.currentThread().interrupt();
+        try {
+            LaTeXCompiler.compileParts(latex.toString(), PART_CHARS);
+            throw new IllegalStateException("LaTeXPreview compile ran on after being interrupted");
+        } catch (InterruptedException expected) {
+            // As it should
+        }
+        System.out.printf("LaTeXPreview: 100 edits to 5000 lines compiled once, EDT held at most %.1f ms, %s the %d ms target%n",
+                slowest[0] / 1e6, slowest[0] < MAX_EDT_HOLD * 1_000_000 ? "within" : "over", MAX_EDT_HOLD);
+    }
+
+    // Longest the EDT should be held in the test: past this a keystroke's echo is felt to lag
+    private static final long MAX_EDT_HOLD = 100;
+
+    private static void await(LaTeXPreview preview) throws InterruptedException, java.lang.reflect.InvocationTargetException {
+        boolean[] busy = {true};
+        for (long deadline = System.currentTimeMillis() + 30000; busy[0]; Thread.sleep(20)) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("LaTeXPreview never finished compiling");
+            }
+            SwingUtilities.invokeAndWait(() -> busy[0] = preview.timer.isRunning() || preview.compileTask != null
+                    || preview.building != null);
+        }
+    }
+}
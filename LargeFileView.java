@@ -0,0 +1,149 @@
+import javax.swing.*;
+import java.awt.*;
+
+// Paints a MappedTextFile one screen at a time; only the lines inside the clip are decoded
+class LargeFileView extends JComponent implements Scrollable {
+    private static final int MAX_LINE_CHARS = MappedTextFile.SCAN_LIMIT / 4;
+    private static final int MAX_HEIGHT = 1 << 30;
+    private static final int TAB_SIZE = 8;
+
+    private final MappedTextFile file;
+    private final Timer indexWatcher;
+    private long paintedLines = -1;
+    private int widestLine;
+
+    LargeFileView(MappedTextFile file, Font font) {
+        this.file = file;
+        setFont(font);
+        setOpaque(true);
+        setBackground(UIManager.getColor("TextArea.background"));
+        setForeground(UIManager.getColor("TextArea.foreground"));
+        // Grow the scrollable height as the background index discovers more lines
+        indexWatcher = new Timer(250, e -> {
+            if (file.lineCount() != paintedLines) {
+                paintedLines = file.lineCount();
+                revalidate();
+                repaint();
+            }
+            if (file.isIndexed()) {
+                ((Timer) e.getSource()).stop();
+            }
+        });
+        indexWatcher.start();
+    }
+
+    void dispose() {
+        indexWatcher.stop();
+    }
+
+    // Scrolls so the given zero-based line is at the top, as far as the index has reached
+    void scrollToLine(long line) {
+        long lines = Math.max(1, file.lineCount());
+        line = Math.max(0, Math.min(line, lines - 1));
+        long full = fullHeight();
+        int y = full <= MAX_HEIGHT ? (int) (line * lineHeight()) : (int) ((double) line / lines * MAX_HEIGHT);
+        Rectangle visible = getVisibleRect();
+        scrollRectToVisible(new Rectangle(visible.x, getInsets().top + y, 1, Math.max(1, visible.height)));
+    }
+
+    private int lineHeight() {
+        return getFontMetrics(getFont()).getHeight();
+    }
+
+    // Swing sizes are ints, so past MAX_HEIGHT pixels the scroll position maps to lines proportionally
+    private long fullHeight() {
+        return file.lineCount() * lineHeight();
+    }
+
+    private long lineAt(int y) {
+        long full = fullHeight();
+        if (full <= MAX_HEIGHT) {
+            return y / lineHeight();
+        }
+        return (long) ((double) y / MAX_HEIGHT * file.lineCount());
+    }
+
+    @Override
+    public void addNotify() {
+        super.addNotify();
+        // Lines do not sit at fixed pixel offsets once scaled, so never blit on scroll
+        if (getParent() instanceof JViewport) {
+            ((JViewport) getParent()).setScrollMode(JViewport.SIMPLE_SCROLL_MODE);
+        }
+    }
+
+    @Override
+    public Dimension getPreferredSize() {
+        Insets insets = getInsets();
+        long height = Math.min(fullHeight(), MAX_HEIGHT) + insets.top + insets.bottom;
+        return new Dimension(widestLine + insets.left + insets.right, (int) height);
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        Rectangle clip = g.getClipBounds();
+        g.setColor(getBackground());
+        g.fillRect(clip.x, clip.y, clip.width, clip.height);
+        g.setColor(getForeground());
+        g.setFont(getFont());
+
+        FontMetrics fm = g.getFontMetrics();
+        int lineHeight = fm.getHeight();
+        Insets insets = getInsets();
+        Rectangle visible = getVisibleRect();
+        long lines = file.lineCount();
+        long first = lineAt(Math.max(0, visible.y - insets.top));
+        int y = fullHeight() <= MAX_HEIGHT ? insets.top + (int) (first * lineHeight) : visible.y;
+        int widest = widestLine;
+
+        // Lines after a long one the indexer has not passed yet are painted once it has
+        for (long line = first; line < lines && y < visible.y + visible.height; line++) {
+            long pos = file.lineStart(line);
+            if (pos < 0 || pos >= file.size()) break;
+            String text = expandTabs(file.lineText(pos, MAX_LINE_CHARS));
+            g.drawString(text, insets.left, y + fm.getAscent());
+            widest = Math.max(widest, fm.stringWidth(text));
+            y += lineHeight;
+        }
+        if (widest > widestLine) {
+            widestLine = widest;
+            SwingUtilities.invokeLater(this::revalidate);
+        }
+    }
+
+    private static String expandTabs(String text) {
+        if (text.indexOf('\t') < 0) return text;
+        StringBuilder sb = new StringBuilder(text.length() + 16);
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\t') {
+                do {
+                    sb.append(' ');
+                } while (sb.length() % TAB_SIZE != 0);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    public Dimension getPreferredScrollableViewportSize() {
+        return getPreferredSize();
+    }
+
+    public int getScrollableUnitIncrement(Rectangle visibleRect, int orientation, int direction) {
+        return orientation == SwingConstants.VERTICAL ? lineHeight() : getFontMetrics(getFont()).charWidth('m');
+    }
+
+    public int getScrollableBlockIncrement(Rectangle visibleRect, int orientation, int direction) {
+        return orientation == SwingConstants.VERTICAL ? visibleRect.height : visibleRect.width;
+    }
+
+    public boolean getScrollableTracksViewportWidth() {
+        return getParent() instanceof JViewport && getParent().getWidth() > getPreferredSize().width;
+    }
+
+    public boolean getScrollableTracksViewportHeight() {
+        return getParent() instanceof JViewport && getParent().getHeight() > getPreferredSize().height;
+    }
+}
@@ -0,0 +1,96 @@
+import java.util.Arrays;
+import java.util.Random;
+
+// Latencies in microseconds, bucketed the way HdrHistogram does it: SUB_BUCKETS linear buckets
+// for each power of two, so any value is kept to within about 3% in a fixed array, and
+// recording is an increment with no allocation
+final class LatencyHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int HALF = SUB_BUCKETS / 2;
+
+    private final long[] counts = new long[(64 - SUB_BITS + 1) * HALF + SUB_BUCKETS];
+    private long count;
+    private long max;
+
+    void record(long micros) {
+        long value = Math.max(0, micros);
+        counts[index(value)]++;
+        count++;
+        max = Math.max(max, value);
+    }
+
+    long count() {
+        return count;
+    }
+
+    long max() {
+        return max;
+    }
+
+    // The smallest recorded value at or above the given fraction of all values, to bucket precision
+    long percentile(double fraction) {
+        if (count == 0) return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(fraction * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(max, highest(i));
+            }
+        }
+        return max;
+    }
+
+    void clear() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        max = 0;
+    }
+
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return shift * HALF + (int) (value >>> shift);
+    }
+
+    // The largest value that falls in bucket i
+    private static long highest(int i) {
+        if (i < SUB_BUCKETS) return i;
+
+        int shift = (i - HALF) / HALF;
+        long sub = i - shift * HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    static void test() {
+        Random random = new Random(17);
+        LatencyHistogram histogram = new LatencyHistogram();
+        long[] values = new long[100000];
+        for (int i = 0; i < values.length; i++) {
+            // Mostly short, with a long tail, like real latencies
+            values[i] = (long) Math.exp(random.nextDouble() * random.nextDouble() * 20);
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+        for (double fraction : new double[]{0.5, 0.9, 0.99, 0.999, 1.0}) {
+            long exact = values[(int) Math.ceil(fraction * values.length) - 1];
+            long estimate = histogram.percentile(fraction);
+            if (estimate < exact || estimate > exact + exact / HALF + 1) {
+                throw new IllegalStateException("LatencyHistogram p" + fraction * 100 + " was " + estimate
+                        + " for " + exact);
+            }
+        }
+        if (histogram.max() != values[values.length - 1] || histogram.count() != values.length) {
+            throw new IllegalStateException("LatencyHistogram lost its max or count");
+        }
+        for (long value = 0; value < 1 << 20; value += 1 + value / 7) {
+            if (highest(index(value)) < value || index(highest(index(value))) != index(value)) {
+                throw new IllegalStateException("LatencyHistogram buckets do not cover " + value);
+            }
+        }
+        System.out.println("LatencyHistogram: percentiles of 100000 values within bucket precision");
+    }
+}
@@ -0,0 +1,230 @@
+import javax.swing.*;
+import java.awt.*;
+
+// Where the time between a keystroke and its paint goes. Key events, document events and
+// paints of the text area are timestamped on the EDT. A keystroke counts once it has edited
+// the text or moved the caret, and ends with the next completed paint; keys typed before that
+// paint are timed from the first. Each phase gets a histogram: the edit (key to document
+// event), the wait and layout up to painting, and the paint itself. A watchdog thread sends
+// the EDT a probe event every half threshold and captures the EDT's stack if one waits longer
+// than the threshold. Keystrokes and stalls are also JFR events, which cost next to nothing
+// unless a recording is running:
+//   java -XX:StartFlightRecording:filename=notepad.jfr Notepad
+final class LatencyMonitor {
+    // EDT stalls at least this long, in milliseconds, are reported; 0 turns the watchdog off
+    static final long STALL_THRESHOLD = Long.getLong("notepad.stallThreshold", 250);
+
+    final LatencyHistogram total = new LatencyHistogram();
+    final LatencyHistogram edit = new LatencyHistogram();
+    final LatencyHistogram layout = new LatencyHistogram();
+    final LatencyHistogram paint = new LatencyHistogram();
+    private long keyTime = -1;
+    private long editTime = -1;
+    private boolean visible;
+    private long paintStart;
+    private KeystrokeEvent event;
+    private Thread watchdog;
+    private volatile Thread edt;
+    private volatile boolean verbose;
+    private int stalls;
+    private long longestStall;
+
+    void keyDispatched() {
+        long now = System.nanoTime();
+        // A key that has not changed anything yet may never be painted, so it is not waited for
+        if (keyTime < 0 || !visible) {
+            keyTime = now;
+            editTime = -1;
+            event = new KeystrokeEvent();
+            event.begin();
+        }
+    }
+
+    void documentChanged() {
+        if (keyTime < 0) return;
+
+        if (editTime < 0) {
+            editTime = System.nanoTime();
+        }
+        visible = true;
+    }
+
+    void caretMoved() {
+        if (keyTime >= 0) {
+            visible = true;
+        }
+    }
+
+    void paintStarted() {
+        paintStart = System.nanoTime();
+    }
+
+    void paintFinished() {
+        if (keyTime < 0 || !visible) return;
+
+        long now = System.nanoTime();
+        long edited = editTime >= 0 ? editTime : keyTime;
+        long editMicros = (edited - keyTime) / 1000;
+        long layoutMicros = Math.max(0, paintStart - edited) / 1000;
+        long paintMicros = (now - paintStart) / 1000;
+        edit.record(editMicros);
+        layout.record(layoutMicros);
+        paint.record(paintMicros);
+        total.record((now - keyTime) / 1000);
+        event.end();
+        if (event.shouldCommit()) {
+            event.editMicros = editMicros;
+            event.layoutMicros = layoutMicros;
+            event.paintMicros = paintMicros;
+            event.commit();
+        }
+        keyTime = -1;
+        editTime = -1;
+        visible = false;
+        event = null;
+    }
+
+    void clear() {
+        total.clear();
+        edit.clear();
+        layout.clear();
+        paint.clear();
+        synchronized (this) {
+            stalls = 0;
+            longestStall = 0;
+        }
+    }
+
+    // Stalls go to stderr, stack and all, while verbose
+    void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    synchronized int stalls() {
+        return stalls;
+    }
+
+    synchronized long longestStall() {
+        return longestStall;
+    }
+
+    void startWatchdog() {
+        if (STALL_THRESHOLD <= 0 || watchdog != null) return;
+
+        watchdog = new Thread(this::watch, "Notepad EDT Watchdog");
+        watchdog.setDaemon(true);
+        watchdog.start();
+    }
+
+    private void watch() {
+        long threshold = STALL_THRESHOLD * 1_000_000;
+        try {
+            while (true) {
+                long posted = System.nanoTime();
+                java.util.concurrent.CountDownLatch answered = new java.util.concurrent.CountDownLatch(1);
+                EventQueue.invokeLater(() -> {
+                    edt = Thread.currentThread();
+                    answered.countDown();
+                });
+                if (!answered.await(threshold, java.util.concurrent.TimeUnit.NANOSECONDS)) {
+                    // Taken while the EDT is still stuck, so it shows what it is stuck on
+                    Thread thread = edt;
+                    StackTraceElement[] stack = thread != null ? thread.getStackTrace() : new StackTraceElement[0];
+                    answered.await();
+                    stalled((System.nanoTime() - posted) / 1_000_000, stack);
+                }
+                Thread.sleep(Math.max(1, STALL_THRESHOLD / 2));
+            }
+        } catch (InterruptedException ex) {
+            // Stopped
+        }
+    }
+
+    private void stalled(long millis, StackTraceElement[] stack) {
+        synchronized (this) {
+            stalls++;
+            longestStall = Math.max(longestStall, millis);
+        }
+        StringBuilder trace = new StringBuilder();
+        for (StackTraceElement frame : stack) {
+            trace.append("\tat ").append(frame).append(System.lineSeparator());
+        }
+        EdtStallEvent event = new EdtStallEvent();
+        if (event.shouldCommit()) {
+            event.stallMillis = millis;
+            event.edtStack = trace.toString();
+            event.commit();
+        }
+        if (verbose) {
+            System.err.print("EDT stalled for " + millis + " ms in:" + System.lineSeparator() + trace);
+        }
+    }
+
+    // Percentiles of the key to paint latency and its phases, drawn over the top right of the window
+    static final class Overlay extends JComponent {
+        private final LatencyMonitor monitor;
+        private final Timer refresh;
+
+        Overlay(LatencyMonitor monitor) {
+            this.monitor = monitor;
+            setFont(new Font(Font.MONOSPACED, Font.PLAIN, 11));
+            refresh = new Timer(500, e -> repaint());
+        }
+
+        @Override
+        public void addNotify() {
+            super.addNotify();
+            refresh.start();
+        }
+
+        @Override
+        public void removeNotify() {
+            refresh.stop();
+            super.removeNotify();
+        }
+
+        String[] lines() {
+            LatencyHistogram total = monitor.total;
+            return new String[]{
+                    String.format("key to paint  p50 %s  p99 %s  max %s  (%,d keys)", millis(total.percentile(0.5)),
+                            millis(total.percentile(0.99)), millis(total.max()), total.count()),
+                    String.format("p99  edit %s  layout %s  paint %s", millis(monitor.edit.percentile(0.99)),
+                            millis(monitor.layout.percentile(0.99)), millis(monitor.paint.percentile(0.99))),
+                    String.format("EDT stalls over %d ms: %d, longest %d ms", STALL_THRESHOLD, monitor.stalls(),
+                            monitor.longestStall())};
+        }
+
+        private static String millis(long micros) {
+            return String.format("%.1f ms", micros / 1000.0);
+        }
+
+        @Override
+        public Dimension getPreferredSize() {
+            FontMetrics metrics = getFontMetrics(getFont());
+            int width = 0;
+            String[] lines = lines();
+            for (String line : lines) {
+                width = Math.max(width, metrics.stringWidth(line));
+            }
+            // Room for the counts to grow without the box jumping about
+            return new Dimension(width + 40, lines.length * metrics.getHeight() + 12);
+        }
+
+        @Override
+        protected void paintComponent(Graphics g) {
+            Graphics2D g2 = (Graphics2D) g.create();
+            g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g2.setColor(new Color(0, 0, 0, 170));
+            g2.fillRoundRect(0, 0, getWidth(), getHeight(), 10, 10);
+            g2.setColor(Color.WHITE);
+            g2.setFont(getFont());
+            FontMetrics metrics = g2.getFontMetrics();
+            int y = 6 + metrics.getAscent();
+            for (String line : lines()) {
+                g2.drawString(line, 8, y);
+                y += metrics.getHeight();
+            }
+            g2.dispose();
+        }
+    }
+}
@@ -0,0 +1,389 @@
+import java.util.Arrays;
+import java.util.Random;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.*;
+import javax.swing.undo.UndoManager;
+
+// Line lengths, newline included, kept in a treap over parallel int arrays, so the line of
+// an offset and the start of a line are both O(log n) and an edit only touches its own lines.
+// The last line has no newline; an empty text is one empty line
+final class LineIndex {
+    private static final int NIL = 0;
+
+    // Node 0 is the empty tree; freed nodes are chained through right[]
+    private int[] length = new int[16];
+    private int[] sum = new int[16];
+    private int[] count = new int[16];
+    private int[] priority = new int[16];
+    private int[] left = new int[16];
+    private int[] right = new int[16];
+    private int nodes = 1;
+    private int free = NIL;
+    private int root;
+    private int seed = 0x2545F491;
+    private int splitLeft, splitRight;
+
+    private LineIndex() {
+    }
+
+    static LineIndex of(CharSequence text) {
+        LineIndex index = new LineIndex();
+        int[] lines = new int[1024];
+        int n = 0;
+        char[] chunk = new char[64 * 1024];
+        int lineStart = 0;
+        for (int pos = 0; pos < text.length(); pos += chunk.length) {
+            int end = Math.min(text.length(), pos + chunk.length);
+            TextFiles.getChars(text, pos, end, chunk);
+            for (int i = 0; i < end - pos; i++) {
+                if (chunk[i] == '\n') {
+                    if (n == lines.length) {
+                        lines = Arrays.copyOf(lines, n * 2);
+                    }
+                    lines[n++] = pos + i + 1 - lineStart;
+                    lineStart = pos + i + 1;
+                }
+            }
+        }
+        if (n == lines.length) {
+            lines = Arrays.copyOf(lines, n + 1);
+        }
+        lines[n++] = text.length() - lineStart;
+        index.root = index.build(lines, n);
+        return index;
+    }
+
+    int lineCount() {
+        return count[root];
+    }
+
+    int length() {
+        return sum[root];
+    }
+
+    // Zero-based line holding offset; the end of the text belongs to the last line
+    int lineOfOffset(int offset) {
+        if (offset >= sum[root]) {
+            return count[root] - 1;
+        }
+        int t = root, line = 0;
+        while (true) {
+            int l = left[t];
+            if (offset < sum[l]) {
+                t = l;
+            } else {
+                offset -= sum[l];
+                line += count[l];
+                if (offset < length[t]) {
+                    return line;
+                }
+                offset -= length[t];
+                line++;
+                t = right[t];
+            }
+        }
+    }
+
+    int lineStart(int line) {
+        int t = root, start = 0;
+        while (t != NIL) {
+            int l = left[t];
+            if (line < count[l]) {
+                t = l;
+            } else if (line == count[l]) {
+                return start + sum[l];
+            } else {
+                line -= count[l] + 1;
+                start += sum[l] + length[t];
+                t = right[t];
+            }
+        }
+        throw new IndexOutOfBoundsException("No line " + line);
+    }
+
+    int lineLength(int line) {
+        int t = root;
+        while (true) {
+            int l = left[t];
+            if (line < count[l]) {
+                t = l;
+            } else if (line == count[l]) {
+                return length[t];
+            } else {
+                line -= count[l] + 1;
+                t = right[t];
+            }
+        }
+    }
+
+    void insert(int offset, CharSequence text) {
+        int n = text.length();
+        int first = -1, breaks = 0;
+        for (int i = 0; i < n; i++) {
+            if (text.charAt(i) == '\n') {
+                if (first < 0) {
+                    first = i;
+                }
+                breaks++;
+            }
+        }
+        int line = lineOfOffset(offset);
+        if (breaks == 0) {
+            addLength(root, line, n);
+            return;
+        }
+        int head = offset - lineStart(line);
+        int tail = length[nodeAt(line)] - head;
+
+        // The line splits at offset: its head takes the text up to the first newline, the
+        // text after the last newline joins its tail, and complete lines go in between
+        int[] lines = new int[breaks];
+        int k = 0, start = first + 1;
+        for (int i = first + 1; i < n; i++) {
+            if (text.charAt(i) == '\n') {
+                lines[k++] = i + 1 - start;
+                start = i + 1;
+            }
+        }
+        lines[k] = n - start + tail;
+
+        split(root, line);
+        int before = splitLeft;
+        split(splitRight, 1);
+        int edited = splitLeft, after = splitRight;
+        length[edited] = head + first + 1;
+        update(edited);
+        root = merge(merge(before, edited), merge(build(lines, breaks), after));
+    }
+
+    void remove(int offset, int removed) {
+        int first = lineOfOffset(offset);
+        int last = lineOfOffset(offset + removed);
+        if (first == last) {
+            addLength(root, first, -removed);
+            return;
+        }
+        // What is left of the first line joins what is left of the last
+        int joined = lineStart(last) + length[nodeAt(last)] - lineStart(first) - removed;
+
+        split(root, first);
+        int before = splitLeft;
+        split(splitRight, last - first + 1);
+        int edited = splitLeft, after = splitRight;
+        freeTree(edited);
+        root = merge(merge(before, newNode(joined)), after);
+    }
+
+    private int nodeAt(int line) {
+        int t = root;
+        while (true) {
+            int l = left[t];
+            if (line < count[l]) {
+                t = l;
+            } else if (line == count[l]) {
+                return t;
+            } else {
+                line -= count[l] + 1;
+                t = right[t];
+            }
+        }
+    }
+
+    private void addLength(int t, int line, int delta) {
+        while (true) {
+            sum[t] += delta;
+            int l = left[t];
+            if (line < count[l]) {
+                t = l;
+            } else if (line == count[l]) {
+                length[t] += delta;
+                return;
+            } else {
+                line -= count[l] + 1;
+                t = right[t];
+            }
+        }
+    }
+
+    private void update(int t) {
+        sum[t] = sum[left[t]] + length[t] + sum[right[t]];
+        count[t] = count[left[t]] + 1 + count[right[t]];
+    }
+
+    // Splits t into its first n lines (splitLeft) and the rest (splitRight)
+    private void split(int t, int n) {
+        if (t == NIL) {
+            splitLeft = splitRight = NIL;
+        } else if (n <= count[left[t]]) {
+            split(left[t], n);
+            left[t] = splitRight;
+            update(t);
+            splitRight = t;
+        } else {
+            split(right[t], n - count[left[t]] - 1);
+            right[t] = splitLeft;
+            update(t);
+            splitLeft = t;
+        }
+    }
+
+    private int merge(int a, int b) {
+        if (a == NIL) return b;
+        if (b == NIL) return a;
+        if (priority[a] > priority[b]) {
+            right[a] = merge(right[a], b);
+            update(a);
+            return a;
+        }
+        left[b] = merge(a, left[b]);
+        update(b);
+        return b;
+    }
+
+    // Builds a treap over lines[0, n) in linear time with the usual Cartesian tree stack
+    private int build(int[] lines, int n) {
+        int[] stack = new int[n];
+        int top = 0;
+        for (int i = 0; i < n; i++) {
+            int t = newNode(lines[i]);
+            int last = NIL;
+            while (top > 0 && priority[stack[top - 1]] < priority[t]) {
+                last = stack[--top];
+                update(last);
+            }
+            left[t] = last;
+            if (top > 0) {
+                right[stack[top - 1]] = t;
+            }
+            stack[top++] = t;
+        }
+        while (top > 1) {
+            update(stack[--top]);
+        }
+        if (top == 0) return NIL;
+        update(stack[0]);
+        return stack[0];
+    }
+
+    private int newNode(int lineLength) {
+        int t;
+        if (free != NIL) {
+            t = free;
+            free = right[t];
+        } else {
+            if (nodes == length.length) {
+                int capacity = nodes * 2;
+                length = Arrays.copyOf(length, capacity);
+                sum = Arrays.copyOf(sum, capacity);
+                count = Arrays.copyOf(count, capacity);
+                priority = Arrays.copyOf(priority, capacity);
+                left = Arrays.copyOf(left, capacity);
+                right = Arrays.copyOf(right, capacity);
+            }
+            t = nodes++;
+        }
+        // xorshift keeps priorities random without a Random per index
+        seed ^= seed << 13;
+        seed ^= seed >>> 17;
+        seed ^= seed << 5;
+        priority[t] = seed;
+        length[t] = sum[t] = lineLength;
+        count[t] = 1;
+        left[t] = right[t] = NIL;
+        return t;
+    }
+
+    // Test method: keeps an index in step with a PlainDocument through random edits, undos
+    // and redos, and checks it against the document's own line elements
+    static void test() {
+        Random random = new Random(1549);
+        PlainDocument document = new PlainDocument();
+        UndoManager undo = new UndoManager();
+        undo.setLimit(-1);
+        LineIndex[] index = {LineIndex.of("")};
+        int edits = 20000;
+        document.addUndoableEditListener(undo);
+        document.addDocumentListener(new DocumentListener() {
+            public void insertUpdate(DocumentEvent e) {
+                try {
+                    Segment text = new Segment();
+                    e.getDocument().getText(e.getOffset(), e.getLength(), text);
+                    index[0].insert(e.getOffset(), text);
+                } catch (BadLocationException ex) {
+                    throw new IllegalStateException(ex);
+                }
+            }
+            public void removeUpdate(DocumentEvent e) { index[0].remove(e.getOffset(), e.getLength()); }
+            public void changedUpdate(DocumentEvent e) { }
+        });
+
+        try {
+            for (int i = 0; i < edits; i++) {
+                int length = document.getLength();
+                int op = random.nextInt(10);
+                if (op < 5 || length < 2000) {
+                    StringBuilder sb = new StringBuilder();
+                    for (int k = 1 + random.nextInt(random.nextInt(10) == 0 ? 300 : 6); k > 0; k--) {
+                        sb.append("xy\n".charAt(random.nextInt(3)));
+                    }
+                    document.insertString(random.nextInt(length + 1), sb.toString(), null);
+                } else if (op < 8 || length > 8000) {
+                    int where = random.nextInt(length);
+                    document.remove(where, 1 + random.nextInt(Math.min(length - where, random.nextBoolean() ? 5 : 400)));
+                } else if (op == 8 && undo.canUndo()) {
+                    undo.undo();
+                } else if (undo.canRedo()) {
+                    undo.redo();
+                }
+
+                Element lines = document.getDefaultRootElement();
+                if (index[0].lineCount() != lines.getElementCount() || index[0].length() != document.getLength()) {
+                    throw new IllegalStateException("Line count differs after edit " + i);
+                }
+                for (int line = 0; line < lines.getElementCount(); line += 1 + random.nextInt(8)) {
+                    if (index[0].lineStart(line) != lines.getElement(line).getStartOffset()) {
+                        throw new IllegalStateException("Start of line " + line + " differs after edit " + i);
+                    }
+                }
+                for (int k = 0; k < 8; k++) {
+                    int offset = random.nextInt(document.getLength() + 1);
+                    if (index[0].lineOfOffset(offset) != lines.getElementIndex(offset)) {
+                        throw new IllegalStateException("Line of " + offset + " differs after edit " + i);
+                    }
+                }
+                if (i % 1000 == 0) {
+                    // A rebuilt index must agree with the incrementally updated one
+                    LineIndex rebuilt = LineIndex.of(document.getText(0, document.getLength()));
+                    for (int line = 0; line < rebuilt.lineCount(); line++) {
+                        if (rebuilt.lineStart(line) != index[0].lineStart(line)) {
+                            throw new IllegalStateException("Rebuilt index differs after edit " + i);
+                        }
+                    }
+                    index[0] = rebuilt;
+                }
+            }
+        } catch (BadLocationException e) {
+            throw new IllegalStateException("LineIndex test failed: " + e.getMessage(), e);
+        }
+
+        System.out.println("LineIndex: " + edits + " edits matched PlainDocument lines ("
+                + index[0].lineCount() + " lines, " + document.getLength() + " chars)");
+    }
+
+    private void freeTree(int t) {
+        int[] stack = new int[64];
+        int top = 0;
+        if (t != NIL) stack[top++] = t;
+        while (top > 0) {
+            int node = stack[--top];
+            if (top + 2 > stack.length) {
+                stack = Arrays.copyOf(stack, stack.length * 2);
+            }
+            if (left[node] != NIL) stack[top++] = left[node];
+            if (right[node] != NIL) stack[top++] = right[node];
+            right[node] = free;
+            free = node;
+        }
+    }
+}
@@ -0,0 +1,273 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+// Read-only, memory-mapped view of a file too large to load into a document. Nothing is
+// decoded until a line is asked for, and a sparse index holding the start of every
+// LINES_PER_CHECKPOINT-th line is built on a background thread. Finding a line never scans
+// more than SCAN_LIMIT bytes for its end: the indexer also records where every line longer
+// than that ends, and until it gets there such a line's successors are not known yet
+class MappedTextFile implements Closeable {
+    static final int LINES_PER_CHECKPOINT = 1024;
+    // No more than a line's text that is ever decoded
+    static final int SCAN_LIMIT = 1 << 15;
+    private static final long REGION_SIZE = 1L << 30;
+    private static final int PUBLISH_INTERVAL = 1 << 20;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final MappedByteBuffer[] regions;
+    private final long size;
+    private final CharsetDecoder decoder;
+    private final Thread indexer;
+    private volatile long[] checkpoints = new long[256];
+    private volatile int checkpointCount = 1;
+    private volatile long indexedLines;
+    private volatile boolean indexed;
+    // Where each line of SCAN_LIMIT bytes or more ends, in order. The indexer writes an entry
+    // before the count that takes it in, so readers read the count first; the array they read
+    // after it is then never an older, shorter one
+    private volatile long[] longLineEnds = new long[16];
+    private volatile int longLineCount;
+    // Starts of the lines from cacheFirst on, as far as they have been asked for, so repainting
+    // the same lines does not scan them again
+    private long cacheFirst = -1;
+    private long[] cacheStarts = new long[LINES_PER_CHECKPOINT + 1];
+    private int cacheCount;
+    private byte[] lineBytes = new byte[4096];
+    private CharBuffer lineChars = CharBuffer.allocate(4096);
+
+    MappedTextFile(Path path, Charset charset) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.size = channel.size();
+        this.regions = new MappedByteBuffer[(int) ((size + REGION_SIZE - 1) / REGION_SIZE)];
+        for (int i = 0; i < regions.length; i++) {
+            long start = i * REGION_SIZE;
+            regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(REGION_SIZE, size - start));
+        }
+        this.decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        indexer = new Thread(this::buildIndex, "Line index: " + path.getFileName());
+        indexer.setDaemon(true);
+        indexer.setPriority(Thread.MIN_PRIORITY);
+        indexer.start();
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    long size() {
+        return size;
+    }
+
+    boolean isIndexed() {
+        return indexed;
+    }
+
+    // Number of lines whose start is known so far; the final count once indexing is done
+    long lineCount() {
+        return indexed ? indexedLines : Math.max(1, indexedLines);
+    }
+
+    private void buildIndex() {
+        long lines = 0;
+        long[] index = checkpoints;
+        int count = 1;
+        long lineBegin = 0;
+        for (int r = 0; r < regions.length; r++) {
+            ByteBuffer region = regions[r].duplicate();
+            long base = r * REGION_SIZE;
+            int limit = region.limit();
+            for (int i = 0; i < limit; i++) {
+                if (region.get(i) == '\n') {
+                    if (base + i - lineBegin >= SCAN_LIMIT) {
+                        addLongLine(base + i + 1);
+                    }
+                    lineBegin = base + i + 1;
+                    lines++;
+                    if (lines % LINES_PER_CHECKPOINT == 0) {
+                        if (count == index.length) {
+                            index = Arrays.copyOf(index, count * 2);
+                        }
+                        index[count++] = base + i + 1;
+                    }
+                }
+                if ((i & (PUBLISH_INTERVAL - 1)) == PUBLISH_INTERVAL - 1) {
+                    if (Thread.currentThread().isInterrupted()) return;
+                    publish(index, count, lines);
+                }
+            }
+        }
+        // The text after the last newline is a line of its own, even when empty
+        if (size - lineBegin >= SCAN_LIMIT) {
+            addLongLine(size);
+        }
+        publish(index, count, lines + 1);
+        indexed = true;
+    }
+
+    private void addLongLine(long end) {
+        long[] ends = longLineEnds;
+        int count = longLineCount;
+        if (count == ends.length) {
+            ends = Arrays.copyOf(ends, count * 2);
+            longLineEnds = ends;
+        }
+        ends[count] = end;
+        longLineCount = count + 1;
+    }
+
+    private void publish(long[] index, int count, long lines) {
+        checkpoints = index;
+        checkpointCount = count;
+        indexedLines = lines;
+    }
+
+    byte byteAt(long pos) {
+        return regions[(int) (pos / REGION_SIZE)].get((int) (pos % REGION_SIZE));
+    }
+
+    // The start of the given zero-based line, or -1 if a long line before it has not been
+    // indexed yet
+    long lineStart(long line) {
+        int c = (int) Math.min(line / LINES_PER_CHECKPOINT, checkpointCount - 1);
+        long first = (long) c * LINES_PER_CHECKPOINT;
+        if (cacheFirst != first) {
+            cacheFirst = first;
+            cacheStarts[0] = checkpoints[c];
+            cacheCount = 1;
+        }
+        long wanted = line - first;
+        while (cacheCount <= wanted) {
+            long pos = cacheStarts[cacheCount - 1];
+            if (pos >= size) return size;
+            long next = nextLineStart(pos);
+            if (next < 0) return -1;
+            if (cacheCount == cacheStarts.length) {
+                cacheStarts = Arrays.copyOf(cacheStarts, cacheCount * 2);
+            }
+            cacheStarts[cacheCount++] = next;
+        }
+        return cacheStarts[(int) wanted];
+    }
+
+    // The start of the line after the one starting at pos, or -1 if that line is longer than
+    // SCAN_LIMIT and the indexer has not reached its end yet
+    long nextLineStart(long pos) {
+        long end = Math.min(size, pos + SCAN_LIMIT);
+        for (long p = pos; p < end; p++) {
+            if (byteAt(p) == '\n') return p + 1;
+        }
+        if (end == size) return size;
+
+        // No newline between pos and a recorded end, so the first end after pos is this line's
+        int count = longLineCount;
+        long[] ends = longLineEnds;
+        int low = 0, high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (ends[mid] <= pos) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low < count ? ends[low] : -1;
+    }
+
+    // Decodes at most maxChars of the line starting at pos, without its line terminator
+    String lineText(long pos, int maxChars) {
+        int maxBytes = Math.min(maxChars * 4, SCAN_LIMIT);
+        if (lineBytes.length < maxBytes) {
+            lineBytes = new byte[maxBytes];
+        }
+        int n = 0;
+        while (pos + n < size && n < maxBytes) {
+            byte b = byteAt(pos + n);
+            if (b == '\n') break;
+            lineBytes[n++] = b;
+        }
+        if (n > 0 && lineBytes[n - 1] == '\r') {
+            n--;
+        }
+        if (lineChars.capacity() < n) {
+            lineChars = CharBuffer.allocate(n);
+        }
+        lineChars.clear();
+        decoder.reset();
+        decoder.decode(ByteBuffer.wrap(lineBytes, 0, n), lineChars, true);
+        decoder.flush(lineChars);
+        lineChars.flip();
+        return lineChars.length() > maxChars ? lineChars.subSequence(0, maxChars).toString() : lineChars.toString();
+    }
+
+    public void close() throws IOException {
+        indexer.interrupt();
+        channel.close();
+    }
+
+    static void test() {
+        Random random = new Random(29);
+        java.util.List<Long> starts = new java.util.ArrayList<>();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (int line = 0; line < 5000; line++) {
+            starts.add((long) bytes.size());
+            int length = random.nextInt(50) == 0 ? SCAN_LIMIT - 2 + random.nextInt(SCAN_LIMIT * 2) : random.nextInt(80);
+            for (int i = 0; i < length; i++) {
+                bytes.write('a' + i % 26);
+            }
+            if (line < 4999) {
+                bytes.write('\n');
+            }
+        }
+        try {
+            Path path = Files.createTempFile("notepad-mapped", ".txt");
+            try {
+                Files.write(path, bytes.toByteArray());
+                try (MappedTextFile file = new MappedTextFile(path, StandardCharsets.UTF_8)) {
+                    // Lines asked for while the indexer is still adding long lines are either
+                    // right or not known yet
+                    for (int line = 0; line < starts.size() && !file.isIndexed(); line++) {
+                        long start = file.lineStart(line);
+                        if (start >= 0 && start != starts.get(line)) {
+                            throw new IllegalStateException("MappedTextFile put line " + line + " at " + start
+                                    + " while indexing, not " + starts.get(line));
+                        }
+                    }
+                    file.indexer.join();
+                    if (file.lineCount() != starts.size()) {
+                        throw new IllegalStateException("MappedTextFile counted " + file.lineCount() + " lines, not " + starts.size());
+                    }
+                    for (int round = 0; round < 2000; round++) {
+                        int line = round < starts.size() ? round : random.nextInt(starts.size());
+                        if (file.lineStart(line) != starts.get(line)) {
+                            throw new IllegalStateException("MappedTextFile put line " + line + " at " + file.lineStart(line)
+                                    + ", not " + starts.get(line));
+                        }
+                    }
+                }
+            } finally {
+                Files.delete(path);
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        System.out.println("MappedTextFile: 2000 line lookups with long lines passed");
+    }
+}
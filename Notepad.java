@@ -2,19 +2,150 @@ import javax.swing.*;
 import javax.swing.filechooser.FileNameExtensionFilter;
 import java.awt.*;
 import java.awt.event.*;
-import java.awt.print.PrinterException;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnmappableCharacterException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.LongConsumer;
+import java.util.regex.PatternSyntaxException;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.*;
 
 public class Notepad extends JFrame implements ActionListener {
+    // Files at least this big are memory-mapped and shown read-only instead of loaded
+    private static final long LARGE_FILE_THRESHOLD = Long.getLong("notepad.largeFileThreshold", 64L * 1024 * 1024);
+    // Saving documents at least this big only appends the edit journal; the full rewrite follows when idle
+    private static final int JOURNALED_SAVE_THRESHOLD = Integer.getInteger("notepad.journaledSaveThreshold", 16 * 1024 * 1024);
+    private static final int JOURNAL_SYNC_DELAY = 2000;
+    private static final int FULL_SAVE_DELAY = 10000;
+    // Smaller documents are searched right away on the EDT, bigger ones in the background
+    private static final int BACKGROUND_SEARCH_THRESHOLD = 1024 * 1024;
+    private static final int MAX_FIND_HIGHLIGHTS = 10000;
+    private static final int FRAME_DELAY = 16;
+    private static final int STATS_DELAY = 100;
+    private static final int MENU_FALLBACK_DELAY = 500;
+    private static final int MAX_FILE_HITS = 50000;
+    private static final long UNDO_BUDGET = Long.getLong("notepad.undoBudget", 32L * 1024 * 1024);
+    // Inactive tabs beyond this much text are written out to the spill file, least recently used first
+    private static final long TAB_MEMORY_BUDGET = Long.getLong("notepad.tabMemoryBudget", 256L * 1024 * 1024);
+
     private JTextArea textArea;
     private JScrollPane scrollPane;
+    // One text area serves every tab; the selected tab's panel holds the scroll pane
+    private JTabbedPane tabs;
+    private final java.util.List<DocumentTab> openTabs = new java.util.ArrayList<>();
+    private DocumentTab activeTab;
+    private long tabUses;
+    private SpillFile spillFile;
+    // Saves in flight finish against the selected document, so tabs stay put until they are done
+    private final java.util.Set<SwingWorker<?, ?>> saveTasks = new java.util.HashSet<>();
     private JMenuBar menuBar;
     private JMenu fileMenu, editMenu, formatMenu, helpMenu;
-    private JMenuItem newFile, openFile, saveFile, saveAs, exit;
-    private JMenuItem cut, copy, paste, selectAll, find;
+    private JMenuItem newFile, openFile, closeTab, saveFile, saveAs, followLimit, exit;
+    private JCheckBoxMenuItem follow;
+    private JMenuItem undo, redo, cut, copy, paste, selectAll, find, findNext, findPrevious, findAll, findInFiles, replace, goTo;
     private JMenuItem wordWrap, font, about;
+    private JCheckBoxMenuItem latexPreview;
+    private JCheckBoxMenuItem latencyMonitor;
+    private final LatencyMonitor latency = new LatencyMonitor();
+    private LatencyMonitor.Overlay latencyOverlay;
+    // Built the first time it is shown
+    private LaTeXPreview preview;
+    private JSplitPane previewSplit;
     private File currentFile;
     private boolean isModified = false;
+    private DocumentListener documentListener;
+    private MappedTextFile largeFile;
+    private LargeFileView largeFileView;
+    private ChangeTracker tracker = new ChangeTracker();
+    private Timer refreshTimer;
+    private JPanel statusBar;
+    private JLabel statusLabel;
+    private JLabel caretLabel;
+    private JLabel statsLabel;
+    private JLabel journalLabel;
+    private boolean startupDone;
+    private JFileChooser fileChooser;
+    private java.util.concurrent.CompletableFuture<String[]> fontFamilies;
+    private DocumentStats stats;
+    private Timer statsTimer;
+    private long shownWords;
+    private LineIndex lineIndex = LineIndex.of("");
+    private EditHistory history;
+    private SwingWorker<Void, String> followTask;
+    private int followLineLimit;
+    private boolean followTrimmed;
+    private JProgressBar progressBar;
+    private JButton cancelButton;
+    private SwingWorker<?, ?> currentTask;
+    private SwingWorker<?, ?> loadTask;
+    // Reading a spilled tab back in before it is shown
+    private SwingWorker<?, ?> restoreTask;
+    // Runs once that tab is shown; dropped if it never is
+    private Runnable afterRestore;
+    private EditJournal journal;
+    private Timer journalTimer;
+    private Timer fullSaveTimer;
+    private JDialog findDialog;
+    private JTextField findField, replaceField;
+    private JCheckBox matchCaseBox, regexBox;
+    private TextSearch lastSearch;
+    private SwingWorker<?, ?> searchTask;
+    private final java.util.List<Object> findHighlights = new java.util.ArrayList<>();
+    private JDialog findInFilesDialog;
+    private JTextField directoryField, filesQueryField, fileGlobField;
+    private JCheckBox filesMatchCaseBox, filesRegexBox;
+    private JButton filesFindButton, filesStopButton;
+    private JLabel filesStatusLabel;
+    private DefaultListModel<FileSearch.Hit> fileHits;
+    private FileSearch fileSearch;
+    private java.util.concurrent.ForkJoinPool fileSearchPool;
+    private final Highlighter.HighlightPainter findPainter =
+            new DefaultHighlighter.DefaultHighlightPainter(new Color(255, 230, 120));
+    // File reads and writes run here, one at a time and in the order they were asked for
+    private final ExecutorService ioExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "Notepad I/O");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Word counts are kept up to date at low priority, behind typing and painting
+    private final ExecutorService statsExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "Notepad Statistics");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+    // LaTeX previews compile here, out of the way of saves and searches
+    private final ExecutorService previewExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "Notepad Preview");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Searches get their own thread so a long one never holds up a save
+    private final ExecutorService searchExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "Notepad Search");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     public Notepad() {
         setTitle("Notepad - Untitled");
@@ -27,10 +158,53 @@ public class Notepad extends JFrame implements ActionListener {
         setupEventHandlers();
         
         setVisible(true);
+        StartupReport.mark("frame shown");
+        getLayeredPane().addComponentListener(new ComponentAdapter() {
+            @Override
+            public void componentResized(ComponentEvent e) {
+                placeLatencyOverlay();
+            }
+        });
+        if (Boolean.getBoolean("notepad.latencyMonitor")) {
+            showLatencyMonitor(true);
+        }
+        // In case the text area is never painted, say because the window starts minimized
+        Timer fallback = new Timer(MENU_FALLBACK_DELAY, e -> startupPainted());
+        fallback.setRepeats(false);
+        fallback.start();
+    }
+
+    // The window is on screen, so the rest of the UI can be built without holding it up
+    private void startupPainted() {
+        if (startupDone) return;
+
+        startupDone = true;
+        StartupReport.mark("first paint");
+        SwingUtilities.invokeLater(() -> {
+            populateMenus();
+            StartupReport.mark("menus built");
+            StartupReport.finish();
+            fontFamilies();
+        });
     }
 
     private void initializeComponents() {
-        textArea = new JTextArea();
+        textArea = new JTextArea(new PieceTableDocument()) {
+            @Override
+            public void updateUI() {
+                setUI(new WrapView.TextAreaUI());
+            }
+
+            @Override
+            protected void paintComponent(Graphics g) {
+                latency.paintStarted();
+                super.paintComponent(g);
+                latency.paintFinished();
+                if (!startupDone) {
+                    startupPainted();
+                }
+            }
+        };
         textArea.setFont(new Font("Consolas", Font.PLAIN, 14));
         textArea.setLineWrap(true);
         textArea.setWrapStyleWord(true);
@@ -39,96 +213,264 @@ public class Notepad extends JFrame implements ActionListener {
         scrollPane.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED);
         scrollPane.setHorizontalScrollBarPolicy(JScrollPane.HORIZONTAL_SCROLLBAR_AS_NEEDED);
         
-        add(scrollPane, BorderLayout.CENTER);
+        tabs = new JTabbedPane(JTabbedPane.TOP, JTabbedPane.SCROLL_TAB_LAYOUT);
+        JPanel firstTab = new JPanel(new BorderLayout());
+        firstTab.add(scrollPane, BorderLayout.CENTER);
+        tabs.addTab("Untitled", firstTab);
+        add(tabs, BorderLayout.CENTER);
+
+        // Status bar with progress for long-running file operations
+        statusBar = new JPanel(new BorderLayout());
+        statusLabel = new JLabel(" ");
+        progressBar = new JProgressBar(0, 100);
+        progressBar.setVisible(false);
+        cancelButton = new JButton("Cancel");
+        cancelButton.setVisible(false);
+
+        JPanel progressPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT, 4, 0));
+        progressPanel.add(progressBar);
+        progressPanel.add(cancelButton);
+        journalLabel = new JLabel("File not yet updated");
+        journalLabel.setToolTipText("The changes are saved to the edit journal; the file itself is rewritten once saving goes quiet");
+        journalLabel.setBorder(BorderFactory.createEmptyBorder(0, 12, 0, 0));
+        journalLabel.setVisible(false);
+        progressPanel.add(journalLabel);
+        statsLabel = new JLabel(" ");
+        statsLabel.setBorder(BorderFactory.createEmptyBorder(0, 12, 0, 0));
+        progressPanel.add(statsLabel);
+        caretLabel = new JLabel("Ln 1, Col 1");
+        caretLabel.setBorder(BorderFactory.createEmptyBorder(0, 12, 0, 8));
+        progressPanel.add(caretLabel);
+        statusBar.add(statusLabel, BorderLayout.WEST);
+        statusBar.add(progressPanel, BorderLayout.EAST);
+        add(statusBar, BorderLayout.SOUTH);
     }
 
+    // Only the top-level menus exist until the window has been painted; their items come after
     private void createMenuBar() {
         menuBar = new JMenuBar();
+        fileMenu = new JMenu("File");
+        editMenu = new JMenu("Edit");
+        formatMenu = new JMenu("Format");
+        helpMenu = new JMenu("Help");
+        for (JMenu menu : new JMenu[]{fileMenu, editMenu, formatMenu, helpMenu}) {
+            // Opened before they were filled in, which only a very quick user can manage
+            menu.addMenuListener(new javax.swing.event.MenuListener() {
+                public void menuSelected(javax.swing.event.MenuEvent e) {
+                    populateMenus();
+                }
+                public void menuDeselected(javax.swing.event.MenuEvent e) { }
+                public void menuCanceled(javax.swing.event.MenuEvent e) { }
+            });
+            menuBar.add(menu);
+        }
+        setJMenuBar(menuBar);
+    }
+
+    private void populateMenus() {
+        if (newFile != null) return;
 
         // File Menu
-        fileMenu = new JMenu("File");
         newFile = new JMenuItem("New");
         openFile = new JMenuItem("Open");
+        closeTab = new JMenuItem("Close");
         saveFile = new JMenuItem("Save");
         saveAs = new JMenuItem("Save As");
+        follow = new JCheckBoxMenuItem("Follow");
+        followLimit = new JMenuItem("Follow Line Limit");
         exit = new JMenuItem("Exit");
 
         newFile.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_N, InputEvent.CTRL_DOWN_MASK));
+        follow.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_F5, InputEvent.CTRL_DOWN_MASK));
         openFile.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_O, InputEvent.CTRL_DOWN_MASK));
+        closeTab.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_W, InputEvent.CTRL_DOWN_MASK));
         saveFile.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_S, InputEvent.CTRL_DOWN_MASK));
 
         fileMenu.add(newFile);
         fileMenu.add(openFile);
+        fileMenu.add(closeTab);
         fileMenu.addSeparator();
         fileMenu.add(saveFile);
         fileMenu.add(saveAs);
         fileMenu.addSeparator();
+        fileMenu.add(follow);
+        fileMenu.add(followLimit);
+        fileMenu.addSeparator();
         fileMenu.add(exit);
 
         // Edit Menu
-        editMenu = new JMenu("Edit");
+        undo = new JMenuItem("Undo");
+        redo = new JMenuItem("Redo");
         cut = new JMenuItem("Cut");
         copy = new JMenuItem("Copy");
         paste = new JMenuItem("Paste");
         selectAll = new JMenuItem("Select All");
         find = new JMenuItem("Find");
+        findNext = new JMenuItem("Find Next");
+        findPrevious = new JMenuItem("Find Previous");
+        findAll = new JMenuItem("Find All");
+        findInFiles = new JMenuItem("Find in Files");
+        replace = new JMenuItem("Replace");
+        goTo = new JMenuItem("Go To");
 
+        undo.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Z, InputEvent.CTRL_DOWN_MASK));
+        redo.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Y, InputEvent.CTRL_DOWN_MASK));
         cut.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_X, InputEvent.CTRL_DOWN_MASK));
         copy.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_C, InputEvent.CTRL_DOWN_MASK));
         paste.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_V, InputEvent.CTRL_DOWN_MASK));
         selectAll.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_A, InputEvent.CTRL_DOWN_MASK));
         find.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_F, InputEvent.CTRL_DOWN_MASK));
+        findNext.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_F3, 0));
+        findPrevious.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_F3, InputEvent.SHIFT_DOWN_MASK));
+        findInFiles.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_F, InputEvent.CTRL_DOWN_MASK | InputEvent.SHIFT_DOWN_MASK));
+        replace.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_H, InputEvent.CTRL_DOWN_MASK));
+        goTo.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_G, InputEvent.CTRL_DOWN_MASK));
 
+        editMenu.add(undo);
+        editMenu.add(redo);
+        editMenu.addSeparator();
         editMenu.add(cut);
         editMenu.add(copy);
         editMenu.add(paste);
         editMenu.addSeparator();
         editMenu.add(selectAll);
+        editMenu.addSeparator();
         editMenu.add(find);
+        editMenu.add(findNext);
+        editMenu.add(findPrevious);
+        editMenu.add(findAll);
+        editMenu.add(findInFiles);
+        editMenu.add(replace);
+        editMenu.add(goTo);
 
         // Format Menu
-        formatMenu = new JMenu("Format");
         wordWrap = new JMenuItem("Word Wrap");
         font = new JMenuItem("Font");
+        latexPreview = new JCheckBoxMenuItem("LaTeX Preview");
 
         formatMenu.add(wordWrap);
         formatMenu.add(font);
+        formatMenu.addSeparator();
+        formatMenu.add(latexPreview);
 
         // Help Menu
-        helpMenu = new JMenu("Help");
+        latencyMonitor = new JCheckBoxMenuItem("Latency Monitor", latencyOverlay != null);
         about = new JMenuItem("About");
+        helpMenu.add(latencyMonitor);
+        helpMenu.addSeparator();
         helpMenu.add(about);
 
-        menuBar.add(fileMenu);
-        menuBar.add(editMenu);
-        menuBar.add(formatMenu);
-        menuBar.add(helpMenu);
-
-        setJMenuBar(menuBar);
-    }
-
-    private void setupEventHandlers() {
-        // Add action listeners
         newFile.addActionListener(this);
         openFile.addActionListener(this);
+        closeTab.addActionListener(this);
         saveFile.addActionListener(this);
         saveAs.addActionListener(this);
+        follow.addActionListener(this);
+        followLimit.addActionListener(this);
         exit.addActionListener(this);
+        undo.addActionListener(this);
+        redo.addActionListener(this);
         cut.addActionListener(this);
         copy.addActionListener(this);
         paste.addActionListener(this);
         selectAll.addActionListener(this);
         find.addActionListener(this);
+        findNext.addActionListener(this);
+        findPrevious.addActionListener(this);
+        findAll.addActionListener(this);
+        findInFiles.addActionListener(this);
+        replace.addActionListener(this);
+        goTo.addActionListener(this);
         wordWrap.addActionListener(this);
         font.addActionListener(this);
+        latexPreview.addActionListener(this);
         about.addActionListener(this);
+        latencyMonitor.addActionListener(this);
+        updateUndoState();
+        menuBar.revalidate();
+    }
+
+    private void setupEventHandlers() {
+        cancelButton.addActionListener(e -> {
+            if (currentTask != null) {
+                // Interrupting a read of the spill file would close it for every tab
+                currentTask.cancel(currentTask != restoreTask);
+            }
+        });
 
         // Document listener to track changes
-        textArea.getDocument().addDocumentListener(new javax.swing.event.DocumentListener() {
-            public void insertUpdate(javax.swing.event.DocumentEvent e) { setModified(true); }
-            public void removeUpdate(javax.swing.event.DocumentEvent e) { setModified(true); }
-            public void changedUpdate(javax.swing.event.DocumentEvent e) { setModified(true); }
+        documentListener = new DocumentListener() {
+            public void insertUpdate(DocumentEvent e) {
+                latency.documentChanged();
+                tracker.edited();
+                Segment inserted = new Segment();
+                try {
+                    e.getDocument().getText(e.getOffset(), e.getLength(), inserted);
+                } catch (BadLocationException ex) {
+                    throw new IllegalStateException(ex);
+                }
+                lineIndex.insert(e.getOffset(), inserted);
+                stats.inserted(e.getOffset(), e.getLength());
+                scheduleRecount();
+                if (journal != null) {
+                    journal.recordInsert(e.getOffset(), inserted.toString());
+                    journalTimer.restart();
+                }
+                updateUndoState();
+                scheduleRefresh();
+            }
+            public void removeUpdate(DocumentEvent e) {
+                latency.documentChanged();
+                tracker.edited();
+                lineIndex.remove(e.getOffset(), e.getLength());
+                stats.removed(e.getOffset(), e.getLength());
+                scheduleRecount();
+                if (journal != null) {
+                    journal.recordRemove(e.getOffset(), e.getLength());
+                    journalTimer.restart();
+                }
+                updateUndoState();
+                scheduleRefresh();
+            }
+            public void changedUpdate(DocumentEvent e) { }
+        };
+        textArea.getDocument().addDocumentListener(documentListener);
+        textArea.addCaretListener(e -> {
+            latency.caretMoved();
+            scheduleRefresh();
+        });
+        // Keystrokes are timed from when they are dispatched to the text area until they are painted
+        KeyboardFocusManager.getCurrentKeyboardFocusManager().addKeyEventDispatcher(e -> {
+            if (e.getComponent() == textArea && e.getID() != KeyEvent.KEY_RELEASED) {
+                latency.keyDispatched();
+            }
+            return false;
+        });
+        latency.startWatchdog();
+        // Words are counted again in the background once per burst of edits, at most every STATS_DELAY
+        stats = new DocumentStats(statsExecutor, SwingUtilities::invokeLater, this::refreshStatus);
+        statsTimer = new Timer(STATS_DELAY, e -> stats.recount());
+        statsTimer.setRepeats(false);
+        stats.reset(textArea.getDocument());
+        // Title and status bar follow the text at most once a frame, however fast it changes
+        refreshTimer = new Timer(FRAME_DELAY, e -> refreshStatus());
+        refreshTimer.setRepeats(false);
+        history = new EditHistory(UNDO_BUDGET);
+        ((AbstractDocument) textArea.getDocument()).setDocumentFilter(history);
+        updateUndoState();
+        activeTab = new DocumentTab();
+        openTabs.add(activeTab);
+        tabs.addChangeListener(e -> selectTab(tabs.getSelectedIndex()));
+
+        // Edits reach the journal file a moment after typing pauses
+        journalTimer = new Timer(JOURNAL_SYNC_DELAY, e -> syncJournal());
+        journalTimer.setRepeats(false);
+        fullSaveTimer = new Timer(FULL_SAVE_DELAY, e -> {
+            if (currentFile != null && largeFile == null) {
+                saveToFile(currentFile, () -> {});
+            }
         });
+        fullSaveTimer.setRepeats(false);
 
         // Window closing event
         addWindowListener(new WindowAdapter() {
@@ -145,20 +487,35 @@ public class Notepad extends JFrame implements ActionListener {
 
         switch (command) {
             case "New":
-                newDocument();
+                newTab();
                 break;
             case "Open":
                 openDocument();
                 break;
+            case "Close":
+                closeActiveTab();
+                break;
             case "Save":
                 saveDocument();
                 break;
             case "Save As":
                 saveAsDocument();
                 break;
+            case "Follow":
+                toggleFollow();
+                break;
+            case "Follow Line Limit":
+                chooseFollowLimit();
+                break;
             case "Exit":
                 exitApplication();
                 break;
+            case "Undo":
+                undoEdit();
+                break;
+            case "Redo":
+                redoEdit();
+                break;
             case "Cut":
                 textArea.cut();
                 break;
@@ -174,113 +531,1543 @@ public class Notepad extends JFrame implements ActionListener {
             case "Find":
                 findText();
                 break;
+            case "Find Next":
+                findNext(true);
+                break;
+            case "Find Previous":
+                findNext(false);
+                break;
+            case "Find All":
+                findAll();
+                break;
+            case "Find in Files":
+                showFindInFiles();
+                break;
+            case "Replace":
+                findText();
+                replaceField.requestFocusInWindow();
+                break;
+            case "Go To":
+                goToLine();
+                break;
             case "Word Wrap":
                 toggleWordWrap();
                 break;
             case "Font":
                 chooseFont();
                 break;
+            case "LaTeX Preview":
+                updateLaTeX();
+                break;
             case "About":
                 showAbout();
                 break;
+            case "Latency Monitor":
+                showLatencyMonitor(latencyMonitor.isSelected());
+                break;
         }
     }
 
-    private void newDocument() {
-        if (isModified && !confirmSave()) return;
-        
-        textArea.setText("");
-        currentFile = null;
-        setModified(false);
-        setTitle("Notepad - Untitled");
+    private void newTab() {
+        if (waitForSaves()) return;
+
+        DocumentTab tab = DocumentTab.untitled(UNDO_BUDGET);
+        openTabs.add(tab);
+        tabs.addTab("Untitled", new JPanel(new BorderLayout()));
+        tabs.setSelectedIndex(openTabs.size() - 1);
     }
 
     private void openDocument() {
-        if (isModified && !confirmSave()) return;
-
-        JFileChooser fileChooser = new JFileChooser();
-        fileChooser.setFileFilter(new FileNameExtensionFilter("Text Files", "txt"));
-        
+        JFileChooser fileChooser = fileChooser();
         if (fileChooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
+            openInTab(fileChooser.getSelectedFile(), () -> {});
+        }
+    }
+
+    // Slow to build the first time, so it is built when first needed and then kept, which also
+    // has it remember the last directory
+    private JFileChooser fileChooser() {
+        if (fileChooser == null) {
+            fileChooser = new JFileChooser();
+            FileNameExtensionFilter text = new FileNameExtensionFilter("Text Files", "txt");
+            fileChooser.addChoosableFileFilter(text);
+            fileChooser.addChoosableFileFilter(new FileNameExtensionFilter("LaTeX Files", "tex"));
+            fileChooser.setFileFilter(text);
+        }
+        return fileChooser;
+    }
+
+    // Shows the tab that already has the file open, or opens it in the selected tab if that one
+    // is an untouched Untitled document, or else in a new tab
+    private void openInTab(File file, Runnable onOpened) {
+        if (waitForSaves()) return;
+
+        for (int i = 0; i < openTabs.size(); i++) {
+            DocumentTab tab = openTabs.get(i);
+            File open = tab == activeTab ? currentFile : tab.file;
             try {
-                currentFile = fileChooser.getSelectedFile();
-                BufferedReader reader = new BufferedReader(new FileReader(currentFile));
-                textArea.read(reader, null);
-                reader.close();
-                setModified(false);
-                setTitle("Notepad - " + currentFile.getName());
+                if (open != null && Files.isSameFile(open.toPath(), file.toPath())) {
+                    tabs.setSelectedIndex(i);
+                    onOpened.run();
+                    return;
+                }
+            } catch (IOException ex) {
+                // Treat it as a different file
+            }
+        }
+        refreshStatus();
+        boolean blank = currentFile == null && largeFile == null && loadTask == null
+                && textArea.getDocument().getLength() == 0 && !tracker.isModified();
+        if (!blank) {
+            newTab();
+        }
+        openFile(file, onOpened);
+    }
+
+    private void closeActiveTab() {
+        if (waitForSaves()) return;
+        if (restoreTask != null) {
+            // The tab on show is not the active one yet
+            statusLabel.setText("Wait for the tab to be read back");
+            return;
+        }
+
+        confirmSave(() -> {
+            cancelLoad();
+            stopFollow(false);
+            closeLargeFile();
+            discardJournal();
+            int index = openTabs.indexOf(activeTab);
+            if (openTabs.size() == 1) {
+                // There is always a tab to type into
+                openTabs.add(DocumentTab.untitled(UNDO_BUDGET));
+                tabs.addTab("Untitled", new JPanel(new BorderLayout()));
+            }
+            // Nothing is left of it to put away
+            activeTab = null;
+            openTabs.remove(index);
+            tabs.removeTabAt(index);
+            selectTab(tabs.getSelectedIndex());
+        });
+    }
+
+    private boolean waitForSaves() {
+        if (saveTasks.isEmpty()) return false;
+
+        statusLabel.setText("Wait for the save to finish");
+        return true;
+    }
+
+    private void selectTab(int index) {
+        if (index < 0 || index >= openTabs.size()) return;
+        if (openTabs.get(index) == activeTab) {
+            // Back to the tab that never went away; a read still going on is left to finish unseen
+            cancelRestore();
+            return;
+        }
+
+        if (!saveTasks.isEmpty() && activeTab != null) {
+            // Put the selection back; this comes round again with the active tab and stops above
+            tabs.setSelectedIndex(openTabs.indexOf(activeTab));
+            waitForSaves();
+            return;
+        }
+        DocumentTab tab = openTabs.get(index);
+        if (tab.spilled != null) {
+            restoreTab(tab, index);
+            return;
+        }
+        cancelRestore();
+        if (activeTab != null) {
+            stashActiveTab();
+        }
+        showTab(tab);
+    }
+
+    // Reads a spilled tab back on the I/O thread, as opening a file does. The active tab keeps
+    // its place, though it cannot be typed into, until the text is in and the tab is shown
+    private void restoreTab(DocumentTab tab, int index) {
+        cancelRestore();
+        SpillFile.Extent extent = tab.spilled;
+        JPanel panel = (JPanel) tabs.getComponentAt(index);
+        JLabel placeholder = new JLabel("Reading back " + tab.title.replaceFirst("^Notepad - ", "") + "...",
+                SwingConstants.CENTER);
+        panel.add(placeholder, BorderLayout.CENTER);
+        panel.revalidate();
+        panel.repaint();
+
+        SwingWorker<PieceTableDocument, Void> task = new SwingWorker<PieceTableDocument, Void>() {
+            private LineIndex lines;
+
+            @Override
+            protected PieceTableDocument doInBackground() throws IOException {
+                CharBuffer text = spillFile.read(extent, bytes -> setProgress(percent(bytes, extent.bytes)));
+                lines = LineIndex.of(text);
+                return new PieceTableDocument(text);
+            }
+
+            @Override
+            protected void done() {
+                panel.remove(placeholder);
+                panel.revalidate();
+                panel.repaint();
+                // Still current unless another tab was chosen meanwhile
+                boolean current = restoreTask == this;
+                if (current) {
+                    restoreTask = null;
+                    textArea.setEditable(loadTask == null);
+                }
+                try {
+                    PieceTableDocument document = get();
+                    spillFile.free(extent);
+                    tab.restore(document, lines);
+                    taskFinished(this, " ");
+                } catch (CancellationException ex) {
+                    taskFinished(this, " ");
+                    // Cancelled from the status bar, so go back to the tab still active
+                    if (current && activeTab != null) {
+                        afterRestore = null;
+                        tabs.setSelectedIndex(openTabs.indexOf(activeTab));
+                    }
+                    return;
+                } catch (InterruptedException | ExecutionException ex) {
+                    taskFinished(this, " ");
+                    // Whatever waited for the text must not go on with an empty document
+                    if (current) {
+                        afterRestore = null;
+                    }
+                    JOptionPane.showMessageDialog(Notepad.this, "Error reading back " + tab.title + ": "
+                            + ex.getCause().getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+                    spillFile.free(extent);
+                    tab.restore(new PieceTableDocument(), LineIndex.of(""));
+                }
+                if (current && openTabs.contains(tab)) {
+                    selectTab(tabs.getSelectedIndex());
+                    Runnable then = afterRestore;
+                    afterRestore = null;
+                    if (then != null && activeTab == tab) {
+                        then.run();
+                    }
+                }
+            }
+        };
+        textArea.setEditable(false);
+        restoreTask = task;
+        runTask(task, "Reading back " + tab.title.replaceFirst("^Notepad - ", "") + "...");
+    }
+
+    // The spill file is shared, so the read is let run rather than interrupted; its result is dropped
+    private void cancelRestore() {
+        if (restoreTask == null) return;
+
+        SwingWorker<?, ?> task = restoreTask;
+        restoreTask = null;
+        afterRestore = null;
+        textArea.setEditable(loadTask == null);
+        task.cancel(false);
+    }
+
+    // Moves the selected document out of the fields into its tab, leaving nothing running against it
+    private void stashActiveTab() {
+        cancelLoad();
+        stopFollow(true);
+        cancelSearch();
+        clearFindHighlights();
+        refreshStatus();
+        syncJournal();
+        journalTimer.stop();
+        DocumentTab tab = activeTab;
+        tab.fullSavePending = fullSaveTimer.isRunning();
+        fullSaveTimer.stop();
+
+        tab.file = currentFile;
+        tab.title = getTitle();
+        tab.modified = isModified;
+        tab.document = textArea.getDocument();
+        tab.lines = lineIndex;
+        tab.history = history;
+        tab.tracker = tracker;
+        tab.journal = journal;
+        tab.largeFile = largeFile;
+        tab.largeFileView = largeFileView;
+        tab.dot = textArea.getCaret().getDot();
+        tab.mark = textArea.getCaret().getMark();
+        tab.viewPosition = scrollPane.getViewport().getViewPosition();
+        tab.lastUsed = ++tabUses;
+        activeTab = null;
+    }
+
+    // Moves a resident tab's document into the fields and the text area
+    private void showTab(DocumentTab tab) {
+        activeTab = tab;
+        textArea.getDocument().removeDocumentListener(documentListener);
+        lineIndex = tab.lines;
+        textArea.setDocument(tab.document);
+        tab.document.addDocumentListener(documentListener);
+        resetStats();
+        history = tab.history;
+        tracker = tab.tracker;
+        journal = tab.journal;
+        largeFile = tab.largeFile;
+        largeFileView = tab.largeFileView;
+        currentFile = tab.file;
+        isModified = tab.modified;
+        // The fields hold it from here on
+        tab.document = null;
+        tab.lines = null;
+
+        updateLaTeX();
+        ((JPanel) tabs.getSelectedComponent()).add(scrollPane, BorderLayout.CENTER);
+        scrollPane.setViewportView(largeFileView != null ? largeFileView : textArea);
+        setTitle(tab.title);
+        int length = textArea.getDocument().getLength();
+        textArea.setCaretPosition(Math.min(tab.mark, length));
+        textArea.moveCaretPosition(Math.min(tab.dot, length));
+        Point view = tab.viewPosition;
+        SwingUtilities.invokeLater(() -> {
+            if (activeTab == tab) {
+                scrollPane.getViewport().setViewPosition(view);
+            }
+        });
+        if (tab.fullSavePending) {
+            fullSaveTimer.restart();
+        }
+        setFileBehind(tab.fullSavePending);
+        updateUndoState();
+        refreshStatus();
+        tab.lastUsed = ++tabUses;
+        spillInactiveTabs();
+    }
+
+    // Writes the least recently used inactive documents to the spill file until the rest fit the budget
+    private void spillInactiveTabs() {
+        long resident = 0;
+        java.util.List<DocumentTab> candidates = new java.util.ArrayList<>();
+        for (DocumentTab tab : openTabs) {
+            if (tab != activeTab && tab.isResident()) {
+                resident += tab.memoryUsed();
+                if (!tab.spilling && tab.memoryUsed() > 0) {
+                    candidates.add(tab);
+                }
+            }
+        }
+        candidates.sort(Comparator.comparingLong(tab -> tab.lastUsed));
+        for (DocumentTab tab : candidates) {
+            if (resident <= TAB_MEMORY_BUDGET) break;
+            resident -= tab.memoryUsed();
+            spill(tab);
+        }
+    }
+
+    private void spill(DocumentTab tab) {
+        if (spillFile == null) {
+            try {
+                spillFile = SpillFile.create();
+            } catch (IOException ex) {
+                statusLabel.setText("Could not create spill file: " + ex.getMessage());
+                return;
+            }
+        }
+        SpillFile target = spillFile;
+        Document document = tab.document;
+        CharSequence text = snapshot(document);
+        long revision = tab.tracker.revision();
+        tab.spilling = true;
+        ioExecutor.execute(() -> {
+            try {
+                SpillFile.Extent extent = target.write(text);
+                SwingUtilities.invokeLater(() -> {
+                    tab.spilling = false;
+                    // Only text that is still the tab's, untouched since the snapshot, may be dropped
+                    if (tab != activeTab && tab.document == document && tab.tracker.revision() == revision
+                            && openTabs.contains(tab)) {
+                        tab.spill(extent);
+                    } else {
+                        target.free(extent);
+                    }
+                });
+            } catch (IOException ex) {
+                SwingUtilities.invokeLater(() -> {
+                    tab.spilling = false;
+                    statusLabel.setText("Could not spill " + tab.title + ": " + ex.getMessage());
+                });
+            }
+        });
+    }
+
+    // Loads the file on the I/O thread into a document nobody else can see yet, then swaps it in
+    private void openFile(File file) {
+        openFile(file, () -> {});
+    }
+
+    private void openFile(File file, Runnable onOpened) {
+        cancelLoad();
+        if (file.length() >= LARGE_FILE_THRESHOLD) {
+            try {
+                openLargeFile(file);
+                currentFile = file;
+                updateLaTeX();
+                onOpened.run();
             } catch (IOException ex) {
                 JOptionPane.showMessageDialog(this, "Error opening file: " + ex.getMessage(),
                         "Error", JOptionPane.ERROR_MESSAGE);
             }
+            return;
         }
+
+        long size = file.length();
+        SwingWorker<PieceTableDocument, Void> task = new SwingWorker<PieceTableDocument, Void>() {
+            private byte[] recovered;
+            private BasicFileAttributes attributes;
+            private LineIndex lines;
+            private long hash;
+
+            @Override
+            protected PieceTableDocument doInBackground() throws IOException {
+                attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+                PieceTableDocument document = PieceTableDocument.read(file.toPath(),
+                        bytes -> setProgress(percent(bytes, size)));
+                TextSnapshot text = document.snapshot();
+                lines = LineIndex.of(text);
+                hash = ChangeTracker.hash(text);
+                recovered = EditJournal.readRecoverable(file.toPath(), attributes);
+                return document;
+            }
+
+            @Override
+            protected void done() {
+                if (loadTask == this) {
+                    loadTask = null;
+                    textArea.setEditable(true);
+                }
+                try {
+                    PieceTableDocument document = get();
+                    closeLargeFile();
+                    discardJournal();
+                    installDocument(document, lines, hash);
+                    currentFile = file;
+                    setTitle("Notepad - " + file.getName());
+                    updateLaTeX();
+                    startJournal(file, attributes);
+                    taskFinished(this, "Opened " + file.getName() + " (" + TextEncoding.of(document) + ")");
+                    if (recovered != null) {
+                        offerRecovery(recovered);
+                    }
+                    onOpened.run();
+                } catch (CancellationException ex) {
+                    taskFinished(this, "Open cancelled");
+                } catch (InterruptedException | ExecutionException ex) {
+                    taskFinished(this, " ");
+                    JOptionPane.showMessageDialog(Notepad.this, "Error opening file: " + ex.getCause().getMessage(),
+                            "Error", JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        };
+        // The current text is about to be replaced, so don't let it take edits meanwhile
+        textArea.setEditable(false);
+        loadTask = task;
+        runTask(task, "Opening " + file.getName() + "...");
     }
 
     private void saveDocument() {
+        saveDocument(() -> {});
+    }
+
+    private void saveDocument(Runnable onSaved) {
+        if (largeFile != null) {
+            return; // Large files are read-only, there is nothing to save
+        }
+        if (journal != null && textArea.getDocument().getLength() >= JOURNALED_SAVE_THRESHOLD
+                && journal.size() < textArea.getDocument().getLength() / 4) {
+            saveToJournal(onSaved);
+            return;
+        }
         if (currentFile == null) {
-            saveAsDocument();
+            saveAsDocument(onSaved);
         } else {
-            saveToFile(currentFile);
+            saveToFile(currentFile, onSaved);
         }
     }
 
     private void saveAsDocument() {
-        JFileChooser fileChooser = new JFileChooser();
-        fileChooser.setFileFilter(new FileNameExtensionFilter("Text Files", "txt"));
-        
+        saveAsDocument(() -> {});
+    }
+
+    private void saveAsDocument(Runnable onSaved) {
+        JFileChooser fileChooser = fileChooser();
         if (fileChooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
             File file = fileChooser.getSelectedFile();
-            if (!file.getName().toLowerCase().endsWith(".txt")) {
-                file = new File(file.getAbsolutePath() + ".txt");
+            // A name typed without an extension gets the one of the chosen filter
+            if (file.getName().lastIndexOf('.') < 0) {
+                String extension = fileChooser.getFileFilter() instanceof FileNameExtensionFilter
+                        ? ((FileNameExtensionFilter) fileChooser.getFileFilter()).getExtensions()[0] : "txt";
+                file = new File(file.getAbsolutePath() + "." + extension);
+            }
+            if (largeFile != null) {
+                copyLargeFile(file);
+                return;
             }
-            saveToFile(file);
-            currentFile = file;
-            setTitle("Notepad - " + currentFile.getName());
+            File target = file;
+            saveToFile(target, () -> {
+                currentFile = target;
+                setTitle("Notepad - " + currentFile.getName());
+                updateLaTeX();
+                setModified(isModified);
+                onSaved.run();
+            });
         }
     }
 
-    private void saveToFile(File file) {
+    // Writes a snapshot of the text on the I/O thread, so typing carries on during the save.
+    // The text goes to a temporary file that replaces the target only once it is on disk
+    private void saveToFile(File file, Runnable onSaved) {
+        Document document = textArea.getDocument();
+        CharSequence text = snapshot(document);
+        String lineSeparator = lineSeparator(document);
+        TextEncoding encoding = TextEncoding.of(document);
+        long revisionAtSnapshot = tracker.revision();
+        int journalMark = journal != null ? journal.size() : 0;
+        fullSaveTimer.stop();
+
+        SwingWorker<BasicFileAttributes, Void> task = new SwingWorker<BasicFileAttributes, Void>() {
+            private long hash;
+
+            @Override
+            protected BasicFileAttributes doInBackground() throws IOException {
+                TextFiles.writeAtomically(file.toPath(), text, encoding, lineSeparator,
+                        written -> setProgress(percent(written, text.length())));
+                hash = ChangeTracker.hash(text);
+                return Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    BasicFileAttributes attributes = get();
+                    tracker.saved(revisionAtSnapshot, text.length(), hash);
+                    refreshStatus();
+                    rebaseJournal(file, journalMark, attributes);
+                    setFileBehind(false);
+                    taskFinished(this, "Saved " + file.getName());
+                    onSaved.run();
+                } catch (CancellationException ex) {
+                    taskFinished(this, "Save cancelled");
+                } catch (ExecutionException ex) {
+                    taskFinished(this, " ");
+                    if (ex.getCause() instanceof UnmappableCharacterException) {
+                        offerUtf8(file, encoding, onSaved);
+                    } else {
+                        JOptionPane.showMessageDialog(Notepad.this, "Error saving file: " + ex.getCause().getMessage(),
+                                "Error", JOptionPane.ERROR_MESSAGE);
+                    }
+                } catch (InterruptedException ex) {
+                    taskFinished(this, " ");
+                }
+            }
+        };
+        runTask(task, "Saving " + file.getName() + "...");
+    }
+
+    // The file was left as it was; saving in UTF-8 instead keeps every character
+    private void offerUtf8(File file, TextEncoding encoding, Runnable onSaved) {
+        int option = JOptionPane.showConfirmDialog(this,
+                "This document has characters that cannot be saved in " + encoding.charset.name() + ".\n"
+                        + "Do you want to save it as UTF-8 instead?", "Notepad", JOptionPane.YES_NO_OPTION);
+        if (option == JOptionPane.YES_OPTION) {
+            textArea.getDocument().putProperty(TextEncoding.PROPERTY, new TextEncoding(StandardCharsets.UTF_8, false));
+            saveToFile(file, onSaved);
+        }
+    }
+
+    // Makes the edits since the last full save durable by appending them to the journal,
+    // and leaves rewriting the file itself until saving goes quiet
+    private void saveToJournal(Runnable onSaved) {
+        EditJournal target = journal;
+        byte[] records = target.takeUnsynced();
+        CharSequence text = snapshot(textArea.getDocument());
+        long revisionAtSnapshot = tracker.revision();
+
+        SwingWorker<Long, Void> task = new SwingWorker<Long, Void>() {
+            @Override
+            protected Long doInBackground() throws IOException {
+                target.append(records);
+                return ChangeTracker.hash(text);
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    tracker.saved(revisionAtSnapshot, text.length(), get());
+                    refreshStatus();
+                    fullSaveTimer.restart();
+                    setFileBehind(true);
+                    taskFinished(this, "Saved changes to journal");
+                    onSaved.run();
+                } catch (CancellationException ex) {
+                    taskFinished(this, "Save cancelled");
+                } catch (InterruptedException | ExecutionException ex) {
+                    taskFinished(this, " ");
+                    JOptionPane.showMessageDialog(Notepad.this, "Error saving journal: " + ex.getCause().getMessage(),
+                            "Error", JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        };
+        runTask(task, "Saving " + currentFile.getName() + "...");
+    }
+
+    private void startJournal(File file, BasicFileAttributes attributes) {
+        journal = new EditJournal(file.toPath(), attributes);
+        writeJournal(journal, journal.image());
+    }
+
+    // The saved file now holds everything before journalMark, so only later edits stay in the journal
+    private void rebaseJournal(File file, int journalMark, BasicFileAttributes attributes) {
+        if (journal == null) {
+            startJournal(file, attributes);
+            return;
+        }
+        Path previous = journal.rebase(journalMark, file.toPath(), attributes);
+        EditJournal target = journal;
+        byte[] image = target.image();
+        ioExecutor.execute(() -> {
+            try {
+                if (!previous.equals(target.getPath())) {
+                    Files.deleteIfExists(previous);
+                }
+                target.write(image);
+            } catch (IOException ex) {
+                journalFailed(ex);
+            }
+        });
+    }
+
+    private void syncJournal() {
+        if (journal == null || !journal.hasUnsynced()) return;
+
+        EditJournal target = journal;
+        byte[] records = target.takeUnsynced();
+        ioExecutor.execute(() -> {
+            try {
+                target.append(records);
+            } catch (IOException ex) {
+                journalFailed(ex);
+            }
+        });
+    }
+
+    private void writeJournal(EditJournal target, byte[] image) {
+        ioExecutor.execute(() -> {
+            try {
+                target.write(image);
+            } catch (IOException ex) {
+                journalFailed(ex);
+            }
+        });
+    }
+
+    private void discardJournal() {
+        journalTimer.stop();
+        fullSaveTimer.stop();
+        setFileBehind(false);
+        if (journal == null) return;
+
+        EditJournal target = journal;
+        journal = null;
+        ioExecutor.execute(target::delete);
+    }
+
+    // Shown from a journaled save until the full save that brings the file itself up to date
+    private void setFileBehind(boolean behind) {
+        journalLabel.setVisible(behind);
+    }
+
+    private void journalFailed(IOException ex) {
+        SwingUtilities.invokeLater(() -> statusLabel.setText("Could not write edit journal: " + ex.getMessage()));
+    }
+
+    private void offerRecovery(byte[] records) {
+        int option = JOptionPane.showConfirmDialog(this,
+                "Unsaved changes to " + currentFile.getName() + " were found from a previous session.\n"
+                        + "Do you want to recover them?", "Notepad", JOptionPane.YES_NO_OPTION);
+        if (option != JOptionPane.YES_OPTION) return;
+
         try {
-            BufferedWriter writer = new BufferedWriter(new FileWriter(file));
-            textArea.write(writer);
-            writer.close();
-            setModified(false);
-        } catch (IOException ex) {
-            JOptionPane.showMessageDialog(this, "Error saving file: " + ex.getMessage(),
+            // Replaying goes through the document listener, which journals the edits afresh
+            EditJournal.replay(records, textArea.getDocument());
+            writeJournal(journal, journal.image());
+            journal.takeUnsynced();
+            statusLabel.setText("Recovered unsaved changes");
+        } catch (IOException | BadLocationException ex) {
+            JOptionPane.showMessageDialog(this, "Error recovering changes: " + ex.getMessage(),
                     "Error", JOptionPane.ERROR_MESSAGE);
         }
     }
 
-    private boolean confirmSave() {
+    static CharSequence snapshot(Document document) {
+        if (document instanceof PieceTableDocument) {
+            return ((PieceTableDocument) document).snapshot();
+        }
+        try {
+            return document.getText(0, document.getLength());
+        } catch (BadLocationException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static String lineSeparator(Document document) {
+        Object separator = document.getProperty(DefaultEditorKit.EndOfLineStringProperty);
+        return separator instanceof String ? (String) separator : System.lineSeparator();
+    }
+
+    private static int percent(long done, long total) {
+        return total <= 0 ? 100 : (int) Math.min(100, done * 100 / total);
+    }
+
+    private void runTask(SwingWorker<?, ?> task, String message) {
+        runTask(task, message, ioExecutor);
+    }
+
+    private void runTask(SwingWorker<?, ?> task, String message, ExecutorService executor) {
+        currentTask = task;
+        if (executor == ioExecutor && task != loadTask && task != restoreTask) {
+            saveTasks.add(task);
+        }
+        statusLabel.setText(message);
+        progressBar.setValue(0);
+        progressBar.setVisible(true);
+        cancelButton.setVisible(true);
+        task.addPropertyChangeListener(e -> {
+            if ("progress".equals(e.getPropertyName()) && currentTask == task) {
+                progressBar.setValue((Integer) e.getNewValue());
+            }
+        });
+        executor.execute(task);
+    }
+
+    private void taskFinished(SwingWorker<?, ?> task, String message) {
+        saveTasks.remove(task);
+        if (currentTask == task) {
+            currentTask = null;
+            progressBar.setVisible(false);
+            cancelButton.setVisible(false);
+        }
+        statusLabel.setText(message);
+    }
+
+    private void cancelLoad() {
+        if (loadTask != null) {
+            loadTask.cancel(true);
+        }
+    }
+
+    // Asks whether to save unsaved changes, then runs next unless the user cancels or the save fails
+    private void confirmSave(Runnable next) {
+        refreshStatus();
+        if (!tracker.isModified()) {
+            if (fullSaveTimer.isRunning()) {
+                // Journaled changes have not reached the file itself yet
+                saveToFile(currentFile, next);
+            } else {
+                next.run();
+            }
+            return;
+        }
         int option = JOptionPane.showConfirmDialog(this,
-                "Do you want to save changes?", "Notepad",
+                "Do you want to save changes to " + (currentFile != null ? currentFile.getName() : "Untitled") + "?",
+                "Notepad",
                 JOptionPane.YES_NO_CANCEL_OPTION);
         
         if (option == JOptionPane.YES_OPTION) {
-            saveDocument();
-            return !isModified; // Return true if save was successful
+            saveDocument(next);
         } else if (option == JOptionPane.NO_OPTION) {
-            return true;
+            discardJournal();
+            next.run();
         }
-        return false; // Cancel option
     }
 
     private void exitApplication() {
-        if (isModified && !confirmSave()) return;
-        System.exit(0);
+        if (waitForSaves()) return;
+
+        confirmTabs(0, () -> {
+            cancelLoad();
+            stopFollow(false);
+            discardJournal();
+            for (DocumentTab tab : openTabs) {
+                if (tab != activeTab && tab.journal != null) {
+                    ioExecutor.execute(tab.journal::delete);
+                }
+            }
+            if (spillFile != null) {
+                ioExecutor.execute(spillFile::close);
+            }
+            // Queued behind any save still being written
+            ioExecutor.execute(() -> System.exit(0));
+        });
+    }
+
+    // Asks about each tab with unsaved changes in turn, showing it first
+    private void confirmTabs(int from, Runnable next) {
+        refreshStatus();
+        DocumentTab.confirmEach(openTabs, from,
+                tab -> tab == activeTab ? tracker.isModified() || fullSaveTimer.isRunning()
+                        : tab.tracker.isModified() || tab.fullSavePending,
+                this::showForConfirm, (tab, confirmed) -> confirmSave(confirmed), next);
+    }
+
+    // Runs shown once tab is the active one, which for a spilled tab is after it has been read
+    // back; if it cannot be shown, shown never runs and the status bar says why
+    private void showForConfirm(DocumentTab tab, Runnable shown) {
+        tabs.setSelectedIndex(openTabs.indexOf(tab));
+        if (activeTab == tab) {
+            shown.run();
+        } else if (restoreTask != null) {
+            afterRestore = shown;
+        }
+        // Otherwise the selection was put back while a save is written, and selectTab said so
     }
 
     private void findText() {
-        String searchText = JOptionPane.showInputDialog(this, "Find:", "Find", JOptionPane.PLAIN_MESSAGE);
-        if (searchText != null && !searchText.isEmpty()) {
-            String content = textArea.getText();
-            int index = content.indexOf(searchText);
-            if (index >= 0) {
-                textArea.setCaretPosition(index);
-                textArea.select(index, index + searchText.length());
-            } else {
-                JOptionPane.showMessageDialog(this, "Text not found!", "Find", JOptionPane.INFORMATION_MESSAGE);
+        if (findDialog == null) {
+            createFindDialog();
+        }
+        String selected = textArea.getSelectedText();
+        if (selected != null && !selected.isEmpty() && selected.indexOf('\n') < 0) {
+            findField.setText(selected);
+        }
+        findField.selectAll();
+        findDialog.setVisible(true);
+        findField.requestFocusInWindow();
+    }
+
+    // Built the first time it is needed and kept, so it remembers the last search
+    private void createFindDialog() {
+        findDialog = new JDialog(this, "Find and Replace", false);
+        findField = new JTextField(24);
+        replaceField = new JTextField(24);
+        matchCaseBox = new JCheckBox("Match case");
+        regexBox = new JCheckBox("Regular expression");
+        JButton nextButton = new JButton("Find Next");
+        JButton previousButton = new JButton("Find Previous");
+        JButton allButton = new JButton("Find All");
+        JButton replaceButton = new JButton("Replace");
+        JButton replaceAllButton = new JButton("Replace All");
+        JButton closeButton = new JButton("Close");
+
+        nextButton.addActionListener(e -> findNext(true));
+        previousButton.addActionListener(e -> findNext(false));
+        allButton.addActionListener(e -> findAll());
+        replaceButton.addActionListener(e -> replaceNext());
+        replaceAllButton.addActionListener(e -> replaceAll());
+        closeButton.addActionListener(e -> findDialog.setVisible(false));
+
+        JPanel queryPanel = new JPanel(new GridBagLayout());
+        GridBagConstraints c = new GridBagConstraints();
+        c.insets = new Insets(2, 2, 2, 2);
+        c.anchor = GridBagConstraints.WEST;
+        String[] labels = {"Find:", "Replace with:"};
+        JTextField[] inputs = {findField, replaceField};
+        for (int row = 0; row < labels.length; row++) {
+            c.gridy = row;
+            c.gridx = 0;
+            c.weightx = 0;
+            c.fill = GridBagConstraints.NONE;
+            queryPanel.add(new JLabel(labels[row]), c);
+            c.gridx = 1;
+            c.weightx = 1;
+            c.fill = GridBagConstraints.HORIZONTAL;
+            queryPanel.add(inputs[row], c);
+        }
+        JPanel optionsPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        optionsPanel.add(matchCaseBox);
+        optionsPanel.add(regexBox);
+        JPanel buttonPanel = new JPanel(new GridLayout(0, 1, 0, 4));
+        buttonPanel.add(nextButton);
+        buttonPanel.add(previousButton);
+        buttonPanel.add(allButton);
+        buttonPanel.add(replaceButton);
+        buttonPanel.add(replaceAllButton);
+        buttonPanel.add(closeButton);
+
+        JPanel fields = new JPanel(new BorderLayout());
+        fields.add(queryPanel, BorderLayout.NORTH);
+        fields.add(optionsPanel, BorderLayout.CENTER);
+        JPanel content = new JPanel(new BorderLayout(8, 0));
+        content.setBorder(BorderFactory.createEmptyBorder(8, 8, 8, 8));
+        content.add(fields, BorderLayout.CENTER);
+        content.add(buttonPanel, BorderLayout.EAST);
+
+        findDialog.setContentPane(content);
+        findDialog.getRootPane().setDefaultButton(nextButton);
+        findDialog.getRootPane().registerKeyboardAction(e -> findDialog.setVisible(false),
+                KeyStroke.getKeyStroke(KeyEvent.VK_ESCAPE, 0), JComponent.WHEN_IN_FOCUSED_WINDOW);
+        findDialog.pack();
+        findDialog.setLocationRelativeTo(this);
+    }
+
+    // The search in the find dialog, or the last one if the dialog has not been opened;
+    // null after telling the user what is wrong with it
+    private TextSearch currentSearch() {
+        if (largeFile != null) {
+            JOptionPane.showMessageDialog(this, "Searching is not available for read-only large files.",
+                    "Find", JOptionPane.INFORMATION_MESSAGE);
+            return null;
+        }
+        if (findDialog == null) {
+            return lastSearch;
+        }
+        String query = findField.getText();
+        if (query.isEmpty()) {
+            return null;
+        }
+        if (lastSearch == null || !lastSearch.getQuery().equals(query)
+                || lastSearch.isMatchCase() != matchCaseBox.isSelected()
+                || lastSearch.isRegex() != regexBox.isSelected()) {
+            try {
+                lastSearch = new TextSearch(query, matchCaseBox.isSelected(), regexBox.isSelected());
+            } catch (PatternSyntaxException ex) {
+                JOptionPane.showMessageDialog(findDialog, "Invalid regular expression:\n" + ex.getMessage(),
+                        "Find", JOptionPane.ERROR_MESSAGE);
+                return null;
+            }
+        }
+        return lastSearch;
+    }
+
+    // Searches from the selection towards the end (or the start), wrapping around once
+    private void findNext(boolean forward) {
+        TextSearch search = currentSearch();
+        if (search == null) {
+            if (findDialog == null && largeFile == null) {
+                findText();
+            }
+            return;
+        }
+        cancelSearch();
+        Document document = textArea.getDocument();
+        CharSequence text = snapshot(document);
+        int from = forward ? textArea.getSelectionEnd() : textArea.getSelectionStart();
+        long revisionAtSnapshot = tracker.revision();
+
+        if (text.length() < BACKGROUND_SEARCH_THRESHOLD) {
+            showFindResult(findWrapping(search, text, from, forward, position -> {}), search);
+            return;
+        }
+        SwingWorker<int[], Void> task = new SwingWorker<int[], Void>() {
+            @Override
+            protected int[] doInBackground() {
+                return findWrapping(search, text, from, forward,
+                        scanned -> setProgress(percent(scanned, text.length())));
+            }
+
+            @Override
+            protected void done() {
+                if (searchTask == this) {
+                    searchTask = null;
+                }
+                try {
+                    int[] match = get();
+                    taskFinished(this, " ");
+                    if (tracker.revision() != revisionAtSnapshot) {
+                        statusLabel.setText("The document changed while searching");
+                    } else {
+                        showFindResult(match, search);
+                    }
+                } catch (CancellationException ex) {
+                    taskFinished(this, "Search cancelled");
+                } catch (InterruptedException | ExecutionException ex) {
+                    taskFinished(this, "Search failed: " + ex.getCause());
+                }
+            }
+        };
+        searchTask = task;
+        runTask(task, "Searching for \"" + search.getQuery() + "\"...", searchExecutor);
+    }
+
+    private static int[] findWrapping(TextSearch search, CharSequence text, int from, boolean forward,
+                                      LongConsumer progress) {
+        int[] match = search.find(text, from, forward, progress);
+        if (match != null && match[0] == match[1] && match[0] == from) {
+            // An empty match at the caret would be found again and again, so step past it
+            int next = forward ? from + 1 : from - 1;
+            match = next >= 0 && next <= text.length() ? search.find(text, next, forward, progress) : null;
+        }
+        if (match == null) {
+            match = search.find(text, forward ? 0 : text.length(), forward, progress);
+        }
+        return match;
+    }
+
+    private void showFindResult(int[] match, TextSearch search) {
+        if (match == null) {
+            JOptionPane.showMessageDialog(findDialog != null && findDialog.isVisible() ? findDialog : this,
+                    "Cannot find \"" + search.getQuery() + "\"", "Find", JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        textArea.setCaretPosition(match[0]);
+        textArea.moveCaretPosition(match[1]);
+        textArea.getCaret().setSelectionVisible(true);
+    }
+
+    // Highlights every match, adding them in batches as the search gets through the document
+    private void findAll() {
+        TextSearch search = currentSearch();
+        if (search == null) {
+            if (findDialog == null && largeFile == null) {
+                findText();
             }
+            return;
+        }
+        cancelSearch();
+        clearFindHighlights();
+        CharSequence text = snapshot(textArea.getDocument());
+        long revisionAtSnapshot = tracker.revision();
+
+        SwingWorker<Integer, int[]> task = new SwingWorker<Integer, int[]>() {
+            @Override
+            protected Integer doInBackground() {
+                int[] batch = new int[512];
+                int[] size = new int[1];
+                int count = search.findAll(text, (start, end) -> {
+                    if (size[0] == batch.length) {
+                        publish(Arrays.copyOf(batch, size[0]));
+                        size[0] = 0;
+                    }
+                    batch[size[0]++] = start;
+                    batch[size[0]++] = end;
+                }, scanned -> setProgress(percent(scanned, text.length())));
+                publish(Arrays.copyOf(batch, size[0]));
+                return count;
+            }
+
+            @Override
+            protected void process(java.util.List<int[]> batches) {
+                if (tracker.revision() != revisionAtSnapshot) {
+                    // The offsets no longer fit the text
+                    cancel(true);
+                    return;
+                }
+                Highlighter highlighter = textArea.getHighlighter();
+                for (int[] matches : batches) {
+                    for (int i = 0; i < matches.length && findHighlights.size() < MAX_FIND_HIGHLIGHTS; i += 2) {
+                        try {
+                            findHighlights.add(highlighter.addHighlight(matches[i], matches[i + 1], findPainter));
+                        } catch (BadLocationException ex) {
+                            throw new IllegalStateException(ex);
+                        }
+                    }
+                }
+            }
+
+            @Override
+            protected void done() {
+                if (searchTask == this) {
+                    searchTask = null;
+                }
+                try {
+                    int count = get();
+                    taskFinished(this, count == 1 ? "1 match" : count + " matches"
+                            + (count > MAX_FIND_HIGHLIGHTS ? " (first " + MAX_FIND_HIGHLIGHTS + " highlighted)" : ""));
+                } catch (CancellationException ex) {
+                    taskFinished(this, tracker.revision() != revisionAtSnapshot ? "The document changed while searching" : "Search cancelled");
+                } catch (InterruptedException | ExecutionException ex) {
+                    taskFinished(this, "Search failed: " + ex.getCause());
+                }
+            }
+        };
+        searchTask = task;
+        runTask(task, "Finding all \"" + search.getQuery() + "\"...", searchExecutor);
+    }
+
+    // Replaces the selection if it is a match, then selects the next one
+    private void replaceNext() {
+        TextSearch search = currentSearch();
+        if (search == null || !textArea.isEditable()) return;
+
+        int start = textArea.getSelectionStart();
+        int end = textArea.getSelectionEnd();
+        String replacement;
+        try {
+            replacement = search.replacementFor(snapshot(textArea.getDocument()), start, end, replaceField.getText());
+        } catch (IllegalArgumentException | IndexOutOfBoundsException ex) {
+            JOptionPane.showMessageDialog(findDialog, "Invalid replacement:\n" + ex.getMessage(),
+                    "Replace", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        if (replacement != null) {
+            try {
+                history.breakStep();
+                ((AbstractDocument) textArea.getDocument()).replace(start, end - start, replacement, null);
+                history.breakStep();
+            } catch (BadLocationException ex) {
+                throw new IllegalStateException(ex);
+            }
+            textArea.setCaretPosition(start + replacement.length());
+        }
+        findNext(true);
+    }
+
+    // Finds every match in one pass over a snapshot and applies them as a single edit, which
+    // fires one pair of document events and undoes in one step
+    private void replaceAll() {
+        TextSearch search = currentSearch();
+        if (search == null || !textArea.isEditable()) return;
+
+        cancelSearch();
+        clearFindHighlights();
+        String replacement = replaceField.getText();
+        CharSequence text = snapshot(textArea.getDocument());
+        long revisionAtSnapshot = tracker.revision();
+
+        SwingWorker<TextSearch.Replacement, Void> task = new SwingWorker<TextSearch.Replacement, Void>() {
+            @Override
+            protected TextSearch.Replacement doInBackground() {
+                return search.replaceAll(text, replacement, scanned -> setProgress(percent(scanned, text.length())));
+            }
+
+            @Override
+            protected void done() {
+                if (searchTask == this) {
+                    searchTask = null;
+                }
+                try {
+                    TextSearch.Replacement result = get();
+                    if (tracker.revision() != revisionAtSnapshot) {
+                        taskFinished(this, "The document changed while replacing");
+                    } else if (result == null) {
+                        taskFinished(this, " ");
+                        showFindResult(null, search);
+                    } else {
+                        history.breakStep();
+                        ((AbstractDocument) textArea.getDocument()).replace(result.start, result.end - result.start,
+                                result.text, null);
+                        history.breakStep();
+                        textArea.setCaretPosition(result.start + result.text.length());
+                        taskFinished(this, "Replaced " + (result.count == 1 ? "1 match" : result.count + " matches"));
+                    }
+                } catch (CancellationException ex) {
+                    taskFinished(this, "Replace cancelled");
+                } catch (InterruptedException | BadLocationException ex) {
+                    taskFinished(this, "Replace failed: " + ex);
+                } catch (ExecutionException ex) {
+                    taskFinished(this, "Replace failed: " + ex.getCause().getMessage());
+                }
+            }
+        };
+        searchTask = task;
+        runTask(task, "Replacing \"" + search.getQuery() + "\"...", searchExecutor);
+    }
+
+    // Reopens the file, so the document matches it byte for byte, then follows it
+    private void toggleFollow() {
+        if (followTask != null) {
+            stopFollow(true);
+            return;
+        }
+        follow.setSelected(false);
+        if (currentFile == null) {
+            JOptionPane.showMessageDialog(this, "Open a file to follow first.", "Follow", JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        File file = currentFile;
+        confirmSave(() -> openFile(file, () -> startFollow(file)));
+    }
+
+    private void startFollow(File file) {
+        if (largeFile != null) {
+            JOptionPane.showMessageDialog(this, "Following is not available for read-only large files.",
+                    "Follow", JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        Document document = textArea.getDocument();
+        Object loaded = document.getProperty(PieceTableDocument.LOADED_SIZE_PROPERTY);
+        FileFollower follower;
+        try {
+            follower = new FileFollower(file.toPath(), TextEncoding.of(document), loaded instanceof Long ? (Long) loaded : 0);
+        } catch (IOException ex) {
+            JOptionPane.showMessageDialog(this, "Error following file: " + ex.getMessage(),
+                    "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        // The document mirrors the file now, so it is neither edited, undone nor journalled
+        discardJournal();
+        history.setRecording(false);
+        textArea.setEditable(false);
+        textArea.setCaretPosition(document.getLength());
+        followTrimmed = false;
+        follow.setSelected(true);
+        trimFollowed();
+
+        Path directory = file.toPath().toAbsolutePath().getParent();
+        followTask = new SwingWorker<Void, String>() {
+            @Override
+            protected Void doInBackground() throws IOException, InterruptedException {
+                try (WatchService watcher = directory.getFileSystem().newWatchService()) {
+                    directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+                    while (!isCancelled()) {
+                        String text = follower.readAppended();
+                        String notice = follower.takeNotice();
+                        if (notice != null) {
+                            publish("\0" + notice);
+                        }
+                        if (!text.isEmpty()) {
+                            publish(text);
+                            continue; // There may be more already
+                        }
+                        // Some file systems only report changes late, so look again every second anyway
+                        WatchKey key = watcher.poll(1, java.util.concurrent.TimeUnit.SECONDS);
+                        if (key != null) {
+                            key.pollEvents();
+                            key.reset();
+                        }
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            protected void process(java.util.List<String> chunks) {
+                if (followTask != this) return;
+
+                StringBuilder appended = new StringBuilder();
+                for (String chunk : chunks) {
+                    if (chunk.startsWith("\0")) {
+                        statusLabel.setText(chunk.substring(1));
+                    } else {
+                        appended.append(chunk);
+                    }
+                }
+                if (appended.length() == 0) return;
+
+                Document document = textArea.getDocument();
+                try {
+                    document.insertString(document.getLength(), appended.toString(), null);
+                } catch (BadLocationException ex) {
+                    throw new IllegalStateException(ex);
+                }
+                trimFollowed();
+                tracker.followed();
+                scheduleRefresh();
+            }
+
+            @Override
+            protected void done() {
+                if (followTask != this) return;
+                try {
+                    get();
+                } catch (CancellationException | InterruptedException ex) {
+                    return;
+                } catch (ExecutionException ex) {
+                    stopFollow(true);
+                    JOptionPane.showMessageDialog(Notepad.this, "Stopped following: " + ex.getCause().getMessage(),
+                            "Error", JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        };
+        followTask.execute();
+        statusLabel.setText("Following " + file.getName());
+    }
+
+    // Drops the oldest lines past the limit, so a long tail keeps a fixed amount of text
+    private void trimFollowed() {
+        if (followLineLimit <= 0 || lineIndex.lineCount() <= followLineLimit) return;
+
+        try {
+            textArea.getDocument().remove(0, lineIndex.lineStart(lineIndex.lineCount() - followLineLimit));
+            followTrimmed = true;
+        } catch (BadLocationException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    // The document stays as followed; resuming the journal only makes sense if it is kept for editing
+    private void stopFollow(boolean resumeJournal) {
+        if (followTask == null) return;
+
+        followTask.cancel(true);
+        followTask = null;
+        follow.setSelected(false);
+        textArea.setEditable(true);
+        history.setRecording(true);
+        statusLabel.setText("Stopped following");
+        // Once lines were dropped the text no longer matches the file, so a journal could not be replayed on it
+        if (resumeJournal && !followTrimmed && currentFile != null) {
+            try {
+                startJournal(currentFile, Files.readAttributes(currentFile.toPath(), BasicFileAttributes.class));
+            } catch (IOException ex) {
+                journalFailed(ex);
+            }
+        }
+    }
+
+    private void chooseFollowLimit() {
+        String input = (String) JOptionPane.showInputDialog(this,
+                "Keep at most this many lines while following (0 for no limit):", "Follow Line Limit",
+                JOptionPane.PLAIN_MESSAGE, null, null, String.valueOf(followLineLimit));
+        if (input == null) return;
+
+        try {
+            followLineLimit = Math.max(0, Integer.parseInt(input.trim()));
+        } catch (NumberFormatException ex) {
+            JOptionPane.showMessageDialog(this, "Please enter a number of lines.", "Follow Line Limit",
+                    JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        if (followTask != null) {
+            trimFollowed();
+        }
+    }
+
+    private void cancelSearch() {
+        if (searchTask != null) {
+            searchTask.cancel(true);
+            searchTask = null;
+        }
+    }
+
+    private void clearFindHighlights() {
+        Highlighter highlighter = textArea.getHighlighter();
+        for (Object tag : findHighlights) {
+            highlighter.removeHighlight(tag);
+        }
+        findHighlights.clear();
+    }
+
+    private void showFindInFiles() {
+        if (findInFilesDialog == null) {
+            createFindInFilesDialog();
+        }
+        if (directoryField.getText().isEmpty()) {
+            File start = currentFile != null ? currentFile.getAbsoluteFile().getParentFile() : new File(".");
+            directoryField.setText(start.getAbsolutePath());
+        }
+        String selected = textArea.getSelectedText();
+        if (selected != null && !selected.isEmpty() && selected.indexOf('\n') < 0) {
+            filesQueryField.setText(selected);
+        }
+        filesQueryField.selectAll();
+        findInFilesDialog.setVisible(true);
+        filesQueryField.requestFocusInWindow();
+    }
+
+    private void createFindInFilesDialog() {
+        findInFilesDialog = new JDialog(this, "Find in Files", false);
+        directoryField = new JTextField(30);
+        filesQueryField = new JTextField(30);
+        fileGlobField = new JTextField("*", 30);
+        filesMatchCaseBox = new JCheckBox("Match case");
+        filesRegexBox = new JCheckBox("Regular expression");
+        filesFindButton = new JButton("Find");
+        filesStopButton = new JButton("Stop");
+        filesStopButton.setEnabled(false);
+        JButton browseButton = new JButton("Browse...");
+        filesStatusLabel = new JLabel(" ");
+        fileHits = new DefaultListModel<>();
+        JList<FileSearch.Hit> hitList = new JList<>(fileHits);
+        hitList.setFont(textArea.getFont());
+        hitList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+
+        filesFindButton.addActionListener(e -> startFindInFiles());
+        filesStopButton.addActionListener(e -> {
+            if (fileSearch != null) {
+                fileSearch.stop();
+            }
+        });
+        browseButton.addActionListener(e -> {
+            JFileChooser chooser = new JFileChooser(directoryField.getText());
+            chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+            if (chooser.showOpenDialog(findInFilesDialog) == JFileChooser.APPROVE_OPTION) {
+                directoryField.setText(chooser.getSelectedFile().getAbsolutePath());
+            }
+        });
+        hitList.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                int index = hitList.locationToIndex(e.getPoint());
+                if (index >= 0 && hitList.getCellBounds(index, index).contains(e.getPoint())) {
+                    openHit(fileHits.get(index));
+                }
+            }
+        });
+        hitList.getInputMap().put(KeyStroke.getKeyStroke(KeyEvent.VK_ENTER, 0), "openHit");
+        hitList.getActionMap().put("openHit", new AbstractAction() {
+            public void actionPerformed(ActionEvent e) {
+                if (hitList.getSelectedValue() != null) {
+                    openHit(hitList.getSelectedValue());
+                }
+            }
+        });
+
+        JPanel fields = new JPanel(new GridBagLayout());
+        GridBagConstraints c = new GridBagConstraints();
+        c.insets = new Insets(2, 2, 2, 2);
+        c.anchor = GridBagConstraints.WEST;
+        String[] labels = {"Find:", "Directory:", "Files:"};
+        JTextField[] inputs = {filesQueryField, directoryField, fileGlobField};
+        for (int row = 0; row < labels.length; row++) {
+            c.gridy = row;
+            c.gridx = 0;
+            c.weightx = 0;
+            c.fill = GridBagConstraints.NONE;
+            fields.add(new JLabel(labels[row]), c);
+            c.gridx = 1;
+            c.weightx = 1;
+            c.fill = GridBagConstraints.HORIZONTAL;
+            fields.add(inputs[row], c);
+        }
+        c.gridy = 1;
+        c.gridx = 2;
+        c.weightx = 0;
+        fields.add(browseButton, c);
+        JPanel options = new JPanel(new FlowLayout(FlowLayout.LEFT, 4, 0));
+        options.add(filesMatchCaseBox);
+        options.add(filesRegexBox);
+        options.add(filesFindButton);
+        options.add(filesStopButton);
+        c.gridy = 3;
+        c.gridx = 1;
+        fields.add(options, c);
+
+        JPanel content = new JPanel(new BorderLayout(0, 4));
+        content.setBorder(BorderFactory.createEmptyBorder(8, 8, 8, 8));
+        content.add(fields, BorderLayout.NORTH);
+        content.add(new JScrollPane(hitList), BorderLayout.CENTER);
+        content.add(filesStatusLabel, BorderLayout.SOUTH);
+
+        findInFilesDialog.setContentPane(content);
+        findInFilesDialog.getRootPane().setDefaultButton(filesFindButton);
+        findInFilesDialog.getRootPane().registerKeyboardAction(e -> findInFilesDialog.setVisible(false),
+                KeyStroke.getKeyStroke(KeyEvent.VK_ESCAPE, 0), JComponent.WHEN_IN_FOCUSED_WINDOW);
+        findInFilesDialog.setSize(720, 480);
+        findInFilesDialog.setLocationRelativeTo(this);
+    }
+
+    // Walks the directory on the fork-join pool; hits are added to the list in batches as they come
+    private void startFindInFiles() {
+        if (fileSearch != null) {
+            fileSearch.stop();
+        }
+        String query = filesQueryField.getText();
+        Path root = Paths.get(directoryField.getText());
+        if (query.isEmpty()) return;
+        if (!Files.isDirectory(root)) {
+            JOptionPane.showMessageDialog(findInFilesDialog, "No such directory: " + root,
+                    "Find in Files", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        FileSearch search;
+        try {
+            search = new FileSearch(root, new TextSearch(query, filesMatchCaseBox.isSelected(), filesRegexBox.isSelected()),
+                    fileGlobField.getText().trim(), LARGE_FILE_THRESHOLD, MAX_FILE_HITS, Charset.defaultCharset());
+        } catch (PatternSyntaxException ex) {
+            JOptionPane.showMessageDialog(findInFilesDialog, "Invalid regular expression:\n" + ex.getMessage(),
+                    "Find in Files", JOptionPane.ERROR_MESSAGE);
+            return;
+        } catch (IllegalArgumentException ex) {
+            JOptionPane.showMessageDialog(findInFilesDialog, "Invalid file pattern: " + ex.getMessage(),
+                    "Find in Files", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        if (fileSearchPool == null) {
+            fileSearchPool = new java.util.concurrent.ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        }
+        fileSearch = search;
+        fileHits.clear();
+        filesStatusLabel.setText("Searching...");
+        filesStopButton.setEnabled(true);
+        long started = System.nanoTime();
+
+        SwingWorker<Void, FileSearch.Hit> task = new SwingWorker<Void, FileSearch.Hit>() {
+            @Override
+            protected Void doInBackground() {
+                search.run(fileSearchPool, this::publish);
+                return null;
+            }
+
+            @Override
+            protected void process(java.util.List<FileSearch.Hit> hits) {
+                if (fileSearch != search) return;
+                fileHits.addAll(hits);
+                filesStatusLabel.setText(search.hitCount() + " matches, " + search.filesSearched() + " files searched...");
+            }
+
+            @Override
+            protected void done() {
+                if (fileSearch != search) return;
+                fileSearch = null;
+                filesStopButton.setEnabled(false);
+                long millis = (System.nanoTime() - started) / 1_000_000;
+                int hits = Math.min(search.hitCount(), MAX_FILE_HITS);
+                String summary = hits + (hits == 1 ? " match" : " matches") + " in " + search.filesSearched()
+                        + " files (" + millis + " ms)";
+                try {
+                    get();
+                    if (search.hitCount() > MAX_FILE_HITS) {
+                        summary += ", stopped after the first " + MAX_FILE_HITS;
+                    } else if (search.isStopped()) {
+                        summary += ", stopped";
+                    }
+                    filesStatusLabel.setText(summary);
+                } catch (InterruptedException | ExecutionException ex) {
+                    filesStatusLabel.setText("Search failed: " + ex.getCause());
+                }
+            }
+        };
+        fileSearchPool.execute(task);
+    }
+
+    // Opens the file of a hit, unless it is already open, and selects the match
+    private void openHit(FileSearch.Hit hit) {
+        File file = hit.file.toFile();
+        try {
+            if (currentFile != null && Files.isSameFile(currentFile.toPath(), hit.file)) {
+                showHit(hit);
+                return;
+            }
+        } catch (IOException ex) {
+            // Treat it as a different file
+        }
+        openInTab(file, () -> showHit(hit));
+    }
+
+    private void showHit(FileSearch.Hit hit) {
+        if (largeFileView != null) {
+            largeFileView.scrollToLine(hit.line - 1);
+            return;
+        }
+        Element lines = textArea.getDocument().getDefaultRootElement();
+        if (hit.line > lines.getElementCount()) return;
+
+        Element line = lines.getElement(hit.line - 1);
+        int lineEnd = line.getEndOffset() - 1;
+        textArea.setCaretPosition(Math.min(line.getStartOffset() + hit.start, lineEnd));
+        textArea.moveCaretPosition(Math.min(line.getStartOffset() + hit.end, lineEnd));
+        textArea.getCaret().setSelectionVisible(true);
+        toFront();
+        textArea.requestFocusInWindow();
+    }
+
+    private void goToLine() {
+        long lines = largeFile != null ? largeFile.lineCount() : lineIndex.lineCount();
+        String input = JOptionPane.showInputDialog(this, "Line number (1 - " + lines + "):", "Go To Line",
+                JOptionPane.PLAIN_MESSAGE);
+        if (input == null) return;
+
+        long line;
+        try {
+            line = Long.parseLong(input.trim());
+        } catch (NumberFormatException ex) {
+            line = 0;
+        }
+        if (line < 1 || line > lines) {
+            JOptionPane.showMessageDialog(this, "The line number is beyond the total number of lines",
+                    "Go To Line", JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        if (largeFileView != null) {
+            largeFileView.scrollToLine(line - 1);
+        } else {
+            textArea.setCaretPosition(lineIndex.lineStart((int) line - 1));
         }
     }
 
@@ -292,8 +2079,38 @@ public class Notepad extends JFrame implements ActionListener {
     }
 
     private void chooseFont() {
+        java.util.concurrent.CompletableFuture<String[]> families = fontFamilies();
+        if (!families.isDone()) {
+            statusLabel.setText("Loading fonts...");
+            families.thenAccept(names -> SwingUtilities.invokeLater(() -> {
+                statusLabel.setText(" ");
+                chooseFont(names);
+            }));
+            return;
+        }
+        chooseFont(families.join());
+    }
+
+    // Listing the installed fonts can take seconds where there are many, so it is done once, in the
+    // background, starting as soon as the window is up
+    private java.util.concurrent.CompletableFuture<String[]> fontFamilies() {
+        if (fontFamilies == null) {
+            fontFamilies = java.util.concurrent.CompletableFuture.supplyAsync(() -> {
+                String[] names = GraphicsEnvironment.getLocalGraphicsEnvironment().getAvailableFontFamilyNames();
+                StartupReport.mark("fonts listed (" + names.length + ")");
+                return names;
+            }, task -> {
+                Thread thread = new Thread(task, "Notepad Fonts");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                thread.start();
+            });
+        }
+        return fontFamilies;
+    }
+
+    private void chooseFont(String[] fontNames) {
         Font currentFont = textArea.getFont();
-        String[] fontNames = GraphicsEnvironment.getLocalGraphicsEnvironment().getAvailableFontFamilyNames();
         String selectedFont = (String) JOptionPane.showInputDialog(this,
                 "Choose font:", "Font", JOptionPane.PLAIN_MESSAGE, null, fontNames, currentFont.getName());
         
@@ -305,16 +2122,251 @@ public class Notepad extends JFrame implements ActionListener {
             if (selectedSize != null) {
                 int size = Integer.parseInt(selectedSize);
                 textArea.setFont(new Font(selectedFont, currentFont.getStyle(), size));
+                if (largeFileView != null) {
+                    largeFileView.setFont(textArea.getFont());
+                }
             }
         }
     }
 
+    // The overlay sits over the top right of the window; while it is up, EDT stalls are also
+    // printed to stderr with the stack they were stuck in
+    private void showLatencyMonitor(boolean show) {
+        JLayeredPane layers = getLayeredPane();
+        if (show && latencyOverlay == null) {
+            latency.clear();
+            latencyOverlay = new LatencyMonitor.Overlay(latency);
+            layers.add(latencyOverlay, JLayeredPane.PALETTE_LAYER);
+            placeLatencyOverlay();
+        } else if (!show && latencyOverlay != null) {
+            layers.remove(latencyOverlay);
+            layers.repaint(latencyOverlay.getBounds());
+            latencyOverlay = null;
+        }
+        latency.setVerbose(show);
+    }
+
+    private void placeLatencyOverlay() {
+        if (latencyOverlay == null) return;
+
+        Dimension size = latencyOverlay.getPreferredSize();
+        int top = getJMenuBar() != null ? getJMenuBar().getHeight() : 0;
+        latencyOverlay.setBounds(getLayeredPane().getWidth() - size.width - 24, top + 36, size.width, size.height);
+    }
+
     private void showAbout() {
         JOptionPane.showMessageDialog(this,
                 "Java Notepad\nVersion 1.0\n\nA simple text editor built with Java Swing",
                 "About Notepad", JOptionPane.INFORMATION_MESSAGE);
     }
 
+    private void openLargeFile(File file) throws IOException {
+        closeLargeFile();
+        discardJournal();
+        // Lines are found by their '\n' byte, so only single-byte-ASCII charsets can be mapped
+        TextEncoding encoding;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer sample = ByteBuffer.allocate(TextEncoding.SAMPLE_SIZE);
+            channel.read(sample);
+            sample.flip();
+            encoding = TextEncoding.detect(sample, Charset.defaultCharset());
+        }
+        largeFile = new MappedTextFile(file.toPath(),
+                encoding.isAsciiCompatible() ? encoding.charset : Charset.defaultCharset());
+        largeFileView = new LargeFileView(largeFile, textArea.getFont());
+        installDocument(new PieceTableDocument());
+        scrollPane.setViewportView(largeFileView);
+        setTitle("Notepad - " + file.getName() + " (read-only)");
+    }
+
+    private void closeLargeFile() {
+        if (largeFile == null) return;
+
+        largeFileView.dispose();
+        try {
+            largeFile.close();
+        } catch (IOException ex) {
+            // The mapping stays valid until collected, nothing else to release
+        }
+        largeFile = null;
+        largeFileView = null;
+        scrollPane.setViewportView(textArea);
+    }
+
+    private void copyLargeFile(File target) {
+        try {
+            Files.copy(currentFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ex) {
+            JOptionPane.showMessageDialog(this, "Error saving file: " + ex.getMessage(),
+                    "Error", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    // Swaps in a new document, moving the change listener across with it
+    private void installDocument(Document document) {
+        CharSequence text = snapshot(document);
+        installDocument(document, LineIndex.of(text), ChangeTracker.hash(text));
+    }
+
+    // The new document counts as saved; hash is its content hash
+    private void installDocument(Document document, LineIndex lines, long hash) {
+        stopFollow(false);
+        cancelSearch();
+        clearFindHighlights();
+        textArea.getDocument().removeDocumentListener(documentListener);
+        lineIndex = lines;
+        textArea.setDocument(document);
+        document.addDocumentListener(documentListener);
+        resetStats();
+        // Each document starts with a history of its own
+        history = new EditHistory(UNDO_BUDGET);
+        ((AbstractDocument) document).setDocumentFilter(history);
+        updateUndoState();
+        tracker.reset(document.getLength(), hash);
+        refreshStatus();
+    }
+
+    // .tex files are coloured as LaTeX, and shown beside their preview when it is on
+    private void updateLaTeX() {
+        boolean latex = currentFile != null && largeFile == null
+                && currentFile.getName().toLowerCase().endsWith(".tex");
+        LaTeXHighlighter.attach(textArea.getDocument(), latex, textArea::repaint);
+        textArea.repaint();
+        showPreview(latex && latexPreview != null && latexPreview.isSelected());
+    }
+
+    private void showPreview(boolean show) {
+        if (show && preview == null) {
+            preview = new LaTeXPreview(textArea, previewExecutor);
+        }
+        if (preview != null) {
+            preview.setSource(show ? textArea.getDocument() : null);
+        }
+        if (show == (previewSplit != null)) return;
+
+        if (show) {
+            remove(tabs);
+            previewSplit = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT, tabs, preview.component());
+            previewSplit.setResizeWeight(0.5);
+            add(previewSplit, BorderLayout.CENTER);
+            JSplitPane split = previewSplit;
+            SwingUtilities.invokeLater(() -> split.setDividerLocation(0.5));
+        } else {
+            remove(previewSplit);
+            previewSplit = null;
+            add(tabs, BorderLayout.CENTER);
+        }
+        revalidate();
+        repaint();
+        textArea.requestFocusInWindow();
+    }
+
+    private void scheduleRefresh() {
+        if (!refreshTimer.isRunning()) {
+            refreshTimer.start();
+        }
+    }
+
+    private void refreshStatus() {
+        refreshTimer.stop();
+        Document document = textArea.getDocument();
+        if (tracker.needsCheck(document.getLength())) {
+            checkAgainstSaved();
+        }
+        if (tracker.isModified() != isModified) {
+            setModified(tracker.isModified());
+        }
+        updateCaretStatus();
+        updateStatsStatus();
+    }
+
+    private void scheduleRecount() {
+        if (!statsTimer.isRunning()) {
+            statsTimer.start();
+        }
+    }
+
+    private void resetStats() {
+        stats.reset(textArea.getDocument());
+        shownWords = 0;
+        statsTimer.restart();
+    }
+
+    // Characters and lines are always exact; words show the last full count until the next one is in
+    private void updateStatsStatus() {
+        if (largeFile != null) {
+            statsLabel.setText(" ");
+            return;
+        }
+        long words = stats.words();
+        if (words >= 0) {
+            shownWords = words;
+        }
+        statsLabel.setText(String.format("%,d words, %,d chars, %,d lines",
+                shownWords, textArea.getDocument().getLength(), lineIndex.lineCount()));
+    }
+
+    // Compares the text with what was saved, by a hash folded from the word count's chunk
+    // hashes. Until the edited chunks are counted again it is not known, and stats calls
+    // refreshStatus once they are
+    private void checkAgainstSaved() {
+        if (stats.words() >= 0) {
+            tracker.checked(tracker.revision(), stats.hash());
+        }
+    }
+
+    private void undoEdit() {
+        try {
+            int caret = history.undo(textArea.getDocument());
+            if (caret >= 0) {
+                textArea.setCaretPosition(Math.min(caret, textArea.getDocument().getLength()));
+            }
+        } catch (BadLocationException ex) {
+            throw new IllegalStateException(ex);
+        }
+        updateUndoState();
+    }
+
+    private void redoEdit() {
+        try {
+            int caret = history.redo(textArea.getDocument());
+            if (caret >= 0) {
+                textArea.setCaretPosition(Math.min(caret, textArea.getDocument().getLength()));
+            }
+        } catch (BadLocationException ex) {
+            throw new IllegalStateException(ex);
+        }
+        updateUndoState();
+    }
+
+    private void updateUndoState() {
+        if (undo == null) return;
+
+        undo.setEnabled(history.canUndo());
+        redo.setEnabled(history.canRedo());
+    }
+
+    private void updateCaretStatus() {
+        if (largeFile != null) {
+            caretLabel.setText(" ");
+            return;
+        }
+        int caret = textArea.getCaretPosition();
+        int line = lineIndex.lineOfOffset(caret);
+        caretLabel.setText("Ln " + (line + 1) + ", Col " + (caret - lineIndex.lineStart(line) + 1));
+    }
+
+    // The selected tab is labelled with the window title, less the application name
+    @Override
+    public void setTitle(String title) {
+        super.setTitle(title);
+        if (tabs != null && tabs.getSelectedIndex() >= 0) {
+            String label = title.replaceFirst("^(\\*?)Notepad - ", "$1");
+            tabs.setTitleAt(tabs.getSelectedIndex(), label);
+            tabs.setToolTipTextAt(tabs.getSelectedIndex(), currentFile != null ? currentFile.getPath() : null);
+        }
+    }
+
     private void setModified(boolean modified) {
         this.isModified = modified;
         String title = getTitle();
@@ -326,12 +2378,52 @@ public class Notepad extends JFrame implements ActionListener {
     }
 
     public static void main(String[] args) {
-        try {
-            UIManager.setLookAndFeel(UIManager.getSystemLookAndFeel());
-        } catch (Exception e) {
-            e.printStackTrace();
+        if (args.length > 0 && args[0].equals("--self-test")) {
+            PieceTableDocument.test();
+            LineIndex.test();
+            EditHistory.test();
+            ChangeTracker.test();
+            FileReplace.test();
+            WrapView.test();
+            SpillFile.test();
+            DocumentTab.test();
+            TextSearch.test();
+            FileFollower.test();
+            TextEncoding.test();
+            TextFiles.test();
+            EditJournal.test();
+            MappedTextFile.test();
+            FileSearch.test();
+            DocumentStats.test();
+            LatencyHistogram.test();
+            LaTeXHighlighter.test();
+            LaTeXPreview.test();
+            return;
         }
-        
-        SwingUtilities.invokeLater(() -> new Notepad());
+        if (args.length > 0 && args[0].equals("--replace")) {
+            System.exit(FileReplace.main(Arrays.copyOfRange(args, 1, args.length)));
+        }
+        if (args.length > 0 && args[0].equals("--bench")) {
+            System.exit(EditorBenchmark.main(Arrays.copyOfRange(args, 1, args.length)));
+        }
+        for (String arg : args) {
+            if (arg.equals("--startup-report")) {
+                StartupReport.enable(false);
+            } else if (arg.equals("--exit-after-startup")) {
+                StartupReport.enable(true);
+            }
+        }
+        StartupReport.mark("main");
+
+        // Everything Swing happens on the EDT, starting with the look and feel
+        SwingUtilities.invokeLater(() -> {
+            try {
+                UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            StartupReport.mark("look and feel");
+            new Notepad();
+        });
     }
 }
@@ -0,0 +1,661 @@
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import javax.swing.text.*;
+import javax.swing.undo.AbstractUndoableEdit;
+import javax.swing.undo.UndoableEdit;
+
+// Piece table storage: the original text is never copied by an edit, every insert is appended
+// to an add buffer, and the document is a balanced tree (treap) of pieces over the two buffers.
+// The original is whatever CharSequence it is given; for a loaded file that is the decoded text
+// on the heap (see PieceTableDocument.read), not the file itself
+class PieceTableContent implements AbstractDocument.Content {
+    private static final int PARTIAL_COPY_LIMIT = 16 * 1024;
+    private static final int MARK_BLOCK_SIZE = 1024;
+
+    private final CharSequence original;
+    private char[] added = new char[1024];
+    private int addedLength;
+    private Piece root;
+    private Piece splitLeft, splitRight;
+
+    // Positions are kept sorted in blocks, each with an offset delta, so an edit shifts whole
+    // blocks in one step and only touches single marks inside the block at the edit point
+    private MarkBlock[] blocks = new MarkBlock[16];
+    private int blockCount;
+    private int deadMarkCount;
+    private final ReferenceQueue<Position> deadMarks = new ReferenceQueue<>();
+
+    PieceTableContent() {
+        this("");
+    }
+
+    PieceTableContent(CharSequence original) {
+        this.original = original;
+        if (original.length() > 0) {
+            root = new Piece(false, 0, original.length());
+        }
+    }
+
+    public int length() {
+        return size(root) + 1;
+    }
+
+    int pieceCount() {
+        return root == null ? 0 : root.count;
+    }
+
+    // Both buffers only ever grow, so copying the piece list is enough to freeze the text
+    TextSnapshot snapshot() {
+        int n = pieceCount();
+        boolean[] fromAdded = new boolean[n];
+        int[] starts = new int[n];
+        int[] ends = new int[n];
+        Piece[] stack = new Piece[64];
+        int depth = 0, i = 0, offset = 0;
+        Piece p = root;
+        while (p != null || depth > 0) {
+            while (p != null) {
+                if (depth == stack.length) {
+                    stack = Arrays.copyOf(stack, depth * 2);
+                }
+                stack[depth++] = p;
+                p = p.left;
+            }
+            p = stack[--depth];
+            fromAdded[i] = p.added;
+            starts[i] = p.start;
+            offset += p.length;
+            ends[i++] = offset;
+            p = p.right;
+        }
+        return new TextSnapshot(original, added, fromAdded, starts, ends);
+    }
+
+    public UndoableEdit insertString(int where, String str) throws BadLocationException {
+        if (where < 0 || where >= length()) {
+            throw new BadLocationException("Invalid insert", where);
+        }
+        int start = append(str);
+        insertAdded(where, start, str.length());
+        return new InsertUndo(where, str.length());
+    }
+
+    public UndoableEdit remove(int where, int nitems) throws BadLocationException {
+        if (where < 0 || nitems < 0 || where + nitems >= length()) {
+            throw new BadLocationException("Invalid remove", where + nitems);
+        }
+        RemoveUndo edit = new RemoveUndo(where, nitems);
+        edit.pieces = detach(where, nitems);
+        return edit;
+    }
+
+    public String getString(int where, int len) throws BadLocationException {
+        Segment s = new Segment();
+        getChars(where, len, s);
+        return new String(s.array, s.offset, s.count);
+    }
+
+    public void getChars(int where, int len, Segment txt) throws BadLocationException {
+        if (where < 0 || len < 0 || where + len > length()) {
+            throw new BadLocationException("Invalid range", where + len);
+        }
+        int textLength = size(root);
+        if (len > 0 && where < textLength) {
+            // Point straight into the add buffer, or hand back one piece when a partial return is allowed
+            Piece p = root;
+            int offset = where;
+            while (true) {
+                int leftSize = size(p.left);
+                if (offset < leftSize) {
+                    p = p.left;
+                } else if (offset >= leftSize + p.length) {
+                    offset -= leftSize + p.length;
+                    p = p.right;
+                } else {
+                    offset -= leftSize;
+                    break;
+                }
+            }
+            int available = p.length - offset;
+            if (p.added && (available >= len || txt.isPartialReturn())) {
+                txt.array = added;
+                txt.offset = p.start + offset;
+                txt.count = Math.min(available, len);
+                return;
+            }
+            if (txt.isPartialReturn()) {
+                len = Math.min(Math.min(available, len), PARTIAL_COPY_LIMIT);
+            }
+        }
+        char[] chars = new char[len];
+        int textEnd = Math.min(where + len, textLength);
+        if (where < textEnd) {
+            copy(root, 0, where, textEnd, chars, where);
+        }
+        if (where + len > textLength) {
+            chars[len - 1] = '\n';
+        }
+        txt.array = chars;
+        txt.offset = 0;
+        txt.count = len;
+    }
+
+    public Position createPosition(int offset) throws BadLocationException {
+        if (offset < 0 || offset > length()) {
+            throw new BadLocationException("Invalid position", offset);
+        }
+        purgeMarks();
+        Position existing = findPosition(offset);
+        if (existing != null) {
+            return existing;
+        }
+        MarkPosition position = new MarkPosition();
+        position.mark = new Mark(position, deadMarks);
+        addMark(position.mark, offset);
+        return position;
+    }
+
+    // Piece tree
+
+    private static final class Piece {
+        final boolean added;
+        final int priority = ThreadLocalRandom.current().nextInt();
+        int start, length, size, count;
+        Piece left, right;
+
+        Piece(boolean added, int start, int length) {
+            this.added = added;
+            this.start = start;
+            this.length = length;
+            this.size = length;
+            this.count = 1;
+        }
+    }
+
+    private static int size(Piece p) {
+        return p == null ? 0 : p.size;
+    }
+
+    private static void update(Piece p) {
+        p.size = size(p.left) + p.length + size(p.right);
+        p.count = (p.left == null ? 0 : p.left.count) + 1 + (p.right == null ? 0 : p.right.count);
+    }
+
+    private static Piece merge(Piece a, Piece b) {
+        if (a == null) return b;
+        if (b == null) return a;
+        if (a.priority > b.priority) {
+            a.right = merge(a.right, b);
+            update(a);
+            return a;
+        }
+        b.left = merge(a, b.left);
+        update(b);
+        return b;
+    }
+
+    // Splits t into splitLeft (the first offset chars) and splitRight, cutting a piece if needed
+    private void split(Piece t, int offset) {
+        if (t == null) {
+            splitLeft = splitRight = null;
+            return;
+        }
+        int leftSize = size(t.left);
+        if (offset <= leftSize) {
+            split(t.left, offset);
+            t.left = splitRight;
+            update(t);
+            splitRight = t;
+        } else if (offset >= leftSize + t.length) {
+            split(t.right, offset - leftSize - t.length);
+            t.right = splitLeft;
+            update(t);
+            splitLeft = t;
+        } else {
+            int cut = offset - leftSize;
+            Piece tail = new Piece(t.added, t.start + cut, t.length - cut);
+            Piece right = t.right;
+            t.length = cut;
+            t.right = null;
+            update(t);
+            splitLeft = t;
+            splitRight = merge(tail, right);
+        }
+    }
+
+    private int append(String str) {
+        int start = addedLength;
+        int n = str.length();
+        if (addedLength + n > added.length) {
+            added = Arrays.copyOf(added, Math.max(added.length * 2, addedLength + n));
+        }
+        str.getChars(0, n, added, addedLength);
+        addedLength += n;
+        return start;
+    }
+
+    private void insertAdded(int where, int start, int length) {
+        split(root, where);
+        Piece left = splitLeft, right = splitRight;
+        Piece last = left;
+        while (last != null && last.right != null) {
+            last = last.right;
+        }
+        if (last != null && last.added && last.start + last.length == start) {
+            // Typing extends the piece it just wrote instead of adding a new one
+            for (Piece p = left; p != last; p = p.right) {
+                p.size += length;
+            }
+            last.length += length;
+            last.size += length;
+        } else {
+            left = merge(left, new Piece(true, start, length));
+        }
+        root = merge(left, right);
+        marksInserted(where, length);
+    }
+
+    private void insertTree(int where, Piece pieces) {
+        int length = size(pieces);
+        split(root, where);
+        root = merge(merge(splitLeft, pieces), splitRight);
+        marksInserted(where, length);
+    }
+
+    private Piece detach(int where, int length) {
+        split(root, where);
+        Piece left = splitLeft;
+        split(splitRight, length);
+        Piece removed = splitLeft;
+        root = merge(left, splitRight);
+        marksRemoved(where, length);
+        return removed;
+    }
+
+    private void copy(Piece p, int base, int from, int to, char[] dst, int dstBase) {
+        if (p == null || from >= base + p.size || to <= base) {
+            return;
+        }
+        copy(p.left, base, from, to, dst, dstBase);
+        int pieceStart = base + size(p.left);
+        int s = Math.max(from, pieceStart);
+        int e = Math.min(to, pieceStart + p.length);
+        if (s < e) {
+            int src = p.start + s - pieceStart;
+            if (p.added) {
+                System.arraycopy(added, src, dst, s - dstBase, e - s);
+            } else {
+                copyOriginal(src, src + e - s, dst, s - dstBase);
+            }
+        }
+        copy(p.right, pieceStart + p.length, from, to, dst, dstBase);
+    }
+
+    private void copyOriginal(int from, int to, char[] dst, int dstBegin) {
+        if (original instanceof String) {
+            ((String) original).getChars(from, to, dst, dstBegin);
+        } else if (original instanceof StringBuilder) {
+            ((StringBuilder) original).getChars(from, to, dst, dstBegin);
+        } else if (original instanceof CharBuffer) {
+            ((CharBuffer) original).get(from, dst, dstBegin, to - from);
+        } else {
+            for (int i = from; i < to; i++) {
+                dst[dstBegin++] = original.charAt(i);
+            }
+        }
+    }
+
+    // Marks
+
+    private static final class Mark extends WeakReference<Position> {
+        MarkBlock block;
+        int value;
+
+        Mark(Position position, ReferenceQueue<Position> queue) {
+            super(position, queue);
+        }
+
+        int offset() {
+            return value + block.delta;
+        }
+    }
+
+    private static final class MarkBlock {
+        Mark[] marks = new Mark[MARK_BLOCK_SIZE];
+        int count;
+        int delta;
+    }
+
+    private final class MarkPosition implements Position {
+        Mark mark;
+
+        public int getOffset() {
+            return mark.offset();
+        }
+
+        @Override
+        public String toString() {
+            return Integer.toString(getOffset());
+        }
+    }
+
+    // First block whose last mark is at or after offset
+    private int findBlock(int offset) {
+        int lo = 0, hi = blockCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            MarkBlock block = blocks[mid];
+            if (block.marks[block.count - 1].offset() < offset) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private static int lowerBound(MarkBlock block, int offset) {
+        int lo = 0, hi = block.count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (block.marks[mid].offset() < offset) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private Position findPosition(int offset) {
+        for (int b = findBlock(offset); b < blockCount; b++) {
+            MarkBlock block = blocks[b];
+            for (int i = lowerBound(block, offset); i < block.count; i++) {
+                Mark mark = block.marks[i];
+                if (mark.offset() != offset) {
+                    return null;
+                }
+                Position position = mark.get();
+                if (position != null) {
+                    return position;
+                }
+            }
+        }
+        return null;
+    }
+
+    private void addMark(Mark mark, int offset) {
+        if (blockCount == 0) {
+            blocks[blockCount++] = new MarkBlock();
+        }
+        int b = blocks[0].count == 0 ? 0 : Math.min(findBlock(offset), blockCount - 1);
+        MarkBlock block = blocks[b];
+        if (block.count == MARK_BLOCK_SIZE) {
+            splitBlock(b);
+            if (offset > blocks[b].marks[blocks[b].count - 1].offset()) {
+                block = blocks[++b];
+            }
+        }
+        int i = lowerBound(block, offset);
+        System.arraycopy(block.marks, i, block.marks, i + 1, block.count - i);
+        block.marks[i] = mark;
+        block.count++;
+        mark.block = block;
+        mark.value = offset - block.delta;
+    }
+
+    private void splitBlock(int b) {
+        MarkBlock block = blocks[b];
+        MarkBlock tail = new MarkBlock();
+        int half = block.count / 2;
+        tail.delta = block.delta;
+        tail.count = block.count - half;
+        System.arraycopy(block.marks, half, tail.marks, 0, tail.count);
+        Arrays.fill(block.marks, half, block.count, null);
+        block.count = half;
+        for (int i = 0; i < tail.count; i++) {
+            tail.marks[i].block = tail;
+        }
+        if (blockCount == blocks.length) {
+            blocks = Arrays.copyOf(blocks, blockCount * 2);
+        }
+        System.arraycopy(blocks, b + 1, blocks, b + 2, blockCount - b - 1);
+        blocks[b + 1] = tail;
+        blockCount++;
+    }
+
+    // Inserting moves every mark at or after where, except marks at offset zero which
+    // stay put as they do in GapContent. Whole blocks just shift their delta
+    private void marksInserted(int where, int length) {
+        for (int b = blockCount - 1; b >= 0; b--) {
+            MarkBlock block = blocks[b];
+            if (movesOnInsert(block.marks[0].offset(), where)) {
+                block.delta += length;
+                continue;
+            }
+            for (int i = block.count - 1; i >= 0 && movesOnInsert(block.marks[i].offset(), where); i--) {
+                block.marks[i].value += length;
+            }
+            return;
+        }
+    }
+
+    private static boolean movesOnInsert(int offset, int where) {
+        return offset > where || (offset == where && where != 0);
+    }
+
+    private void marksRemoved(int where, int length) {
+        int end = where + length;
+        for (int b = blockCount - 1; b >= 0; b--) {
+            MarkBlock block = blocks[b];
+            if (block.marks[0].offset() > end) {
+                block.delta -= length;
+                continue;
+            }
+            for (int i = block.count - 1; i >= 0; i--) {
+                Mark mark = block.marks[i];
+                int offset = mark.offset();
+                if (offset > end) {
+                    mark.value -= length;
+                } else if (offset >= where) {
+                    mark.value = where - block.delta;
+                } else {
+                    return;
+                }
+            }
+        }
+    }
+
+    // Positions inside a range about to collapse, with the offsets to restore them to on undo
+    private static final class MarkRange {
+        final Mark[] marks;
+        final int[] offsets;
+
+        MarkRange(Mark[] marks, int[] offsets) {
+            this.marks = marks;
+            this.offsets = offsets;
+        }
+    }
+
+    private MarkRange marksInRange(int offset, int length) {
+        java.util.List<Mark> range = new java.util.ArrayList<>();
+        for (int b = findBlock(offset); b < blockCount; b++) {
+            MarkBlock block = blocks[b];
+            for (int i = lowerBound(block, offset); i < block.count; i++) {
+                Mark mark = block.marks[i];
+                if (mark.offset() > offset + length) {
+                    b = blockCount;
+                    break;
+                }
+                if (mark.get() != null) {
+                    range.add(mark);
+                }
+            }
+        }
+        int[] offsets = new int[range.size()];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = range.get(i).offset();
+        }
+        return new MarkRange(range.toArray(new Mark[0]), offsets);
+    }
+
+    // Puts marks captured before an undoable removal back where they were. After the text is
+    // reinserted they all sit at one end of the range, so normally only that run needs sorting
+    private void restoreMarks(MarkRange restored, int offset, int length) {
+        boolean inRun = true;
+        for (Mark mark : restored.marks) {
+            int current = mark.offset();
+            if (current < offset || current > offset + length) {
+                inRun = false;
+            }
+        }
+        int fromBlock = inRun ? findBlock(offset) : 0;
+        int toOffset = inRun ? offset + length : Integer.MAX_VALUE;
+        for (int i = 0; i < restored.marks.length; i++) {
+            Mark mark = restored.marks[i];
+            mark.value = restored.offsets[i] - mark.block.delta;
+        }
+        java.util.List<Mark> run = new java.util.ArrayList<>();
+        for (int b = fromBlock; b < blockCount; b++) {
+            MarkBlock block = blocks[b];
+            int i = inRun ? lowerBound(block, offset) : 0;
+            for (; i < block.count && block.marks[i].offset() <= toOffset; i++) {
+                run.add(block.marks[i]);
+            }
+            if (i < block.count) {
+                break;
+            }
+        }
+        // Restored marks may now sit out of order inside the run; re-sort it in place
+        for (Mark mark : restored.marks) {
+            if (!run.contains(mark)) {
+                inRun = false;
+            }
+        }
+        if (!inRun) {
+            run.clear();
+            for (int b = 0; b < blockCount; b++) {
+                for (int i = 0; i < blocks[b].count; i++) {
+                    run.add(blocks[b].marks[i]);
+                }
+            }
+            fromBlock = 0;
+        }
+        int[] offsets = new int[run.size()];
+        Mark[] sorted = run.toArray(new Mark[0]);
+        Arrays.sort(sorted, Comparator.comparingInt(Mark::offset));
+        for (int i = 0; i < sorted.length; i++) {
+            offsets[i] = sorted[i].offset();
+        }
+        int k = 0;
+        for (int b = fromBlock; b < blockCount && k < sorted.length; b++) {
+            MarkBlock block = blocks[b];
+            int i = inRun && b == fromBlock ? lowerBound(block, offset) : 0;
+            for (; i < block.count && k < sorted.length; i++, k++) {
+                block.marks[i] = sorted[k];
+                sorted[k].block = block;
+                sorted[k].value = offsets[k] - block.delta;
+            }
+        }
+    }
+
+    private void purgeMarks() {
+        while (deadMarks.poll() != null) {
+            deadMarkCount++;
+        }
+        if (deadMarkCount < 1024 || deadMarkCount < markCount() / 4) {
+            return;
+        }
+        MarkBlock[] compacted = new MarkBlock[Math.max(16, blocks.length)];
+        int n = 0;
+        MarkBlock target = null;
+        for (int b = 0; b < blockCount; b++) {
+            MarkBlock block = blocks[b];
+            for (int i = 0; i < block.count; i++) {
+                Mark mark = block.marks[i];
+                if (mark.get() == null) {
+                    continue;
+                }
+                if (target == null || target.count == MARK_BLOCK_SIZE / 2) {
+                    target = new MarkBlock();
+                    compacted[n++] = target;
+                }
+                int offset = mark.offset();
+                mark.block = target;
+                mark.value = offset;
+                target.marks[target.count++] = mark;
+            }
+        }
+        blocks = compacted;
+        blockCount = n;
+        deadMarkCount = 0;
+    }
+
+    private int markCount() {
+        int n = 0;
+        for (int b = 0; b < blockCount; b++) {
+            n += blocks[b].count;
+        }
+        return n;
+    }
+
+    // Undo support: removed pieces are kept as a detached subtree, so no text is copied
+
+    private final class InsertUndo extends AbstractUndoableEdit {
+        private final int offset, length;
+        private Piece pieces;
+        private MarkRange positions;
+
+        InsertUndo(int offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public void undo() {
+            super.undo();
+            positions = marksInRange(offset, length);
+            pieces = detach(offset, length);
+        }
+
+        @Override
+        public void redo() {
+            super.redo();
+            insertTree(offset, pieces);
+            restoreMarks(positions, offset, length);
+            pieces = null;
+            positions = null;
+        }
+    }
+
+    private final class RemoveUndo extends AbstractUndoableEdit {
+        private final int offset, length;
+        private Piece pieces;
+        private MarkRange positions;
+
+        RemoveUndo(int offset, int length) {
+            this.offset = offset;
+            this.length = length;
+            positions = marksInRange(offset, length);
+        }
+
+        @Override
+        public void undo() {
+            super.undo();
+            insertTree(offset, pieces);
+            restoreMarks(positions, offset, length);
+            pieces = null;
+        }
+
+        @Override
+        public void redo() {
+            super.redo();
+            positions = marksInRange(offset, length);
+            pieces = detach(offset, length);
+        }
+    }
+}
@@ -0,0 +1,285 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.MalformedInputException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.function.LongConsumer;
+import javax.swing.text.*;
+import javax.swing.undo.UndoManager;
+
+// Plain text document backed by a PieceTableContent
+class PieceTableDocument extends PlainDocument {
+    // Document property holding how many bytes of the file read() got through, as a Long
+    static final String LOADED_SIZE_PROPERTY = "LoadedSize";
+
+    PieceTableDocument() {
+        super(new PieceTableContent());
+    }
+
+    PieceTableDocument(CharSequence text) {
+        super(new PieceTableContent(text));
+        if (text.length() > 0) {
+            buildLineMap(text);
+        }
+    }
+
+    int getPieceCount() {
+        return ((PieceTableContent) getContent()).pieceCount();
+    }
+
+    // Immutable view of the current text, safe to read from any thread
+    TextSnapshot snapshot() {
+        TextSnapshot[] snapshot = new TextSnapshot[1];
+        render(() -> snapshot[0] = ((PieceTableContent) getContent()).snapshot());
+        return snapshot[0];
+    }
+
+    // The loaded text becomes the original buffer, so build the line elements directly
+    // instead of inserting it and copying everything into the add buffer
+    private void buildLineMap(CharSequence text) {
+        writeLock();
+        try {
+            BranchElement map = (BranchElement) getDefaultRootElement();
+            java.util.List<Element> lines = new java.util.ArrayList<>();
+            int start = 0;
+            for (int i = 0; i < text.length(); i++) {
+                if (text.charAt(i) == '\n') {
+                    lines.add(createLeafElement(map, null, start, i + 1));
+                    start = i + 1;
+                }
+            }
+            lines.add(createLeafElement(map, null, start, text.length() + 1));
+            map.replace(0, map.getElementCount(), lines.toArray(new Element[0]));
+        } finally {
+            writeUnlock();
+        }
+    }
+
+    // Reads a file block by block through one decoder, guessing the encoding from the first
+    // block. The encoding is kept in the TextEncoding.PROPERTY document property for saving.
+    // The decoded text is held on the heap as the original buffer: one char per char of text, or
+    // one byte while it is all ISO-8859-1, as StringBuilder stores it. It is not left in the file,
+    // mapped and decoded on demand, because the original must not change under the document: a
+    // file rewritten in place would change it, one truncated would fault on the next read, and
+    // Windows refuses to replace a mapped file when saving. Files of LARGE_FILE_THRESHOLD and
+    // more are opened in the read-only MappedTextFile view instead
+    static PieceTableDocument read(Path path, LongConsumer progress) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer bytes = ByteBuffer.allocateDirect(TextEncoding.SAMPLE_SIZE);
+            boolean eof = fill(channel, bytes);
+            TextEncoding encoding = TextEncoding.detect(bytes, Charset.defaultCharset());
+            try {
+                return decode(channel, bytes, eof, encoding, size, progress);
+            } catch (MalformedInputException ex) {
+                // Valid UTF-8 at the start but not further on: read it all again as ISO-8859-1,
+                // still past a UTF-8 BOM, which would otherwise show as three letters
+                channel.position(0);
+                bytes.clear();
+                eof = fill(channel, bytes);
+                bytes.position(Math.min(encoding.bomLength(), bytes.remaining()));
+                return decode(channel, bytes, eof, new TextEncoding(StandardCharsets.ISO_8859_1, false), size, progress);
+            }
+        }
+    }
+
+    // Reads until bytes is full or the file ends, and flips it; true at the end of the file
+    private static boolean fill(FileChannel channel, ByteBuffer bytes) throws IOException {
+        boolean eof = false;
+        while (bytes.hasRemaining() && !eof) {
+            eof = channel.read(bytes) < 0;
+        }
+        bytes.flip();
+        return eof;
+    }
+
+    private static PieceTableDocument decode(FileChannel channel, ByteBuffer bytes, boolean eof, TextEncoding encoding,
+                                             long size, LongConsumer progress) throws IOException {
+        // A guess of UTF-8 must hold for the whole file, any other charset replaces what it cannot read
+        CharsetDecoder decoder = TextFiles.decoder(encoding.charset, encoding.charset.equals(StandardCharsets.UTF_8)
+                ? CodingErrorAction.REPORT : CodingErrorAction.REPLACE);
+        Loader loader = new Loader(size);
+        CharBuffer chars = CharBuffer.allocate(TextEncoding.SAMPLE_SIZE);
+        bytes.position(bytes.position() + Math.min(encoding.bomLength(), bytes.remaining()));
+        while (true) {
+            CoderResult result = decoder.decode(bytes, chars, eof);
+            if (result.isError()) {
+                result.throwException();
+            }
+            loader.append(chars);
+            if (result.isOverflow()) {
+                continue;
+            }
+            if (eof) {
+                break;
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("Read cancelled");
+            }
+            bytes.compact();
+            eof = fill(channel, bytes);
+            progress.accept(channel.position());
+        }
+        while (decoder.flush(chars).isOverflow()) {
+            loader.append(chars);
+        }
+        loader.append(chars);
+
+        PieceTableDocument document = loader.finish();
+        document.putProperty(TextEncoding.PROPERTY, encoding);
+        document.putProperty(LOADED_SIZE_PROPERTY, channel.position());
+        return document;
+    }
+
+    // Collects decoded text, turning \r\n and \r into \n the way DefaultEditorKit does
+    private static final class Loader {
+        private final StringBuilder text;
+        private boolean lastWasCR, sawCR, sawCRLF;
+
+        Loader(long sizeHint) {
+            text = new StringBuilder((int) Math.min(Math.max(sizeHint, 16), Integer.MAX_VALUE - 8));
+        }
+
+        // Takes everything decoded into chars and clears it for the next block
+        void append(CharBuffer chars) {
+            chars.flip();
+            char[] buffer = chars.array();
+            int end = chars.arrayOffset() + chars.limit();
+            for (int i = chars.arrayOffset() + chars.position(); i < end; i++) {
+                char c = buffer[i];
+                if (lastWasCR) {
+                    if (c == '\n') {
+                        sawCRLF = true;
+                        lastWasCR = false;
+                        continue;
+                    }
+                    sawCR = true;
+                }
+                lastWasCR = c == '\r';
+                text.append(lastWasCR ? '\n' : c);
+            }
+            chars.clear();
+        }
+
+        PieceTableDocument finish() {
+            if (lastWasCR) {
+                sawCR = true;
+            }
+            PieceTableDocument document = new PieceTableDocument(text);
+            if (sawCRLF) {
+                document.putProperty(DefaultEditorKit.EndOfLineStringProperty, "\r\n");
+            } else if (sawCR) {
+                document.putProperty(DefaultEditorKit.EndOfLineStringProperty, "\r");
+            }
+            return document;
+        }
+    }
+
+    // Test method: replays the same random edits, undos and redos against PlainDocument
+    static void test() {
+        Random random = new Random(1549);
+        String seed = "The quick brown fox\njumps over\n\nthe lazy dog";
+        PieceTableDocument pieces = new PieceTableDocument(seed);
+        PlainDocument plain = new PlainDocument();
+        UndoManager pieceUndo = new UndoManager();
+        UndoManager plainUndo = new UndoManager();
+        pieceUndo.setLimit(-1);
+        plainUndo.setLimit(-1);
+        java.util.List<Position> piecePositions = new java.util.ArrayList<>();
+        java.util.List<Position> plainPositions = new java.util.ArrayList<>();
+        String alphabet = "ab\n\n";
+        int edits = 20000;
+        TextSnapshot snapshot = null;
+        String snapshotText = null;
+
+        try {
+            plain.insertString(0, seed, null);
+            pieces.addUndoableEditListener(pieceUndo);
+            plain.addUndoableEditListener(plainUndo);
+
+            for (int i = 0; i < edits; i++) {
+                int length = plain.getLength();
+                int op = random.nextInt(10);
+                if (op < 4 || length < 3000) {
+                    int where = random.nextInt(length + 1);
+                    StringBuilder sb = new StringBuilder();
+                    for (int k = 1 + random.nextInt(random.nextInt(10) == 0 ? 200 : 8); k > 0; k--) {
+                        sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+                    }
+                    pieces.insertString(where, sb.toString(), null);
+                    plain.insertString(where, sb.toString(), null);
+                } else if (op < 7 || length > 6000) {
+                    int where = random.nextInt(length);
+                    int count = 1 + random.nextInt(Math.min(length - where, 30));
+                    pieces.remove(where, count);
+                    plain.remove(where, count);
+                } else if (op == 7 && plainUndo.canUndo()) {
+                    pieceUndo.undo();
+                    plainUndo.undo();
+                    forgetPositions(piecePositions, plainPositions);
+                } else if (op == 8 && plainUndo.canRedo()) {
+                    pieceUndo.redo();
+                    plainUndo.redo();
+                    forgetPositions(piecePositions, plainPositions);
+                } else {
+                    int offset = random.nextInt(length + 1);
+                    piecePositions.add(pieces.createPosition(offset));
+                    plainPositions.add(plain.createPosition(offset));
+                }
+                compare(pieces, plain, piecePositions, plainPositions, i);
+                if (i % 500 == 0) {
+                    // A snapshot must keep its text however much is edited afterwards
+                    if (snapshot != null && !snapshot.toString().equals(snapshotText)) {
+                        throw new IllegalStateException("Snapshot changed before edit " + i);
+                    }
+                    snapshot = pieces.snapshot();
+                    snapshotText = plain.getText(0, plain.getLength());
+                }
+            }
+        } catch (BadLocationException e) {
+            throw new IllegalStateException("PieceTableDocument test failed: " + e.getMessage(), e);
+        }
+
+        System.out.println("PieceTableDocument: " + edits + " edits matched PlainDocument ("
+                + pieces.getPieceCount() + " pieces, " + pieces.getLength() + " chars)");
+    }
+
+    // Which mark a new position shares after a removal collapsed several of them is an
+    // implementation detail, so free positions are only compared between undo steps
+    private static void forgetPositions(java.util.List<Position> piecePositions, java.util.List<Position> plainPositions) {
+        piecePositions.clear();
+        plainPositions.clear();
+    }
+
+    private static void compare(Document pieces, Document plain, java.util.List<Position> piecePositions,
+                                java.util.List<Position> plainPositions, int step) throws BadLocationException {
+        String expected = plain.getText(0, plain.getLength());
+        if (!pieces.getText(0, pieces.getLength()).equals(expected)) {
+            throw new IllegalStateException("Text differs after edit " + step);
+        }
+        Element expectedRoot = plain.getDefaultRootElement();
+        Element actualRoot = pieces.getDefaultRootElement();
+        if (expectedRoot.getElementCount() != actualRoot.getElementCount()) {
+            throw new IllegalStateException("Line count differs after edit " + step);
+        }
+        for (int i = 0; i < expectedRoot.getElementCount(); i++) {
+            Element e = expectedRoot.getElement(i), a = actualRoot.getElement(i);
+            if (e.getStartOffset() != a.getStartOffset() || e.getEndOffset() != a.getEndOffset()) {
+                throw new IllegalStateException("Line " + i + " differs after edit " + step);
+            }
+        }
+        for (int i = 0; i < plainPositions.size(); i++) {
+            if (plainPositions.get(i).getOffset() != piecePositions.get(i).getOffset()) {
+                throw new IllegalStateException("Position " + i + " differs after edit " + step);
+            }
+        }
+    }
+}
@@ -0,0 +1,279 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.function.LongConsumer;
+
+// One temporary file holding the text of every spilled tab. Text goes in as UTF-8, or as raw
+// UTF-16 if it has unpaired surrogates, which UTF-8 cannot hold. Each text gets an extent of
+// its own; freed extents are merged and reused first fit, and the file shrinks when its end
+// is freed. Writes and reads of different extents may run at once from different threads
+final class SpillFile implements Closeable {
+    private static final int CHUNK = 64 * 1024;
+
+    static final class Extent {
+        final long offset;
+        final long bytes;
+        final int chars;
+        final boolean utf8;
+
+        Extent(long offset, long bytes, int chars, boolean utf8) {
+            this.offset = offset;
+            this.bytes = bytes;
+            this.chars = chars;
+            this.utf8 = utf8;
+        }
+    }
+
+    private final FileChannel channel;
+    // Free extents by offset, each mapped to its length in bytes
+    private final java.util.TreeMap<Long, Long> free = new java.util.TreeMap<>();
+    private long end;
+
+    private SpillFile(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    static SpillFile create() throws IOException {
+        Path path = Files.createTempFile("notepad-", ".spill");
+        path.toFile().deleteOnExit();
+        return new SpillFile(FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE));
+    }
+
+    Extent write(CharSequence text) throws IOException {
+        char[] chunk = new char[CHUNK];
+        int length = text.length();
+        long utf8Bytes = utf8Length(text, chunk);
+        boolean utf8 = utf8Bytes >= 0;
+        Extent extent = allocate(utf8 ? utf8Bytes : 2L * length, length, utf8);
+        try {
+            long position = extent.offset;
+            if (utf8) {
+                CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+                CharBuffer in = CharBuffer.allocate(CHUNK);
+                ByteBuffer out = ByteBuffer.allocate(3 * CHUNK);
+                for (int pos = 0; ; ) {
+                    int n = Math.min(in.remaining(), length - pos);
+                    TextFiles.getChars(text, pos, pos + n, chunk);
+                    in.put(chunk, 0, n);
+                    pos += n;
+                    boolean last = pos == length;
+                    in.flip();
+                    CoderResult result = encoder.encode(in, out, last);
+                    if (result.isError()) {
+                        result.throwException();
+                    }
+                    if (last) {
+                        encoder.flush(out);
+                    }
+                    // A high surrogate at the end of the chunk waits here for its pair
+                    in.compact();
+                    position = writeFully(out, position);
+                    if (last) break;
+                }
+            } else {
+                ByteBuffer out = ByteBuffer.allocate(2 * CHUNK);
+                for (int pos = 0; pos < length; ) {
+                    int n = Math.min(CHUNK, length - pos);
+                    TextFiles.getChars(text, pos, pos + n, chunk);
+                    out.asCharBuffer().put(chunk, 0, n);
+                    out.position(2 * n);
+                    position = writeFully(out, position);
+                    pos += n;
+                }
+            }
+            return extent;
+        } catch (IOException | RuntimeException ex) {
+            free(extent);
+            throw ex;
+        }
+    }
+
+    CharBuffer read(Extent extent) throws IOException {
+        return read(extent, bytes -> {});
+    }
+
+    CharBuffer read(Extent extent, LongConsumer progress) throws IOException {
+        CharBuffer text = CharBuffer.allocate(extent.chars);
+        ByteBuffer in = ByteBuffer.allocate(2 * CHUNK);
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder();
+        long position = extent.offset;
+        long remaining = extent.bytes;
+        while (true) {
+            in.limit((int) Math.min(in.capacity(), in.position() + remaining));
+            while (in.hasRemaining()) {
+                int read = channel.read(in, position);
+                if (read < 0) {
+                    throw new EOFException("Spill file ends early");
+                }
+                position += read;
+                remaining -= read;
+            }
+            progress.accept(extent.bytes - remaining);
+            boolean last = remaining == 0;
+            in.flip();
+            if (extent.utf8) {
+                CoderResult result = decoder.decode(in, text, last);
+                if (result.isError()) {
+                    result.throwException();
+                }
+            } else {
+                // An odd byte at the end of the buffer waits for the rest of its char
+                CharBuffer chars = in.asCharBuffer();
+                text.put(chars);
+                in.position(in.position() + 2 * chars.position());
+            }
+            in.compact();
+            if (last) break;
+        }
+        if (extent.utf8) {
+            decoder.flush(text);
+        }
+        return text.flip();
+    }
+
+    synchronized void free(Extent extent) {
+        long offset = extent.offset;
+        long bytes = extent.bytes;
+        if (bytes == 0) return;
+
+        java.util.Map.Entry<Long, Long> before = free.floorEntry(offset);
+        if (before != null && before.getKey() + before.getValue() == offset) {
+            offset = before.getKey();
+            bytes += before.getValue();
+            free.remove(offset);
+        }
+        Long after = free.remove(offset + bytes);
+        if (after != null) {
+            bytes += after;
+        }
+        if (offset + bytes == end) {
+            end = offset;
+            try {
+                channel.truncate(end);
+            } catch (IOException ex) {
+                // The space is free for reuse either way
+            }
+        } else {
+            free.put(offset, bytes);
+        }
+    }
+
+    synchronized long size() {
+        return end;
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            // Deleted on exit anyway
+        }
+    }
+
+    private synchronized Extent allocate(long bytes, int chars, boolean utf8) {
+        for (java.util.Map.Entry<Long, Long> hole : free.entrySet()) {
+            long offset = hole.getKey();
+            long size = hole.getValue();
+            if (size >= bytes) {
+                free.remove(offset);
+                if (size > bytes) {
+                    free.put(offset + bytes, size - bytes);
+                }
+                return new Extent(offset, bytes, chars, utf8);
+            }
+        }
+        Extent extent = new Extent(end, bytes, chars, utf8);
+        end += bytes;
+        return extent;
+    }
+
+    static void test() {
+        Random random = new Random(23);
+        String[] alphabet = {"a", "Z", " ", "\n", "\u00e9", "\u20ac", "\ud83d\ude00", "\ud83d", "\ude00"};
+        try (SpillFile spill = create()) {
+            java.util.List<Extent> extents = new java.util.ArrayList<>();
+            java.util.List<String> texts = new java.util.ArrayList<>();
+            for (int round = 0; round < 400; round++) {
+                if (!extents.isEmpty() && random.nextInt(3) == 0) {
+                    int victim = random.nextInt(extents.size());
+                    spill.free(extents.remove(victim));
+                    texts.remove(victim);
+                    continue;
+                }
+                // Most texts have no lone surrogates and take the UTF-8 path
+                boolean lone = random.nextInt(4) == 0;
+                StringBuilder text = new StringBuilder();
+                int length = random.nextInt(8) == 0 ? CHUNK * 2 + random.nextInt(CHUNK) : random.nextInt(300);
+                while (text.length() < length) {
+                    text.append(alphabet[random.nextInt(lone ? alphabet.length : alphabet.length - 2)]);
+                }
+                extents.add(spill.write(text));
+                texts.add(text.toString());
+            }
+            for (int i = 0; i < extents.size(); i++) {
+                if (!spill.read(extents.get(i)).toString().equals(texts.get(i))) {
+                    throw new IllegalStateException("SpillFile read back different text for extent " + i);
+                }
+            }
+            for (Extent extent : extents) {
+                spill.free(extent);
+            }
+            if (spill.size() != 0) {
+                throw new IllegalStateException("SpillFile kept " + spill.size() + " bytes after freeing everything");
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        System.out.println("SpillFile: 400 random writes, frees and reads passed");
+    }
+
+    private long writeFully(ByteBuffer out, long position) throws IOException {
+        out.flip();
+        while (out.hasRemaining()) {
+            position += channel.write(out, position);
+        }
+        out.clear();
+        return position;
+    }
+
+    // The UTF-8 length of text, or -1 if it has an unpaired surrogate
+    private static long utf8Length(CharSequence text, char[] chunk) {
+        long bytes = 0;
+        boolean high = false;
+        for (int pos = 0; pos < text.length(); ) {
+            int n = Math.min(chunk.length, text.length() - pos);
+            TextFiles.getChars(text, pos, pos + n, chunk);
+            for (int i = 0; i < n; i++) {
+                char c = chunk[i];
+                if (high) {
+                    if (!Character.isLowSurrogate(c)) return -1;
+                    high = false;
+                    bytes += 4;
+                } else if (c < 0x80) {
+                    bytes++;
+                } else if (c < 0x800) {
+                    bytes += 2;
+                } else if (Character.isHighSurrogate(c)) {
+                    high = true;
+                } else if (Character.isLowSurrogate(c)) {
+                    return -1;
+                } else {
+                    bytes += 3;
+                }
+            }
+            pos += n;
+        }
+        return high ? -1 : bytes;
+    }
+}
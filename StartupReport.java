@@ -0,0 +1,49 @@
+// Times startup from the launch of the JVM, for --startup-report:
+//   java Notepad --startup-report
+// prints each phase to stderr once the menus are built. Most of the time to first paint goes on
+// loading classes, which an application class-data sharing archive cuts down. Record one with
+// a run that exits as soon as startup is over, then launch with it:
+//   java -XX:ArchiveClassesAtExit=notepad.jsa Notepad --exit-after-startup
+//   java -XX:SharedArchiveFile=notepad.jsa Notepad
+// A JVM that cannot use the archive, say after an update, warns and starts without it
+final class StartupReport {
+    private static boolean enabled;
+    private static boolean exitAfterStartup;
+    private static boolean finished;
+    private static final StringBuilder phases = new StringBuilder();
+    private static java.time.Instant launched;
+
+    private StartupReport() {
+    }
+
+    static synchronized void enable(boolean exit) {
+        enabled = true;
+        exitAfterStartup |= exit;
+        launched = ProcessHandle.current().info().startInstant().orElse(java.time.Instant.now());
+    }
+
+    // Phases may end on any thread; fonts are listed on one of their own
+    static synchronized void mark(String phase) {
+        if (!enabled) return;
+
+        long millis = java.time.Duration.between(launched, java.time.Instant.now()).toMillis();
+        String line = String.format("%6d ms  %s%n", millis, phase);
+        if (finished) {
+            // Past the report, so it goes out on its own
+            System.err.print(line);
+        } else {
+            phases.append(line);
+        }
+    }
+
+    static synchronized void finish() {
+        if (!enabled) return;
+
+        System.err.print("Startup, from JVM launch:" + System.lineSeparator() + phases);
+        phases.setLength(0);
+        finished = true;
+        if (exitAfterStartup) {
+            System.exit(0);
+        }
+    }
+}
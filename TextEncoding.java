@@ -0,0 +1,215 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import javax.swing.text.*;
+
+// The charset of a text file and whether it starts with a byte order mark, guessed from its
+// first block: a BOM decides it, then UTF-16 without a BOM shows as every other byte being
+// zero, then a block that is valid UTF-8 is taken as UTF-8. Anything else falls back to the
+// platform charset, or to ISO-8859-1 where that is UTF-8 or ASCII, since it decodes any
+// byte and writes it back unchanged
+final class TextEncoding {
+    // Document property holding the TextEncoding the text was read with
+    static final String PROPERTY = "TextEncoding";
+    static final int SAMPLE_SIZE = 64 * 1024;
+
+    final Charset charset;
+    final boolean bom;
+
+    TextEncoding(Charset charset, boolean bom) {
+        this.charset = charset;
+        this.bom = bom;
+    }
+
+    static TextEncoding of(Document document) {
+        Object encoding = document.getProperty(PROPERTY);
+        return encoding instanceof TextEncoding
+                ? (TextEncoding) encoding : new TextEncoding(Charset.defaultCharset(), false);
+    }
+
+    int bomLength() {
+        if (!bom) return 0;
+        if (charset.equals(StandardCharsets.UTF_8)) return 3;
+        return charset.name().startsWith("UTF-32") ? 4 : 2;
+    }
+
+    // Whether the charset encodes ASCII as single bytes, so lines can be found by their '\n' byte
+    boolean isAsciiCompatible() {
+        return !isWide();
+    }
+
+    private boolean isWide() {
+        String name = charset.name();
+        return name.startsWith("UTF-16") || name.startsWith("UTF-32");
+    }
+
+    // A NUL byte is only text in UTF-16 and UTF-32
+    boolean isBinary(ByteBuffer sample) {
+        if (isWide()) return false;
+        int limit = Math.min(sample.limit(), 8000);
+        for (int i = sample.position(); i < limit; i++) {
+            if (sample.get(i) == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Looks at sample from its position to its limit without moving either
+    static TextEncoding detect(ByteBuffer sample, Charset fallback) {
+        int p = sample.position(), n = sample.remaining();
+        int b0 = n > 0 ? sample.get(p) & 0xFF : -1;
+        int b1 = n > 1 ? sample.get(p + 1) & 0xFF : -1;
+        int b2 = n > 2 ? sample.get(p + 2) & 0xFF : -1;
+        int b3 = n > 3 ? sample.get(p + 3) & 0xFF : -1;
+        if (b0 == 0xEF && b1 == 0xBB && b2 == 0xBF) {
+            return new TextEncoding(StandardCharsets.UTF_8, true);
+        }
+        if (b0 == 0 && b1 == 0 && b2 == 0xFE && b3 == 0xFF && Charset.isSupported("UTF-32BE")) {
+            return new TextEncoding(Charset.forName("UTF-32BE"), true);
+        }
+        if (b0 == 0xFF && b1 == 0xFE && b2 == 0 && b3 == 0 && Charset.isSupported("UTF-32LE")) {
+            return new TextEncoding(Charset.forName("UTF-32LE"), true);
+        }
+        if (b0 == 0xFE && b1 == 0xFF) {
+            return new TextEncoding(StandardCharsets.UTF_16BE, true);
+        }
+        if (b0 == 0xFF && b1 == 0xFE) {
+            return new TextEncoding(StandardCharsets.UTF_16LE, true);
+        }
+
+        // Mostly-ASCII text in UTF-16 has a zero in one half of nearly every char
+        int pairs = Math.min(n, 4096) / 2, evenZeros = 0, oddZeros = 0;
+        for (int i = 0; i < pairs; i++) {
+            if (sample.get(p + 2 * i) == 0) evenZeros++;
+            if (sample.get(p + 2 * i + 1) == 0) oddZeros++;
+        }
+        if (pairs >= 2 && oddZeros > pairs * 0.4 && evenZeros < pairs * 0.05) {
+            return new TextEncoding(StandardCharsets.UTF_16LE, false);
+        }
+        if (pairs >= 2 && evenZeros > pairs * 0.4 && oddZeros < pairs * 0.05) {
+            return new TextEncoding(StandardCharsets.UTF_16BE, false);
+        }
+
+        if (isUtf8(sample, p, p + Math.min(n, SAMPLE_SIZE))) {
+            return new TextEncoding(StandardCharsets.UTF_8, false);
+        }
+        boolean strict = fallback.equals(StandardCharsets.UTF_8) || fallback.equals(StandardCharsets.US_ASCII);
+        return new TextEncoding(strict ? StandardCharsets.ISO_8859_1 : fallback, false);
+    }
+
+    // Checks the UTF-8 byte patterns, allowing the sample to end in the middle of a sequence
+    private static boolean isUtf8(ByteBuffer bytes, int from, int to) {
+        int i = from;
+        while (i < to) {
+            int b = bytes.get(i) & 0xFF;
+            int continuation;
+            if (b < 0x80) {
+                i++;
+                continue;
+            } else if (b >= 0xC2 && b <= 0xDF) {
+                continuation = 1;
+            } else if (b >= 0xE0 && b <= 0xEF) {
+                continuation = 2;
+            } else if (b >= 0xF0 && b <= 0xF4) {
+                continuation = 3;
+            } else {
+                return false;
+            }
+            for (int k = 1; k <= continuation; k++) {
+                if (i + k >= to) {
+                    return true;
+                }
+                if ((bytes.get(i + k) & 0xC0) != 0x80) {
+                    return false;
+                }
+            }
+            i += continuation + 1;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return charset.name() + (bom ? " with BOM" : "");
+    }
+
+    // Test method: guesses from samples, then files read through PieceTableDocument.read and
+    // written back with TextFiles, which must give the same bytes where the encoding allows
+    static void test() {
+        String text = "caf\u00e9 \u6f22\u5b57 \uD83D\uDE00\nsecond line\n";
+        Object[][] samples = {
+                {bytes(new byte[] {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF}, text.getBytes(StandardCharsets.UTF_8)), "UTF-8 with BOM"},
+                {bytes(new byte[] {(byte) 0xFF, (byte) 0xFE}, text.getBytes(StandardCharsets.UTF_16LE)), "UTF-16LE with BOM"},
+                {bytes(new byte[] {(byte) 0xFE, (byte) 0xFF}, text.getBytes(StandardCharsets.UTF_16BE)), "UTF-16BE with BOM"},
+                {"plain ASCII text\n".getBytes(StandardCharsets.UTF_16LE), "UTF-16LE"},
+                {"plain ASCII text\n".getBytes(StandardCharsets.UTF_16BE), "UTF-16BE"},
+                {text.getBytes(StandardCharsets.UTF_8), "UTF-8"},
+                {"caf\u00e9\n".getBytes(StandardCharsets.ISO_8859_1), "ISO-8859-1"},
+        };
+        for (Object[] sample : samples) {
+            TextEncoding encoding = detect(ByteBuffer.wrap((byte[]) sample[0]), StandardCharsets.UTF_8);
+            if (!encoding.toString().equals(sample[1])) {
+                throw new IllegalStateException("TextEncoding took " + sample[1] + " for " + encoding);
+            }
+        }
+        if (!detect(ByteBuffer.wrap(new byte[] {'c', (byte) 0xE9, ' ', 'x'}), Charset.forName("windows-1252")).charset.name()
+                .equals("windows-1252")) {
+            throw new IllegalStateException("TextEncoding did not fall back to the platform charset");
+        }
+
+        // Valid UTF-8 for the whole first sample, after a BOM, and then a byte that is not
+        byte[] head = "a".repeat(SAMPLE_SIZE + 100).getBytes(StandardCharsets.US_ASCII);
+        byte[] invalid = bytes(new byte[] {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF}, head,
+                new byte[] {(byte) 0xE9, '\r', '\n', 'z'});
+        Object[][] files = {
+                {samples[0][0], text, true},
+                {samples[1][0], text, true},
+                {bytes(new byte[] {(byte) 0xFE, (byte) 0xFF}, text.replace("\n", "\r\n").getBytes(StandardCharsets.UTF_16BE)),
+                        text, true},
+                {samples[3][0], "plain ASCII text\n", true},
+                {invalid, "a".repeat(SAMPLE_SIZE + 100) + "\u00e9\nz", false},
+        };
+        try {
+            Path path = Files.createTempFile("notepad-encoding", ".txt");
+            try {
+                for (Object[] file : files) {
+                    Files.write(path, (byte[]) file[0]);
+                    PieceTableDocument document = PieceTableDocument.read(path, read -> {});
+                    String loaded = document.getText(0, document.getLength());
+                    TextEncoding encoding = of(document);
+                    if (!loaded.equals(file[1])) {
+                        throw new IllegalStateException("TextEncoding read " + encoding + " as \""
+                                + loaded.substring(0, Math.min(20, loaded.length())) + "...\"");
+                    }
+                    Object separator = document.getProperty(DefaultEditorKit.EndOfLineStringProperty);
+                    TextFiles.writeAtomically(path, document.snapshot(), encoding,
+                            separator instanceof String ? (String) separator : "\n", written -> {});
+                    if ((Boolean) file[2] && !Arrays.equals(Files.readAllBytes(path), (byte[]) file[0])) {
+                        throw new IllegalStateException("TextFiles did not write " + encoding + " back as it was read");
+                    }
+                }
+            } finally {
+                Files.delete(path);
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        } catch (BadLocationException ex) {
+            throw new IllegalStateException(ex);
+        }
+        System.out.println("TextEncoding: " + samples.length + " guesses, " + files.length
+                + " files read and written back, BOMs and the ISO-8859-1 fallback passed");
+    }
+
+    private static byte[] bytes(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,261 @@
+import java.io.*;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.LongConsumer;
+
+final class TextFiles {
+    private static final int CHUNK = 64 * 1024;
+    // Decoders are costly to create, so each thread keeps one per charset
+    private static final ThreadLocal<java.util.Map<Charset, CharsetDecoder>> DECODERS =
+            ThreadLocal.withInitial(java.util.HashMap::new);
+
+    private TextFiles() {
+    }
+
+    // Writes to a temporary file beside the target, forces it to disk and renames it over the
+    // target, so a crash or a full disk mid-save leaves the old file intact. Through a symbolic
+    // link the file it points to is replaced and the link kept. A file with other hard links is
+    // copied over in place instead, as a rename would leave the other names on the old text;
+    // if that fails midway the temporary file is kept and named in the exception
+    static void writeAtomically(Path target, CharSequence text, TextEncoding encoding, String lineSeparator,
+                                LongConsumer progress) throws IOException {
+        Path file = Files.exists(target) ? target.toRealPath() : target.toAbsolutePath();
+        Path directory = file.getParent();
+        Path temp = createTemp(directory, file.getFileName());
+        boolean inPlace;
+        try {
+            copyPermissions(file, temp);
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                // Characters the charset cannot hold fail the save instead of turning into '?'
+                Writer out = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel),
+                        encoding.charset.newEncoder()), CHUNK);
+                if (encoding.bom) {
+                    out.write('\uFEFF');
+                }
+                write(text, out, lineSeparator, progress);
+                out.flush();
+                channel.force(true);
+            }
+            inPlace = linkCount(file) > 1;
+            if (!inPlace) {
+                try {
+                    Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException ex) {
+                    Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+                }
+                forceDirectory(directory);
+            }
+        } catch (IOException | RuntimeException ex) {
+            Files.deleteIfExists(temp);
+            throw ex;
+        }
+        if (inPlace) {
+            try {
+                copyInto(temp, file);
+            } catch (IOException ex) {
+                throw new IOException(ex.getMessage() + "; the saved text is in " + temp, ex);
+            }
+            Files.delete(temp);
+        }
+    }
+
+    // Made like any new file, so it gets the default permissions less the umask, and not the
+    // owner-only ones Files.createTempFile gives; copyPermissions then matches an existing target
+    private static Path createTemp(Path directory, Path name) throws IOException {
+        while (true) {
+            Path temp = directory.resolve("." + name + "."
+                    + Long.toUnsignedString(ThreadLocalRandom.current().nextLong(), 36) + ".tmp");
+            try {
+                return Files.createFile(temp);
+            } catch (FileAlreadyExistsException ex) {
+                // Try another name
+            }
+        }
+    }
+
+    private static int linkCount(Path file) {
+        try {
+            return Files.exists(file) ? (Integer) Files.getAttribute(file, "unix:nlink") : 1;
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException ex) {
+            return 1;
+        }
+    }
+
+    private static void copyInto(Path from, Path to) throws IOException {
+        try (FileChannel in = FileChannel.open(from, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(to, StandardOpenOption.WRITE)) {
+            long size = in.size();
+            for (long pos = 0; pos < size; ) {
+                pos += out.transferFrom(in, pos, size - pos);
+            }
+            out.truncate(size);
+            out.force(true);
+        }
+    }
+
+    private static void copyPermissions(Path from, Path to) {
+        try {
+            if (Files.exists(from)) {
+                Files.setPosixFilePermissions(to, Files.getPosixFilePermissions(from));
+            }
+        } catch (IOException | UnsupportedOperationException ex) {
+            // Not a POSIX file system; the temporary file keeps the default permissions
+        }
+    }
+
+    // Makes the rename itself durable; not every platform lets a directory be opened for this
+    static void forceDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ex) {
+            // Best effort
+        }
+    }
+
+    // Writes text in chunks, turning \n into lineSeparator the way DefaultEditorKit.write does.
+    // Stops with an InterruptedIOException if the writing thread is interrupted
+    static void write(CharSequence text, Writer out, String lineSeparator, LongConsumer progress) throws IOException {
+        char[] chunk = new char[CHUNK];
+        int length = text.length();
+        boolean plain = lineSeparator.equals("\n");
+        for (int pos = 0; pos < length; ) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("Write cancelled");
+            }
+            int end = Math.min(length, pos + CHUNK);
+            getChars(text, pos, end, chunk);
+            if (plain) {
+                out.write(chunk, 0, end - pos);
+            } else {
+                int start = 0;
+                for (int i = 0; i < end - pos; i++) {
+                    if (chunk[i] == '\n') {
+                        out.write(chunk, start, i - start);
+                        out.write(lineSeparator);
+                        start = i + 1;
+                    }
+                }
+                out.write(chunk, start, end - pos - start);
+            }
+            pos = end;
+            progress.accept(pos);
+        }
+    }
+
+    // A reset decoder for charset, owned by the calling thread
+    static CharsetDecoder decoder(Charset charset, CodingErrorAction malformed) {
+        return DECODERS.get().computeIfAbsent(charset, Charset::newDecoder)
+                .reset()
+                .onMalformedInput(malformed)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    // Copies text[from, to) into the start of dst, in bulk where the text allows it
+    static void getChars(CharSequence text, int from, int to, char[] dst) {
+        if (text instanceof TextSnapshot) {
+            ((TextSnapshot) text).getChars(from, to, dst, 0);
+        } else if (text instanceof String) {
+            ((String) text).getChars(from, to, dst, 0);
+        } else if (text instanceof StringBuilder) {
+            ((StringBuilder) text).getChars(from, to, dst, 0);
+        } else if (text instanceof CharBuffer) {
+            CharBuffer buffer = (CharBuffer) text;
+            buffer.get(buffer.position() + from, dst, 0, to - from);
+        } else {
+            for (int i = from; i < to; i++) {
+                dst[i - from] = text.charAt(i);
+            }
+        }
+    }
+
+    // Test method: saving makes a new file with the default permissions, keeps an existing
+    // file's, and writes through a symbolic link and into a hard-linked file without
+    // replacing either link with a file of its own
+    static void test() {
+        try {
+            Path directory = Files.createTempDirectory("notepad-save");
+            try {
+                boolean posix = directory.getFileSystem().supportedFileAttributeViews().contains("posix");
+                Path plain = Files.createFile(directory.resolve("plain.txt"));
+                Path created = directory.resolve("created.txt");
+                save(created, "new\n");
+                if (posix && !Files.getPosixFilePermissions(created).equals(Files.getPosixFilePermissions(plain))) {
+                    throw new IllegalStateException("TextFiles saved a new file as "
+                            + PosixFilePermissions.toString(Files.getPosixFilePermissions(created)) + ", not "
+                            + PosixFilePermissions.toString(Files.getPosixFilePermissions(plain)));
+                }
+                if (posix) {
+                    Files.setPosixFilePermissions(created, PosixFilePermissions.fromString("rw-r-----"));
+                    save(created, "again\n");
+                    if (!PosixFilePermissions.toString(Files.getPosixFilePermissions(created)).equals("rw-r-----")) {
+                        throw new IllegalStateException("TextFiles changed the permissions of a saved file");
+                    }
+                }
+
+                Path link = directory.resolve("link.txt");
+                Path hardLink = directory.resolve("hard.txt");
+                boolean symbolic = tryLink(() -> Files.createSymbolicLink(link, created.getFileName()));
+                boolean hard = tryLink(() -> Files.createLink(hardLink, created));
+                if (symbolic) {
+                    save(link, "through the link\n");
+                    if (!Files.isSymbolicLink(link) || !Files.readString(created).equals("through the link\n")) {
+                        throw new IllegalStateException("TextFiles replaced a symbolic link instead of its target");
+                    }
+                }
+                if (hard) {
+                    save(created, "both names\n");
+                    if (!Files.readString(hardLink).equals("both names\n")) {
+                        throw new IllegalStateException("TextFiles broke a hard link");
+                    }
+                }
+                try (java.util.stream.Stream<Path> files = Files.list(directory)) {
+                    if (files.anyMatch(path -> path.getFileName().toString().endsWith(".tmp"))) {
+                        throw new IllegalStateException("TextFiles left a temporary file behind");
+                    }
+                }
+                System.out.println("TextFiles: default and kept permissions" + (symbolic ? ", symbolic link" : "")
+                        + (hard ? ", hard link" : "") + " passed");
+            } finally {
+                try (java.util.stream.Stream<Path> files = Files.list(directory)) {
+                    for (Path path : (Iterable<Path>) files::iterator) {
+                        Files.delete(path);
+                    }
+                }
+                Files.delete(directory);
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private static void save(Path target, String text) throws IOException {
+        writeAtomically(target, text, new TextEncoding(StandardCharsets.UTF_8, false), "\n", written -> {});
+    }
+
+    private interface Link {
+        void create() throws IOException;
+    }
+
+    // Whether the file system let the link be made
+    private static boolean tryLink(Link link) throws IOException {
+        try {
+            link.create();
+            return true;
+        } catch (UnsupportedOperationException | SecurityException | java.nio.file.FileSystemException ex) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,498 @@
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.function.LongConsumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Finds literal text with Boyer-Moore-Horspool, or a regular expression through a
+// CharSequence view, reading the text a window at a time instead of copying it whole.
+// Searches stop with a CancellationException if the searching thread is interrupted
+final class TextSearch {
+    private static final int WINDOW = 64 * 1024;
+
+    interface MatchConsumer {
+        void match(int start, int end);
+    }
+
+    // What replacing every match comes to: the text from start to end becomes text
+    static final class Replacement {
+        final int start, end;
+        final String text;
+        final int count;
+
+        Replacement(int start, int end, String text, int count) {
+            this.start = start;
+            this.end = end;
+            this.text = text;
+            this.count = count;
+        }
+
+        // The whole of the replaced text
+        CharSequence applyTo(CharSequence original) {
+            StringBuilder result = new StringBuilder(original.length() - (end - start) + text.length());
+            append(result, original, 0, start);
+            result.append(text);
+            append(result, original, end, original.length());
+            return result;
+        }
+    }
+
+    private final String query;
+    private final boolean matchCase;
+    private final boolean regex;
+    private final Pattern pattern;
+    private final char[] needle;
+    private final int[] shift;
+
+    TextSearch(String query, boolean matchCase, boolean regex) {
+        if (query.isEmpty()) {
+            throw new IllegalArgumentException("Nothing to search for");
+        }
+        this.query = query;
+        this.matchCase = matchCase;
+        this.regex = regex;
+        if (regex) {
+            int flags = Pattern.MULTILINE | (matchCase ? 0 : Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+            pattern = Pattern.compile(query, flags);
+            needle = null;
+            shift = null;
+        } else {
+            pattern = null;
+            needle = query.toCharArray();
+            if (!matchCase) {
+                fold(needle, needle.length);
+            }
+            // Characters share a slot by their low byte; the smallest shift wins, which stays safe
+            int m = needle.length;
+            shift = new int[256];
+            Arrays.fill(shift, m);
+            for (int j = 0; j < m - 1; j++) {
+                shift[needle[j] & 0xFF] = m - 1 - j;
+            }
+        }
+    }
+
+    String getQuery() {
+        return query;
+    }
+
+    boolean isMatchCase() {
+        return matchCase;
+    }
+
+    boolean isRegex() {
+        return regex;
+    }
+
+    // The first match starting at or after from, or searching backward the last match
+    // ending at or before from; null if there is none
+    int[] find(CharSequence text, int from, boolean forward, LongConsumer progress) {
+        if (pattern != null) {
+            return forward ? regexNext(text, from, progress) : regexPrevious(text, from, progress);
+        }
+        int start = forward ? indexOf(text, from, null, progress) : lastIndexOf(text, from, progress);
+        return start < 0 ? null : new int[] {start, start + needle.length};
+    }
+
+    // Reports every non-overlapping match in order and returns how many there were
+    int findAll(CharSequence text, MatchConsumer matches, LongConsumer progress) {
+        int[] count = new int[1];
+        MatchConsumer counting = (start, end) -> {
+            count[0]++;
+            matches.match(start, end);
+        };
+        if (pattern != null) {
+            Matcher matcher = pattern.matcher(new InterruptibleText(text, 0, progress));
+            while (matcher.find()) {
+                counting.match(matcher.start(), matcher.end());
+            }
+        } else {
+            indexOf(text, 0, counting, progress);
+        }
+        return count[0];
+    }
+
+    // Builds the replaced span of text in one pass over it, or returns null if nothing matched.
+    // A regex replacement may refer to groups as $1 or ${name} and quote with \; a literal one is
+    // used as it is
+    Replacement replaceAll(CharSequence text, String replacement, LongConsumer progress) {
+        StringBuilder out = new StringBuilder();
+        int[] span = {-1, 0, 0};  // first match start, last match end, count
+        if (pattern != null) {
+            Matcher matcher = pattern.matcher(new InterruptibleText(text, 0, progress));
+            while (matcher.find()) {
+                if (span[2]++ == 0) {
+                    span[0] = matcher.start();
+                } else {
+                    append(out, text, span[1], matcher.start());
+                }
+                appendReplacement(matcher, replacement, out);
+                span[1] = matcher.end();
+            }
+        } else {
+            indexOf(text, 0, (start, end) -> {
+                if (span[2]++ == 0) {
+                    span[0] = start;
+                } else {
+                    append(out, text, span[1], start);
+                }
+                out.append(replacement);
+                span[1] = end;
+            }, progress);
+        }
+        return span[2] == 0 ? null : new Replacement(span[0], span[1], out.toString(), span[2]);
+    }
+
+    // What a match covering exactly text[start, end) is replaced with, or null if that is not a match
+    String replacementFor(CharSequence text, int start, int end, String replacement) {
+        if (pattern == null) {
+            if (end - start != needle.length) return null;
+
+            char[] window = new char[needle.length];
+            read(text, start, end, window);
+            return Arrays.equals(window, needle) ? replacement : null;
+        }
+        Matcher matcher = pattern.matcher(text).region(start, text.length())
+                .useTransparentBounds(true).useAnchoringBounds(false);
+        if (!matcher.lookingAt() || matcher.end() != end) return null;
+
+        StringBuilder out = new StringBuilder();
+        appendReplacement(matcher, replacement, out);
+        return out.toString();
+    }
+
+    // Matcher.appendReplacement without the text before the match, which it always copies
+    private static void appendReplacement(Matcher matcher, String replacement, StringBuilder out) {
+        for (int i = 0; i < replacement.length(); i++) {
+            char c = replacement.charAt(i);
+            if (c == '\\') {
+                if (++i == replacement.length()) {
+                    throw new IllegalArgumentException("character to be escaped is missing");
+                }
+                out.append(replacement.charAt(i));
+            } else if (c != '$') {
+                out.append(c);
+            } else if (++i == replacement.length()) {
+                throw new IllegalArgumentException("Illegal group reference: group index is missing");
+            } else if (replacement.charAt(i) == '{') {
+                int close = replacement.indexOf('}', i);
+                if (close < 0) {
+                    throw new IllegalArgumentException("named capturing group is missing trailing '}'");
+                }
+                String group = matcher.group(replacement.substring(i + 1, close));
+                if (group != null) {
+                    out.append(group);
+                }
+                i = close;
+            } else {
+                int group = replacement.charAt(i) - '0';
+                if (group < 0 || group > 9) {
+                    throw new IllegalArgumentException("Illegal group reference");
+                }
+                // Later digits belong to the number while there is such a group, as with Matcher
+                while (i + 1 < replacement.length() && replacement.charAt(i + 1) >= '0' && replacement.charAt(i + 1) <= '9'
+                        && group * 10 + replacement.charAt(i + 1) - '0' <= matcher.groupCount()) {
+                    group = group * 10 + replacement.charAt(++i) - '0';
+                }
+                if (group > matcher.groupCount()) {
+                    throw new IndexOutOfBoundsException("No group " + group);
+                }
+                String text = matcher.group(group);
+                if (text != null) {
+                    out.append(text);
+                }
+            }
+        }
+    }
+
+    private static void append(StringBuilder out, CharSequence text, int from, int to) {
+        char[] chunk = new char[Math.min(WINDOW, to - from)];
+        for (int pos = from; pos < to; pos += chunk.length) {
+            int end = Math.min(to, pos + chunk.length);
+            TextFiles.getChars(text, pos, end, chunk);
+            out.append(chunk, 0, end - pos);
+        }
+    }
+
+    // Scans forward window by window; returns the first match, or with a consumer reports them all
+    private int indexOf(CharSequence text, int from, MatchConsumer matches, LongConsumer progress) {
+        int m = needle.length;
+        int length = text.length();
+        char[] window = new char[Math.max(WINDOW, 2 * m)];
+        int resume = from;
+        for (int pos = from; length - pos >= m; ) {
+            checkCancelled();
+            int count = Math.min(window.length, length - pos);
+            read(text, pos, pos + count, window);
+            for (int i = match(window, resume - pos, count); i >= 0; i = match(window, resume - pos, count)) {
+                if (matches == null) {
+                    return pos + i;
+                }
+                matches.match(pos + i, pos + i + m);
+                resume = pos + i + m;
+            }
+            // Every start up to count - m has been tried; the rest overlap the next window
+            pos += count - m + 1;
+            resume = Math.max(resume, pos);
+            progress.accept(pos - from);
+        }
+        return -1;
+    }
+
+    private int lastIndexOf(CharSequence text, int from, LongConsumer progress) {
+        int m = needle.length;
+        char[] window = new char[Math.max(WINDOW, 2 * m)];
+        for (int hi = from; hi >= m; ) {
+            checkCancelled();
+            int lo = Math.max(0, hi - window.length);
+            int count = hi - lo;
+            read(text, lo, hi, window);
+            int found = -1;
+            for (int i = match(window, 0, count); i >= 0; i = match(window, i + 1, count)) {
+                found = i;
+            }
+            if (found >= 0) {
+                return lo + found;
+            }
+            if (lo == 0) {
+                break;
+            }
+            hi = lo + m - 1;
+            progress.accept(from - lo);
+        }
+        return -1;
+    }
+
+    // Horspool over window[0, count): the first match starting at or after i, or -1
+    private int match(char[] window, int i, int count) {
+        int m = needle.length;
+        int last = count - m;
+        while (i <= last) {
+            int j = m - 1;
+            while (window[i + j] == needle[j]) {
+                if (j == 0) {
+                    return i;
+                }
+                j--;
+            }
+            i += shift[window[i + m - 1] & 0xFF];
+        }
+        return -1;
+    }
+
+    private void read(CharSequence text, int from, int to, char[] window) {
+        TextFiles.getChars(text, from, to, window);
+        if (!matchCase) {
+            fold(window, to - from);
+        }
+    }
+
+    private static void fold(char[] chars, int count) {
+        for (int i = 0; i < count; i++) {
+            char c = chars[i];
+            if (c < 0x80) {
+                if (c >= 'A' && c <= 'Z') {
+                    chars[i] = (char) (c + ('a' - 'A'));
+                }
+            } else {
+                chars[i] = Character.toLowerCase(Character.toUpperCase(c));
+            }
+        }
+    }
+
+    private int[] regexNext(CharSequence text, int from, LongConsumer progress) {
+        Matcher matcher = matcher(text, from, progress);
+        matcher.region(from, text.length());
+        return matcher.find() ? new int[] {matcher.start(), matcher.end()} : null;
+    }
+
+    // Searches ever larger regions ending at from, so a match near from is found without
+    // running the pattern over everything before it
+    private int[] regexPrevious(CharSequence text, int from, LongConsumer progress) {
+        Matcher matcher = matcher(text, from, progress);
+        for (long size = WINDOW; ; size *= 2) {
+            int lo = (int) Math.max(0, from - size);
+            matcher.region(lo, from);
+            int[] found = null;
+            while (matcher.find()) {
+                found = new int[] {matcher.start(), matcher.end()};
+            }
+            if (found != null || lo == 0) {
+                return found;
+            }
+            progress.accept(from - lo);
+        }
+    }
+
+    private Matcher matcher(CharSequence text, int from, LongConsumer progress) {
+        return pattern.matcher(new InterruptibleText(text, from, progress))
+                .useTransparentBounds(true)
+                .useAnchoringBounds(false);
+    }
+
+    private static void checkCancelled() {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new CancellationException("Search cancelled");
+        }
+    }
+
+    // Lets a long regular expression search notice cancellation and report how far it got
+    private static final class InterruptibleText implements CharSequence {
+        private final CharSequence text;
+        private final int base;
+        private final LongConsumer progress;
+        private int reads;
+
+        InterruptibleText(CharSequence text, int base, LongConsumer progress) {
+            this.text = text;
+            this.base = base;
+            this.progress = progress;
+        }
+
+        public int length() {
+            return text.length();
+        }
+
+        public char charAt(int index) {
+            if ((++reads & 0xFFFF) == 0) {
+                checkCancelled();
+                progress.accept(Math.abs(index - base));
+            }
+            return text.charAt(index);
+        }
+
+        public CharSequence subSequence(int start, int end) {
+            return text.subSequence(start, end);
+        }
+
+        public String toString() {
+            return text.toString();
+        }
+    }
+
+    // Test method: find forward and backward and findAll against String.indexOf, lastIndexOf
+    // and Pattern over random text of several windows. Needles include chars that share a low
+    // byte, and so a shift table slot, with others in the text, mixed case and copies planted
+    // across each window boundary
+    static void test() {
+        Random random = new Random(5);
+        String[] tokens = {"a", "b", "A", "B", " ", "\n", "\u00e9", "\u00c9", "\u03c3", "\u03a3", "\u03c2",
+                "\u6f22", "\u5b57", "\"", "\u0161", "\u0160", "\u4e61", "\u0162", "\uD83D\uDE00", "ab", "ba"};
+        StringBuilder built = new StringBuilder();
+        while (built.length() < 5 * WINDOW) {
+            built.append(tokens[random.nextInt(tokens.length)]);
+        }
+        java.util.List<String> needles = new java.util.ArrayList<>(java.util.List.of(
+                "\u6f22\u5b57", "\u03c3\u03c2", "\u4e61a", "\"\u0162", "\u00e9\u00c9 ", "\uD83D\uDE00b",
+                "zzz", "a".repeat(40)));
+        for (int i = 0; i < 24; i++) {
+            int length = i < 20 ? 1 + random.nextInt(12) : 100 + random.nextInt(200);
+            int at = random.nextInt(built.length() - length);
+            needles.add(built.substring(at, at + length));
+        }
+        // A copy of some needle across every boundary the forward and backward scans read at
+        for (int boundary = WINDOW; boundary < built.length() - WINDOW; boundary += WINDOW) {
+            for (String needle : needles.subList(0, 8)) {
+                int m = needle.length();
+                for (int at : new int[] {boundary - m / 2, boundary - m + 1 + random.nextInt(m)}) {
+                    built.replace(at, at + m, needle);
+                }
+            }
+        }
+        String text = built.toString();
+        char[] foldedText = text.toCharArray();
+        fold(foldedText, foldedText.length);
+        String folded = new String(foldedText);
+
+        int checks = 0;
+        for (String query : needles) {
+            for (boolean matchCase : new boolean[] {true, false}) {
+                String needle = query;
+                if (!matchCase) {
+                    char[] mixed = query.toCharArray();
+                    for (int i = 0; i < mixed.length; i++) {
+                        mixed[i] = random.nextBoolean() ? Character.toUpperCase(mixed[i]) : Character.toLowerCase(mixed[i]);
+                    }
+                    needle = new String(mixed);
+                }
+                TextSearch search = new TextSearch(needle, matchCase, false);
+                String haystack = matchCase ? text : folded;
+                char[] key = needle.toCharArray();
+                if (!matchCase) {
+                    fold(key, key.length);
+                }
+                String wanted = new String(key);
+                int m = wanted.length();
+
+                java.util.List<Integer> expected = new java.util.ArrayList<>();
+                for (int i = haystack.indexOf(wanted); i >= 0; i = haystack.indexOf(wanted, i + m)) {
+                    expected.add(i);
+                }
+                java.util.List<Integer> found = new java.util.ArrayList<>();
+                search.findAll(text, (start, end) -> found.add(start), scanned -> {});
+                if (!found.equals(expected)) {
+                    throw new IllegalStateException("TextSearch found " + found.size() + " of \"" + needle + "\", not "
+                            + expected.size() + (matchCase ? "" : " ignoring case"));
+                }
+                // Where no surrogate pair is cut, Pattern's own case folding must agree
+                if (!matchCase && !Character.isLowSurrogate(needle.charAt(0))
+                        && !Character.isHighSurrogate(needle.charAt(m - 1))) {
+                    Matcher matcher = Pattern.compile(Pattern.quote(needle),
+                            Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE).matcher(text);
+                    java.util.List<Integer> matched = new java.util.ArrayList<>();
+                    while (matcher.find()) {
+                        matched.add(matcher.start());
+                    }
+                    if (!matched.equals(expected)) {
+                        throw new IllegalStateException("TextSearch and Pattern disagree on \"" + needle + "\"");
+                    }
+                }
+
+                for (int round = 0; round < 50; round++) {
+                    int from = round == 0 ? 0 : round == 1 ? text.length() : random.nextInt(text.length() + 1);
+                    int[] next = search.find(text, from, true, scanned -> {});
+                    int[] previous = search.find(text, from, false, scanned -> {});
+                    int nextStart = haystack.indexOf(wanted, from);
+                    int previousStart = from >= m ? haystack.lastIndexOf(wanted, from - m) : -1;
+                    if ((next == null ? -1 : next[0]) != nextStart || (previous == null ? -1 : previous[0]) != previousStart) {
+                        throw new IllegalStateException("TextSearch found \"" + needle + "\" from " + from + " at "
+                                + (next == null ? -1 : next[0]) + " and back at " + (previous == null ? -1 : previous[0])
+                                + ", not " + nextStart + " and " + previousStart);
+                    }
+                    checks += 2;
+                }
+            }
+        }
+
+        // Regular expressions, forward and backward from anywhere, against Pattern on the whole text
+        String[] regexes = {"\u00e9[ab]+\u03c3", "(?:\u6f22|\u5b57){2,}", "b a", "\u0161[^\\n]{3}\""};
+        for (String regex : regexes) {
+            for (boolean matchCase : new boolean[] {true, false}) {
+                TextSearch search = new TextSearch(regex, matchCase, true);
+                Pattern pattern = Pattern.compile(regex, Pattern.MULTILINE
+                        | (matchCase ? 0 : Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE));
+                for (int round = 0; round < 50; round++) {
+                    int from = random.nextInt(text.length() + 1);
+                    Matcher matcher = pattern.matcher(text);
+                    int nextStart = matcher.find(from) ? matcher.start() : -1;
+                    matcher.region(0, from);
+                    int previousStart = -1;
+                    while (matcher.find()) {
+                        previousStart = matcher.start();
+                    }
+                    int[] next = search.find(text, from, true, scanned -> {});
+                    int[] previous = search.find(text, from, false, scanned -> {});
+                    if ((next == null ? -1 : next[0]) != nextStart || (previous == null ? -1 : previous[0]) != previousStart) {
+                        throw new IllegalStateException("TextSearch found /" + regex + "/ from " + from + " at "
+                                + (next == null ? -1 : next[0]) + " and back at " + (previous == null ? -1 : previous[0])
+                                + ", not " + nextStart + " and " + previousStart);
+                    }
+                    checks += 2;
+                }
+            }
+        }
+        System.out.println("TextSearch: " + needles.size() + " needles and " + regexes.length + " patterns, " + checks
+                + " finds against String and Pattern over " + text.length() + " chars passed");
+    }
+}
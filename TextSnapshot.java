@@ -0,0 +1,81 @@
+// Frozen copy of a piece table's piece list. Reading it never touches the live document
+class TextSnapshot implements CharSequence {
+    private final CharSequence original;
+    private final char[] added;
+    private final boolean[] fromAdded;
+    private final int[] starts;
+    private final int[] ends;
+    private int last;
+
+    TextSnapshot(CharSequence original, char[] added, boolean[] fromAdded, int[] starts, int[] ends) {
+        this.original = original;
+        this.added = added;
+        this.fromAdded = fromAdded;
+        this.starts = starts;
+        this.ends = ends;
+    }
+
+    public int length() {
+        return ends.length == 0 ? 0 : ends[ends.length - 1];
+    }
+
+    private int pieceAt(int index) {
+        int p = last;
+        if (p < ends.length && index < ends[p] && (p == 0 || index >= ends[p - 1])) {
+            return p;
+        }
+        int lo = 0, hi = ends.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (ends[mid] <= index) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        last = lo;
+        return lo;
+    }
+
+    public char charAt(int index) {
+        if (index < 0 || index >= length()) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + length());
+        }
+        int p = pieceAt(index);
+        int source = starts[p] + index - (p == 0 ? 0 : ends[p - 1]);
+        return fromAdded[p] ? added[source] : original.charAt(source);
+    }
+
+    void getChars(int from, int to, char[] dst, int dstBegin) {
+        while (from < to) {
+            int p = pieceAt(from);
+            int pieceStart = p == 0 ? 0 : ends[p - 1];
+            int end = Math.min(to, ends[p]);
+            int source = starts[p] + from - pieceStart;
+            if (fromAdded[p]) {
+                System.arraycopy(added, source, dst, dstBegin, end - from);
+            } else if (original instanceof String) {
+                ((String) original).getChars(source, source + end - from, dst, dstBegin);
+            } else if (original instanceof StringBuilder) {
+                ((StringBuilder) original).getChars(source, source + end - from, dst, dstBegin);
+            } else {
+                for (int i = 0; i < end - from; i++) {
+                    dst[dstBegin + i] = original.charAt(source + i);
+                }
+            }
+            dstBegin += end - from;
+            from = end;
+        }
+    }
+
+    public CharSequence subSequence(int start, int end) {
+        char[] chars = new char[end - start];
+        getChars(start, end, chars, 0);
+        return new String(chars);
+    }
+
+    @Override
+    public String toString() {
+        return subSequence(0, length()).toString();
+    }
+}
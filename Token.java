@@ -0,0 +1,17 @@
+// Token class
+class Token {
+    TokenType type;
+    String value;
+    int position;
+    
+    Token(TokenType type, String value, int position) {
+        this.type = type;
+        this.value = value;
+        this.position = position;
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("Token(%s, '%s', %d)", type, value, position);
+    }
+}
@@ -0,0 +1,4 @@
+// Token types for lexical analysis
+enum TokenType {
+    COMMAND, TEXT, LBRACE, RBRACE, LBRACKET, RBRACKET, NEWLINE, EOF, MATH_INLINE, MATH_DISPLAY
+}
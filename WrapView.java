@@ -0,0 +1,914 @@
+import javax.swing.*;
+import java.awt.*;
+import java.util.Arrays;
+import java.util.Random;
+import javax.swing.event.DocumentEvent;
+import javax.swing.text.*;
+
+// Word-wrapping view of a whole plain document that only measures the text it shows or
+// locates. Every line's row count is kept in a RowMap treap, estimated from its length until
+// the line is laid out, so y-to-line and line-to-y stay O(log n), an edit only costs the lines
+// it replaced and a resize arithmetic over the line lengths. Lines longer than BLOCK chars are wrapped in
+// BLOCK-sized pieces with their own row counts, each starting a new row, so scrolling through
+// a single 100 MB line never wraps more than the blocks on screen
+class WrapView extends View implements TabExpander {
+    static final int BLOCK = 8192;
+    private static final int CACHED_BLOCKS = 1024;
+
+    private final RowMap lines = new RowMap();
+    // Row counts of the blocks of long lines, made when a line is first laid out
+    private final java.util.Map<Element, RowMap> blockRows = new java.util.WeakHashMap<>();
+    // Row starts of recently laid out blocks, from the start of the block, so an edit only
+    // drops the blocks of the line it falls in from the edited one on
+    private final java.util.Map<BlockKey, int[]> breakCache = new java.util.LinkedHashMap<BlockKey, int[]>() {
+        @Override
+        protected boolean removeEldestEntry(java.util.Map.Entry<BlockKey, int[]> eldest) {
+            return size() > CACHED_BLOCKS;
+        }
+    };
+    private final Segment segment = new Segment();
+    private FontMetrics metrics;
+    private int charWidth;
+    private int tabWidth;
+    private float tabBase;
+    private float measured;
+    private int width;
+    private boolean laidOut;
+    private boolean estimatesStale;
+    private int reportedRows;
+
+    WrapView(Element root) {
+        super(root);
+    }
+
+    // A block of a line, by the line's element, which an edit elsewhere leaves alone
+    private static final class BlockKey {
+        final Element line;
+        final int block;
+
+        BlockKey(Element line, int block) {
+            this.line = line;
+            this.block = block;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof BlockKey && ((BlockKey) other).line == line && ((BlockKey) other).block == block;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(line) * 31 + block;
+        }
+    }
+
+    // Text area UI that wraps lines with a WrapView
+    static class TextAreaUI extends javax.swing.plaf.basic.BasicTextAreaUI {
+        @Override
+        public View create(Element element) {
+            JTextArea area = (JTextArea) getComponent();
+            // Bidirectional text needs the paragraph views
+            if (Boolean.TRUE.equals(element.getDocument().getProperty("i18n"))) {
+                return super.create(element);
+            }
+            return area.getLineWrap() ? new WrapView(element) : new LineView(element);
+        }
+    }
+
+    // The view for unwrapped lines, coloured by a LaTeXHighlighter like WrapView is
+    static class LineView extends PlainView {
+        LineView(Element element) {
+            super(element);
+        }
+
+        @Override
+        protected float drawUnselectedText(Graphics2D g, float x, float y, int p0, int p1) throws BadLocationException {
+            LaTeXHighlighter highlighter = LaTeXHighlighter.of(getDocument());
+            if (highlighter == null) return super.drawUnselectedText(g, x, y, p0, p1);
+
+            Segment text = getLineBuffer();
+            for (int p = p0; p < p1; ) {
+                Color styled = highlighter.colorAt(p);
+                int end = Math.min(p1, Math.max(p + 1, highlighter.runEnd()));
+                if (styled == null) {
+                    x = super.drawUnselectedText(g, x, y, p, end);
+                } else {
+                    g.setColor(styled);
+                    getDocument().getText(p, end - p, text);
+                    x = Utilities.drawTabbedText(text, x, y, g, this, p);
+                }
+                p = end;
+            }
+            return x;
+        }
+    }
+
+    @Override
+    public float getPreferredSpan(int axis) {
+        if (getContainer() == null) return 0;
+
+        ensureLayout();
+        if (axis == X_AXIS) {
+            return width > 0 && width < Integer.MAX_VALUE / 2 ? width : 100;
+        }
+        reportedRows = lines.total();
+        return (float) lines.total() * metrics.getHeight();
+    }
+
+    @Override
+    public void setSize(float width, float height) {
+        if ((int) width != this.width) {
+            this.width = (int) width;
+            estimatesStale = true;
+            breakCache.clear();
+            blockRows.clear();
+        }
+    }
+
+    @Override
+    public void paint(Graphics g, Shape a) {
+        ensureLayout();
+        JTextComponent host = (JTextComponent) getContainer();
+        Graphics2D g2 = (Graphics2D) g;
+        Object hints = Toolkit.getDefaultToolkit().getDesktopProperty("awt.font.desktophints");
+        if (hints instanceof java.util.Map) {
+            g2.addRenderingHints((java.util.Map<?, ?>) hints);
+        }
+        g2.setFont(host.getFont());
+
+        Rectangle alloc = a.getBounds();
+        Rectangle clip = g.getClipBounds() != null ? g.getClipBounds() : alloc;
+        int lineHeight = metrics.getHeight();
+        Color foreground = host.isEnabled() ? host.getForeground() : host.getDisabledTextColor();
+        Color selected = host.getSelectedTextColor() != null ? host.getSelectedTextColor() : foreground;
+        boolean selection = host.getCaret().isSelectionVisible() && host.getHighlighter() != null;
+        int selectionStart = selection ? host.getSelectionStart() : 0;
+        int selectionEnd = selection ? host.getSelectionEnd() : 0;
+        tabBase = alloc.x;
+
+        int firstRow = Math.max(0, clip.y - alloc.y) / lineHeight;
+        int line = lines.indexOfRow(firstRow);
+        int block = 0;
+        if (blockCount(lines.chars(line)) > 1) {
+            block = blockMap(line).indexOfRow(firstRow - lines.rowsBefore(line));
+        }
+        // Rows are placed after laying out their block, so a corrected estimate cannot misplace them
+        while (line < lines.size()) {
+            int[] starts = breaks(line, block);
+            int y = alloc.y + (lines.rowsBefore(line) + blockRowsBefore(line, block)) * lineHeight;
+            for (int row = 0; row < starts.length - 1; row++, y += lineHeight) {
+                if (y >= clip.y + clip.height) {
+                    heightChanged();
+                    return;
+                }
+                if (y + lineHeight <= clip.y) continue;
+
+                int p0 = starts[row];
+                int p1 = starts[row + 1];
+                int s0 = Math.max(p0, selectionStart);
+                int s1 = Math.min(p1, selectionEnd);
+                float x = alloc.x;
+                int baseline = y + metrics.getAscent();
+                if (s0 < s1) {
+                    x = drawStyledText(g2, p0, s0, x, baseline, foreground);
+                    x = drawText(g2, s0, s1, x, baseline, selected);
+                    drawStyledText(g2, s1, p1, x, baseline, foreground);
+                } else {
+                    drawStyledText(g2, p0, p1, x, baseline, foreground);
+                }
+            }
+            if (++block >= blockCount(lines.chars(line))) {
+                line++;
+                block = 0;
+            }
+        }
+        heightChanged();
+    }
+
+    // Unselected text takes its colours from the document's LaTeXHighlighter, if it has one
+    private float drawStyledText(Graphics2D g, int p0, int p1, float x, int y, Color color) {
+        LaTeXHighlighter highlighter = LaTeXHighlighter.of(getDocument());
+        if (highlighter == null) return drawText(g, p0, p1, x, y, color);
+
+        for (int p = p0; p < p1; ) {
+            Color styled = highlighter.colorAt(p);
+            int end = Math.min(p1, Math.max(p + 1, highlighter.runEnd()));
+            x = drawText(g, p, end, x, y, styled != null ? styled : color);
+            p = end;
+        }
+        return x;
+    }
+
+    // Text, wrapping, the caret and clicks are all placed by measure(), so they agree to the pixel
+    private float drawText(Graphics2D g, int p0, int p1, float x, int y, Color color) {
+        if (p0 == p1) return x;
+
+        g.setColor(color);
+        Segment text = text(p0, p1);
+        int end = text.offset + text.count;
+        for (int i = text.offset, run = i; i <= end; i++) {
+            if (i < end && text.array[i] != '\t') continue;
+
+            if (i > run) {
+                g.drawChars(text.array, run, i - run, (int) x, y);
+                x += metrics.charsWidth(text.array, run, i - run);
+            }
+            if (i < end) {
+                x = nextTabStop(x, p0 + i - text.offset);
+            }
+            run = i + 1;
+        }
+        return x;
+    }
+
+    // Chars of text that fit left of x when it starts at x0, rounded to the nearest boundary if
+    // asked; x0 plus the width of the chars counted is left in measured
+    private int measure(Segment text, float x0, float x, int startOffset, boolean round) {
+        char[] chars = text.array;
+        int end = text.offset + text.count;
+        float runX = x0;
+        for (int i = text.offset, run = i; i <= end; i++) {
+            if (i < end && chars[i] != '\t') continue;
+
+            // Only about as much of a run as fits is measured, as it can be a whole block long
+            int length = i - run;
+            int span = Math.min(length, 64);
+            while (span < length && runX + metrics.charsWidth(chars, run, span) <= x) {
+                span = Math.min(length, span * 2);
+            }
+            float runEnd = runX + metrics.charsWidth(chars, run, span);
+            if (x < runEnd) {
+                int lo = 0;
+                int hi = span;
+                while (lo < hi) {
+                    int mid = (lo + hi + 1) >>> 1;
+                    if (runX + metrics.charsWidth(chars, run, mid) <= x) {
+                        lo = mid;
+                    } else {
+                        hi = mid - 1;
+                    }
+                }
+                float left = runX + metrics.charsWidth(chars, run, lo);
+                if (round && x - left >= runX + metrics.charsWidth(chars, run, lo + 1) - x) {
+                    lo++;
+                }
+                measured = left;
+                return run + lo - text.offset;
+            }
+            if (i == end) {
+                measured = runEnd;
+                return text.count;
+            }
+            float tabEnd = nextTabStop(runEnd, startOffset + i - text.offset);
+            if (x < tabEnd) {
+                measured = runEnd;
+                return i - text.offset + (round && x - runEnd >= tabEnd - x ? 1 : 0);
+            }
+            runX = tabEnd;
+            run = i + 1;
+        }
+        return text.count;
+    }
+
+    @Override
+    public Shape modelToView(int pos, Shape a, Position.Bias b) throws BadLocationException {
+        if (pos < 0 || pos > getDocument().getLength()) {
+            throw new BadLocationException("Invalid position", pos);
+        }
+        ensureLayout();
+        Rectangle alloc = a.getBounds();
+        int line = getElement().getElementIndex(pos);
+        int start = getElement().getElement(line).getStartOffset();
+        int block = Math.min((pos - start) / BLOCK, blockCount(lines.chars(line)) - 1);
+        int[] starts = breaks(line, block);
+        int row = Arrays.binarySearch(starts, 0, starts.length - 1, pos);
+        if (row < 0) {
+            row = -row - 2;
+        }
+
+        tabBase = alloc.x;
+        int p0 = starts[row];
+        measure(text(p0, pos), alloc.x, Float.POSITIVE_INFINITY, p0, false);
+        float x = measured;
+        int y = alloc.y + (lines.rowsBefore(line) + blockRowsBefore(line, block) + row) * metrics.getHeight();
+        heightChanged();
+        return new Rectangle((int) x, y, 0, metrics.getHeight());
+    }
+
+    @Override
+    public int viewToModel(float fx, float fy, Shape a, Position.Bias[] bias) {
+        ensureLayout();
+        bias[0] = Position.Bias.Forward;
+        Rectangle alloc = a.getBounds();
+        if (fy < alloc.y) return getStartOffset();
+
+        int row = (int) (fy - alloc.y) / metrics.getHeight();
+        if (row >= lines.total()) return getDocument().getLength();
+
+        int line = lines.indexOfRow(row);
+        row -= lines.rowsBefore(line);
+        int block = 0;
+        if (blockCount(lines.chars(line)) > 1) {
+            RowMap map = blockMap(line);
+            block = map.indexOfRow(row);
+            row -= map.rowsBefore(block);
+        }
+        int[] starts = breaks(line, block);
+        row = Math.max(0, Math.min(row, starts.length - 2));
+        heightChanged();
+
+        int p0 = starts[row];
+        int p1 = starts[row + 1];
+        if (fx < alloc.x) return p0;
+
+        tabBase = alloc.x;
+        int pos = p0 + measure(text(p0, p1), alloc.x, fx, p0, true);
+        // The end of a wrapped row is drawn at the start of the next one
+        int lineEnd = getElement().getElement(line).getEndOffset() - 1;
+        return p1 < lineEnd ? Math.min(pos, p1 - 1) : pos;
+    }
+
+    @Override
+    public void insertUpdate(DocumentEvent e, Shape a, ViewFactory f) {
+        update(e, a);
+    }
+
+    @Override
+    public void removeUpdate(DocumentEvent e, Shape a, ViewFactory f) {
+        update(e, a);
+    }
+
+    @Override
+    public void changedUpdate(DocumentEvent e, Shape a, ViewFactory f) {
+        update(e, a);
+    }
+
+    // Only the lines the edit replaced, or the blocks from the edit on, are estimated again
+    // and dropped from the break cache
+    private void update(DocumentEvent e, Shape a) {
+        if (!laidOut) {
+            breakCache.clear();
+            return;
+        }
+
+        Element root = getElement();
+        DocumentEvent.ElementChange change = e.getChange(root);
+        int line;
+        if (change != null) {
+            line = change.getIndex();
+            Element[] removed = change.getChildrenRemoved();
+            for (int i = 0; i < removed.length; i++) {
+                forget(removed[i], 0, blockCount(lines.chars(line + i)));
+            }
+            int added = change.getChildrenAdded().length;
+            int[] chars = new int[added];
+            int[] estimates = new int[added];
+            for (int i = 0; i < added; i++) {
+                chars[i] = lineChars(root.getElement(line + i));
+                estimates[i] = estimate(chars[i]);
+            }
+            lines.replace(line, removed.length, chars, estimates, added);
+        } else {
+            line = root.getElementIndex(e.getOffset());
+            estimateLine(line, e.getOffset());
+        }
+        heightChanged();
+
+        Component host = getContainer();
+        if (a != null && host != null) {
+            Rectangle alloc = a.getBounds();
+            int y = alloc.y + lines.rowsBefore(line) * metrics.getHeight();
+            host.repaint(alloc.x, y, alloc.width, Math.max(0, alloc.y + alloc.height - y));
+        }
+    }
+
+    private void estimateLine(int line, int offset) {
+        Element element = getElement().getElement(line);
+        int start = element.getStartOffset();
+        int chars = lineChars(element);
+        int blocks = blockCount(chars);
+        // Blocks wholly before the edit still hold the same text
+        int keep = Math.max(0, Math.min((offset - start) / BLOCK, blocks - 1));
+        forget(element, keep, blockCount(lines.chars(line)));
+        RowMap map = blockRows.get(element);
+        if (map == null || blocks == 1) {
+            blockRows.remove(element);
+            lines.set(line, chars, estimate(chars), false);
+            return;
+        }
+        keep = Math.min(keep, map.size());
+        int[] blockChars = new int[blocks - keep];
+        int[] estimates = new int[blocks - keep];
+        for (int i = keep; i < blocks; i++) {
+            blockChars[i - keep] = Math.min(BLOCK, chars - i * BLOCK);
+            estimates[i - keep] = estimate(blockChars[i - keep]);
+        }
+        map.replace(keep, map.size() - keep, blockChars, estimates, blocks - keep);
+        lines.set(line, chars, map.total(), false);
+    }
+
+    // Drops the cached breaks of blocks [from, to) of a line
+    private void forget(Element line, int from, int to) {
+        for (int block = from; block < to; block++) {
+            breakCache.remove(new BlockKey(line, block));
+        }
+    }
+
+    private void ensureLayout() {
+        Component host = getContainer();
+        Font font = host.getFont();
+        if (metrics == null || !font.equals(metrics.getFont())) {
+            metrics = host.getFontMetrics(font);
+            charWidth = Math.max(1, metrics.charWidth('n'));
+            estimatesStale = true;
+            breakCache.clear();
+            blockRows.clear();
+        }
+        tabWidth = ((JTextArea) host).getTabSize() * metrics.charWidth('m');
+
+        if (!laidOut) {
+            Element root = getElement();
+            int count = root.getElementCount();
+            int[] chars = new int[count];
+            int[] estimates = new int[count];
+            for (int i = 0; i < count; i++) {
+                chars[i] = lineChars(root.getElement(i));
+                estimates[i] = estimate(chars[i]);
+            }
+            lines.replace(0, lines.size(), chars, estimates, count);
+            laidOut = true;
+            estimatesStale = false;
+        } else if (estimatesStale) {
+            lines.estimateAll(this::estimate);
+            estimatesStale = false;
+        }
+    }
+
+    // Row starts of a block followed by its end, laying it out and recording its row count if needed
+    private int[] breaks(int line, int block) {
+        Element element = getElement().getElement(line);
+        int p0 = element.getStartOffset() + block * BLOCK;
+        BlockKey key = new BlockKey(element, block);
+        int[] cached = breakCache.get(key);
+        if (cached == null) {
+            int chars = lines.chars(line);
+            cached = wrap(p0, p0 + Math.min(BLOCK, chars - block * BLOCK));
+            int rows = cached.length - 1;
+            if (blockCount(chars) > 1) {
+                RowMap map = blockMap(line);
+                map.set(block, map.chars(block), rows, true);
+                lines.set(line, chars, map.total(), false);
+            } else {
+                lines.set(line, chars, rows, true);
+            }
+            for (int i = 0; i < cached.length; i++) {
+                cached[i] -= p0;
+            }
+            breakCache.put(key, cached);
+        }
+        int[] starts = new int[cached.length];
+        for (int i = 0; i < starts.length; i++) {
+            starts[i] = p0 + cached[i];
+        }
+        return starts;
+    }
+
+    private int[] wrap(int p0, int p1) {
+        Segment text = text(p0, p1);
+        char[] chars = text.array;
+        int base = text.offset;
+        int end = base + text.count;
+        float wrapWidth = width > 0 ? width : Integer.MAX_VALUE;
+        boolean wordWrap = ((JTextArea) getContainer()).getWrapStyleWord();
+        tabBase = 0;
+
+        int[] starts = new int[8];
+        starts[0] = p0;
+        int rows = 0;
+        for (int pos = base; pos < end; ) {
+            text.offset = pos;
+            text.count = end - pos;
+            int n = measure(text, 0, wrapWidth, p0 + pos - base, false);
+            if (n <= 0) {
+                n = 1;
+            } else if (wordWrap && pos + n < end && !Character.isWhitespace(chars[pos + n])) {
+                for (int i = pos + n - 1; i >= pos; i--) {
+                    if (Character.isWhitespace(chars[i])) {
+                        n = i + 1 - pos;
+                        break;
+                    }
+                }
+            }
+            pos += n;
+            if (++rows == starts.length) {
+                starts = Arrays.copyOf(starts, rows * 2);
+            }
+            starts[rows] = p0 + pos - base;
+        }
+        if (rows == 0) {
+            starts[++rows] = p1;
+        }
+        return Arrays.copyOf(starts, rows + 1);
+    }
+
+    private RowMap blockMap(int line) {
+        Element element = getElement().getElement(line);
+        RowMap map = blockRows.get(element);
+        if (map == null) {
+            int chars = lines.chars(line);
+            int blocks = blockCount(chars);
+            map = new RowMap();
+            int[] blockChars = new int[blocks];
+            int[] estimates = new int[blocks];
+            for (int i = 0; i < blocks; i++) {
+                blockChars[i] = Math.min(BLOCK, chars - i * BLOCK);
+                estimates[i] = estimate(blockChars[i]);
+            }
+            map.replace(0, 0, blockChars, estimates, blocks);
+            blockRows.put(element, map);
+            lines.set(line, chars, map.total(), false);
+        }
+        return map;
+    }
+
+    private int blockRowsBefore(int line, int block) {
+        return block == 0 ? 0 : blockMap(line).rowsBefore(block);
+    }
+
+    private int estimate(int chars) {
+        long wrapWidth = width > 0 ? width : Integer.MAX_VALUE;
+        return (int) Math.max(1, ((long) chars * charWidth + wrapWidth - 1) / wrapWidth);
+    }
+
+    private void heightChanged() {
+        if (lines.total() != reportedRows) {
+            reportedRows = lines.total();
+            preferenceChanged(null, false, true);
+        }
+    }
+
+    private Segment text(int p0, int p1) {
+        try {
+            getDocument().getText(p0, p1 - p0, segment);
+        } catch (BadLocationException ex) {
+            throw new IllegalStateException(ex);
+        }
+        return segment;
+    }
+
+    private static int lineChars(Element line) {
+        return line.getEndOffset() - 1 - line.getStartOffset();
+    }
+
+    private static int blockCount(int chars) {
+        return Math.max(1, (chars + BLOCK - 1) / BLOCK);
+    }
+
+    @Override
+    public float nextTabStop(float x, int tabOffset) {
+        if (tabWidth <= 0) return x;
+
+        return tabBase + ((int) (x - tabBase) / tabWidth + 1) * tabWidth;
+    }
+
+    // Lays out every block, so the row counts are exact
+    private int measureAll() {
+        ensureLayout();
+        if (lines.size() != getElement().getElementCount()) {
+            throw new IllegalStateException("WrapView has " + lines.size() + " lines, the document "
+                    + getElement().getElementCount());
+        }
+        for (int line = 0; line < lines.size(); line++) {
+            if (lines.chars(line) != lineChars(getElement().getElement(line))) {
+                throw new IllegalStateException("WrapView has the wrong length for line " + line);
+            }
+            for (int block = 0; block < blockCount(lines.chars(line)); block++) {
+                breaks(line, block);
+            }
+        }
+        return lines.total();
+    }
+
+    private static JTextArea testArea(Document document, int width) {
+        JTextArea area = new JTextArea(document);
+        area.setUI(new TextAreaUI());
+        area.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+        area.setLineWrap(true);
+        area.setWrapStyleWord(true);
+        area.setSize(width, 1 << 20);
+        return area;
+    }
+
+    private static WrapView viewOf(JTextArea area) {
+        return (WrapView) area.getUI().getRootView(area).getView(0);
+    }
+
+    static void test() {
+        Random random = new Random(1549);
+        PieceTableDocument document = new PieceTableDocument("The quick brown fox\njumps over the lazy dog");
+        JTextArea area = testArea(document, 300);
+        String[] pieces = {"word ", "longer words ", "\n", "\t", "x", "  ", "a\nb"};
+        int edits = 3000;
+        int checks = 0;
+
+        try {
+            for (int i = 0; i < edits; i++) {
+                int length = document.getLength();
+                int where = random.nextInt(length + 1);
+                if (random.nextInt(3) == 0 && length > 0) {
+                    document.remove(where, Math.min(length - where, random.nextInt(random.nextInt(50) == 0 ? 20000 : 40)));
+                } else if (random.nextInt(200) == 0) {
+                    char[] run = new char[BLOCK + random.nextInt(2 * BLOCK)];
+                    Arrays.fill(run, 'a');
+                    document.insertString(where, new String(run), null);
+                } else {
+                    document.insertString(where, pieces[random.nextInt(pieces.length)], null);
+                }
+                if (random.nextInt(20) == 0) {
+                    area.setSize(60 + random.nextInt(500), 1 << 20);
+                }
+                // Lays out a line here and there, as painting would
+                area.modelToView2D(random.nextInt(document.getLength() + 1));
+                if (i % 100 != 99) continue;
+
+                JTextArea fresh = testArea(new PieceTableDocument(document.getText(0, document.getLength())),
+                        area.getWidth());
+                fresh.modelToView2D(0);
+                int rows = viewOf(area).measureAll();
+                if (rows != viewOf(fresh).measureAll()) {
+                    throw new IllegalStateException("Edit " + i + " left " + rows + " rows, laying out afresh gave "
+                            + viewOf(fresh).lines.total());
+                }
+                for (int j = 0; j < 200; j++) {
+                    int pos = random.nextInt(document.getLength() + 1);
+                    Rectangle r = area.modelToView2D(pos).getBounds();
+                    if (!r.equals(fresh.modelToView2D(pos).getBounds())) {
+                        throw new IllegalStateException("Position " + pos + " is at " + r + " after edit " + i
+                                + ", laying out afresh put it at " + fresh.modelToView2D(pos).getBounds());
+                    }
+                    int back = area.viewToModel2D(new Point(r.x, r.y + r.height / 2));
+                    if (back != pos) {
+                        throw new IllegalStateException("Position " + pos + " at " + r + " maps back to " + back);
+                    }
+                    checks++;
+                }
+            }
+
+            // An edit drops only the cached breaks of the line it falls in
+            WrapView view = viewOf(area);
+            view.measureAll();
+            java.util.Set<BlockKey> cached = new java.util.HashSet<>(view.breakCache.keySet());
+            Element edited = document.getDefaultRootElement().getElement(document.getDefaultRootElement().getElementCount() / 2);
+            document.insertString(edited.getStartOffset() + 1, "x", null);
+            document.insertString(edited.getStartOffset() + 1, "y\nz", null);
+            for (BlockKey key : cached) {
+                if (key.line != edited && !view.breakCache.containsKey(key)) {
+                    throw new IllegalStateException("An edit to one line dropped the breaks of another");
+                }
+            }
+        } catch (BadLocationException e) {
+            throw new IllegalStateException("WrapView test failed: " + e.getMessage(), e);
+        }
+
+        System.out.println("WrapView: " + edits + " edits matched fresh layouts (" + checks + " positions, "
+                + viewOf(area).lines.total() + " rows)");
+    }
+
+    // Rows of a sequence of lines or blocks, along with their lengths in chars, kept in a treap
+    // over parallel int arrays like LineIndex, so replacing a run of entries costs O(log n) plus
+    // the entries added, and the rows before an entry or the entry of a row are O(log n). A
+    // count is negative while it is only estimated
+    private static final class RowMap {
+        private static final int NIL = 0;
+
+        // Node 0 is the empty tree; freed nodes are chained through right[]
+        private int[] chars = new int[16];
+        private int[] rows = new int[16];
+        private int[] rowSum = new int[16];
+        private int[] entries = new int[16];
+        private int[] priority = new int[16];
+        private int[] left = new int[16];
+        private int[] right = new int[16];
+        private int nodes = 1;
+        private int free = NIL;
+        private int root;
+        private int seed = 0x2545F491;
+        private int splitLeft, splitRight;
+
+        int size() {
+            return entries[root];
+        }
+
+        int total() {
+            return rowSum[root];
+        }
+
+        int chars(int i) {
+            return chars[nodeAt(i)];
+        }
+
+        int rows(int i) {
+            return Math.abs(rows[nodeAt(i)]);
+        }
+
+        void set(int i, int chars, int count, boolean measured) {
+            int delta = count - rows(i);
+            int t = root;
+            while (true) {
+                rowSum[t] += delta;
+                int l = left[t];
+                if (i < entries[l]) {
+                    t = l;
+                } else if (i == entries[l]) {
+                    this.chars[t] = chars;
+                    rows[t] = measured ? count : -count;
+                    return;
+                } else {
+                    i -= entries[l] + 1;
+                    t = right[t];
+                }
+            }
+        }
+
+        // Puts added entries, with the given lengths and estimated rows, in place of removed ones
+        void replace(int index, int removed, int[] chars, int[] estimates, int added) {
+            split(root, index);
+            int before = splitLeft;
+            split(splitRight, removed);
+            freeTree(splitLeft);
+            int after = splitRight;
+            root = merge(merge(before, build(chars, estimates, added)), after);
+        }
+
+        // Estimates every entry again from its length
+        void estimateAll(java.util.function.IntUnaryOperator estimate) {
+            estimateAll(root, estimate);
+        }
+
+        private void estimateAll(int t, java.util.function.IntUnaryOperator estimate) {
+            if (t == NIL) return;
+
+            estimateAll(left[t], estimate);
+            estimateAll(right[t], estimate);
+            rows[t] = -estimate.applyAsInt(chars[t]);
+            update(t);
+        }
+
+        int rowsBefore(int i) {
+            int t = root, before = 0;
+            while (t != NIL) {
+                int l = left[t];
+                if (i <= entries[l]) {
+                    t = l;
+                } else {
+                    before += rowSum[l] + Math.abs(rows[t]);
+                    i -= entries[l] + 1;
+                    t = right[t];
+                }
+            }
+            return before;
+        }
+
+        // Entry holding the given row, or the last entry for rows past the end
+        int indexOfRow(int row) {
+            int t = root, index = 0;
+            while (t != NIL && row < rowSum[t]) {
+                int l = left[t];
+                if (row < rowSum[l]) {
+                    t = l;
+                    continue;
+                }
+                row -= rowSum[l];
+                index += entries[l];
+                if (row < Math.abs(rows[t])) {
+                    return index;
+                }
+                row -= Math.abs(rows[t]);
+                index++;
+                t = right[t];
+            }
+            return Math.max(0, size() - 1);
+        }
+
+        private int nodeAt(int i) {
+            int t = root;
+            while (true) {
+                int l = left[t];
+                if (i < entries[l]) {
+                    t = l;
+                } else if (i == entries[l]) {
+                    return t;
+                } else {
+                    i -= entries[l] + 1;
+                    t = right[t];
+                }
+            }
+        }
+
+        private void update(int t) {
+            rowSum[t] = rowSum[left[t]] + Math.abs(rows[t]) + rowSum[right[t]];
+            entries[t] = entries[left[t]] + 1 + entries[right[t]];
+        }
+
+        // Splits t into its first n entries (splitLeft) and the rest (splitRight)
+        private void split(int t, int n) {
+            if (t == NIL) {
+                splitLeft = splitRight = NIL;
+            } else if (n <= entries[left[t]]) {
+                split(left[t], n);
+                left[t] = splitRight;
+                update(t);
+                splitRight = t;
+            } else {
+                split(right[t], n - entries[left[t]] - 1);
+                right[t] = splitLeft;
+                update(t);
+                splitLeft = t;
+            }
+        }
+
+        private int merge(int a, int b) {
+            if (a == NIL) return b;
+            if (b == NIL) return a;
+            if (priority[a] > priority[b]) {
+                right[a] = merge(right[a], b);
+                update(a);
+                return a;
+            }
+            left[b] = merge(a, left[b]);
+            update(b);
+            return b;
+        }
+
+        // Builds a treap over the first n entries in linear time, as LineIndex.build does
+        private int build(int[] chars, int[] estimates, int n) {
+            int[] stack = new int[n];
+            int top = 0;
+            for (int i = 0; i < n; i++) {
+                int t = newNode(chars[i], estimates[i]);
+                int last = NIL;
+                while (top > 0 && priority[stack[top - 1]] < priority[t]) {
+                    last = stack[--top];
+                    update(last);
+                }
+                left[t] = last;
+                if (top > 0) {
+                    right[stack[top - 1]] = t;
+                }
+                stack[top++] = t;
+            }
+            while (top > 1) {
+                update(stack[--top]);
+            }
+            if (top == 0) return NIL;
+            update(stack[0]);
+            return stack[0];
+        }
+
+        private int newNode(int length, int estimate) {
+            int t;
+            if (free != NIL) {
+                t = free;
+                free = right[t];
+            } else {
+                if (nodes == chars.length) {
+                    int capacity = nodes * 2;
+                    chars = Arrays.copyOf(chars, capacity);
+                    rows = Arrays.copyOf(rows, capacity);
+                    rowSum = Arrays.copyOf(rowSum, capacity);
+                    entries = Arrays.copyOf(entries, capacity);
+                    priority = Arrays.copyOf(priority, capacity);
+                    left = Arrays.copyOf(left, capacity);
+                    right = Arrays.copyOf(right, capacity);
+                }
+                t = nodes++;
+            }
+            seed ^= seed << 13;
+            seed ^= seed >>> 17;
+            seed ^= seed << 5;
+            priority[t] = seed;
+            chars[t] = length;
+            rows[t] = -estimate;
+            rowSum[t] = estimate;
+            entries[t] = 1;
+            left[t] = right[t] = NIL;
+            return t;
+        }
+
+        private void freeTree(int t) {
+            int[] stack = new int[64];
+            int top = 0;
+            if (t != NIL) stack[top++] = t;
+            while (top > 0) {
+                int node = stack[--top];
+                if (top + 2 > stack.length) {
+                    stack = Arrays.copyOf(stack, stack.length * 2);
+                }
+                if (left[node] != NIL) stack[top++] = left[node];
+                if (right[node] != NIL) stack[top++] = right[node];
+                right[node] = free;
+                free = node;
+            }
+        }
+    }
+}